@@ -0,0 +1,216 @@
+
+/*
+ * de.unkrig.lfr - A super-fast regular expression evaluator
+ *
+ * Copyright (c) 2017, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.lfr.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An Aho-Corasick automaton that finds all occurrences of a set of keywords in one pass over the subject, no
+ * matter how many keywords there are.
+ */
+final
+class AhoCorasick {
+
+    /**
+     * The (sorted) chars of the outgoing goto transitions of each state; state 0 is the root.
+     */
+    private char[][] keys = new char[1][];
+
+    /**
+     * The target states of the goto transitions, parallel to {@link #keys}.
+     */
+    private int[][] targets = new int[1][];
+
+    /**
+     * The failure transition of each state, i.e. the state that represents the longest proper suffix of the state's
+     * string that is also a keyword prefix.
+     */
+    private final int[] fail;
+
+    /**
+     * The lengths of all keywords that end in each state (including those reachable through the failure links).
+     */
+    private final int[][] outputs;
+
+    /**
+     * The successors of the root state for the chars 0...255, for speed.
+     */
+    private final int[] rootNext = new int[256];
+
+    private int stateCount = 1;
+
+    /**
+     * The length of the longest keyword.
+     */
+    final int maxLength;
+
+    /**
+     * @param keywords Must not contain empty keywords
+     */
+    AhoCorasick(CharSequence[] keywords) {
+
+        this.keys[0]    = new char[0];
+        this.targets[0] = new int[0];
+
+        // Build the trie, and remember the state that each keyword ends in.
+        int[] ends      = new int[keywords.length];
+        int   maxLength = 0;
+        for (int i = 0; i < keywords.length; i++) {
+            CharSequence keyword = keywords[i];
+            assert keyword.length() > 0;
+
+            int state = 0;
+            for (int j = 0; j < keyword.length(); j++) state = this.gotoOrCreate(state, keyword.charAt(j));
+            ends[i] = state;
+
+            if (keyword.length() > maxLength) maxLength = keyword.length();
+        }
+        this.maxLength = maxLength;
+
+        // Compute the failure links in breadth-first order, and merge the outputs along them.
+        int[]       fail    = new int[this.stateCount];
+        List<int[]> outputs = new ArrayList<int[]>(this.stateCount);
+        for (int s = 0; s < this.stateCount; s++) outputs.add(new int[0]);
+        for (int i = 0; i < keywords.length; i++) {
+            int[] o = outputs.get(ends[i]);
+            o = Arrays.copyOf(o, o.length + 1);
+            o[o.length - 1] = keywords[i].length();
+            outputs.set(ends[i], o);
+        }
+
+        int[] queue = new int[this.stateCount];
+        int   head  = 0, tail = 0;
+        for (int t : this.targets[0]) queue[tail++] = t;
+        while (head < tail) {
+            int state = queue[head++];
+
+            char[] k = this.keys[state];
+            int[]  t = this.targets[state];
+            for (int i = 0; i < k.length; i++) {
+                int target = t[i];
+
+                int f = fail[state];
+                int g;
+                while ((g = this.gotoState(f, k[i])) == -1 && f != 0) f = fail[f];
+                fail[target] = g == -1 ? 0 : g;
+
+                int[] o1 = outputs.get(target), o2 = outputs.get(fail[target]);
+                if (o2.length > 0) {
+                    int[] o = Arrays.copyOf(o1, o1.length + o2.length);
+                    System.arraycopy(o2, 0, o, o1.length, o2.length);
+                    outputs.set(target, o);
+                }
+
+                queue[tail++] = target;
+            }
+        }
+
+        this.fail    = fail;
+        this.outputs = outputs.toArray(new int[this.stateCount][]);
+
+        char[] k = this.keys[0];
+        int[]  t = this.targets[0];
+        for (int i = 0; i < k.length && k[i] < 256; i++) this.rootNext[k[i]] = t[i];
+    }
+
+    /**
+     * @return The successor of the <var>state</var> after consuming <var>c</var>
+     */
+    int
+    next(int state, char c) {
+
+        for (;;) {
+
+            if (state == 0) {
+                if (c < 256) return this.rootNext[c];
+                int g = this.gotoState(0, c);
+                return g == -1 ? 0 : g;
+            }
+
+            int g = this.gotoState(state, c);
+            if (g != -1) return g;
+            state = this.fail[state];
+        }
+    }
+
+    /**
+     * @return The lengths of the keywords that end when the automaton enters the given <var>state</var>
+     */
+    int[]
+    outputs(int state) { return this.outputs[state]; }
+
+    /**
+     * @return The target of the goto transition of the <var>state</var> for <var>c</var>, or -1
+     */
+    private int
+    gotoState(int state, char c) {
+        int idx = Arrays.binarySearch(this.keys[state], c);
+        return idx < 0 ? -1 : this.targets[state][idx];
+    }
+
+    private int
+    gotoOrCreate(int state, char c) {
+
+        char[] k   = this.keys[state];
+        int    idx = Arrays.binarySearch(k, c);
+        if (idx >= 0) return this.targets[state][idx];
+
+        int newState = this.stateCount++;
+        if (newState == this.keys.length) {
+            this.keys    = Arrays.copyOf(this.keys, 2 * newState);
+            this.targets = Arrays.copyOf(this.targets, 2 * newState);
+        }
+        this.keys[newState]    = new char[0];
+        this.targets[newState] = new int[0];
+
+        idx = -idx - 1;
+        this.keys[state]    = AhoCorasick.insert(k, idx, c);
+        this.targets[state] = AhoCorasick.insert(this.targets[state], idx, newState);
+
+        return newState;
+    }
+
+    private static char[]
+    insert(char[] a, int idx, char c) {
+        char[] result = new char[a.length + 1];
+        System.arraycopy(a, 0, result, 0, idx);
+        result[idx] = c;
+        System.arraycopy(a, idx, result, idx + 1, a.length - idx);
+        return result;
+    }
+
+    private static int[]
+    insert(int[] a, int idx, int i) {
+        int[] result = new int[a.length + 1];
+        System.arraycopy(a, 0, result, 0, idx);
+        result[idx] = i;
+        System.arraycopy(a, idx, result, idx + 1, a.length - idx);
+        return result;
+    }
+}
@@ -0,0 +1,191 @@
+
+/*
+ * de.unkrig.lfr - A super-fast regular expression evaluator
+ *
+ * Copyright (c) 2017, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.unkrig.lfr.core;
+
+import java.util.Arrays;
+
+/**
+ * Case-insensitive comparison of code points, as required for {@link de.unkrig.ref4j.Pattern#UNICODE_CASE}.
+ * <p>
+ *   Two code points are equal when case is ignored iff their "folded" forms are equal; the folded form of a code
+ *   point is {@code Character.toLowerCase(Character.toUpperCase(cp))}, which is exactly how {@code
+ *   String.regionMatches()} (and {@code java.util.regex}) compares characters.
+ * </p>
+ * <p>
+ *   For the BMP code points, the folded forms are precomputed in a compact "two-stage" table, so that folding
+ *   costs two array accesses.
+ * </p>
+ */
+final
+class CaseFolding {
+
+    private CaseFolding() {}
+
+    /**
+     * Code points beyond this one have no case mappings (the planes 2 through 16 hold no cased letters).
+     */
+    private static final int MAX_CASED_CODE_POINT = 0x1ffff;
+
+    /**
+     * Pairs of code points that delimit big BMP areas without any case mappings: The CJK ideographs, and the Hangul
+     * syllables, surrogates and private use chars. Skipping them makes computing {@link #CASED} much faster.
+     */
+    private static final int[] CASELESS_AREAS = { 0x3400, 0xa000, 0xac00, 0xf900 };
+
+    /**
+     * All BMP code points that are not their own upper case or folded form, in ascending order.
+     */
+    private static final int[] CASED = CaseFolding.cased(0, Character.MIN_SUPPLEMENTARY_CODE_POINT);
+
+    /**
+     * The supplementary counterpart of {@link #CASED}, which is computed only when needed.
+     */
+    private static final
+    class SupplementaryCased {
+
+        private SupplementaryCased() {}
+
+        static final int[]
+        CASED = CaseFolding.cased(Character.MIN_SUPPLEMENTARY_CODE_POINT, CaseFolding.MAX_CASED_CODE_POINT + 1);
+    }
+
+    /**
+     * Maps {@code c >> 8} to the offset of the block in {@link #DELTAS}.
+     */
+    private static final char[] INDEX = new char[256];
+
+    /**
+     * The distinct blocks of 256 "{@code fold(c) - c}" values (modulo 65536); most blocks are all zeros.
+     */
+    private static final char[] DELTAS;
+
+    static {
+
+        // Only the cased chars have a non-zero delta.
+        char[] deltas = new char[Character.MIN_SUPPLEMENTARY_CODE_POINT];
+        for (int c : CaseFolding.CASED) deltas[c] = (char) (Character.toLowerCase(Character.toUpperCase(c)) - c);
+
+        // Now store each distinct block only once.
+        int n = 0; // Number of distinct blocks.
+        for (int hi = 0; hi < CaseFolding.INDEX.length; hi++) {
+
+            int b = 0;
+            while (b < n && !CaseFolding.regionEquals(deltas, b << 8, deltas, hi << 8, 256)) b++;
+
+            if (b == n) System.arraycopy(deltas, hi << 8, deltas, n++ << 8, 256);
+
+            CaseFolding.INDEX[hi] = (char) (b << 8);
+        }
+
+        DELTAS = Arrays.copyOf(deltas, n << 8);
+    }
+
+    private static int[]
+    cased(int from, int to) {
+
+        int[] result = new int[256];
+        int   n      = 0;
+        for (int c = from, i = 0; c < to; c++) {
+
+            if (i < CaseFolding.CASELESS_AREAS.length && c == CaseFolding.CASELESS_AREAS[i]) {
+                c = CaseFolding.CASELESS_AREAS[i + 1];
+                i += 2;
+            }
+
+            int u = Character.toUpperCase(c);
+            if (u == c && Character.toLowerCase(c) == c) continue;
+
+            if (n == result.length) result = Arrays.copyOf(result, 2 * n);
+            result[n++] = c;
+        }
+
+        return Arrays.copyOf(result, n);
+    }
+
+    private static boolean
+    regionEquals(char[] a, int aOffset, char[] b, int bOffset, int length) {
+
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return {@code Character.toLowerCase(Character.toUpperCase(cp))}
+     */
+    static int
+    fold(int cp) {
+
+        if (cp > 0xffff) return Character.toLowerCase(Character.toUpperCase(cp));
+
+        return (char) (cp + CaseFolding.DELTAS[CaseFolding.INDEX[cp >> 8] | (cp & 0xff)]);
+    }
+
+    /**
+     * @return Whether the two code points are equal when case is ignored
+     */
+    static boolean
+    equalsIgnoreCase(int cp1, int cp2) { return cp1 == cp2 || CaseFolding.fold(cp1) == CaseFolding.fold(cp2); }
+
+    /**
+     * Determines the code points <em>outside</em> the range <var>lhs</var>...<var>rhs</var> whose upper case or
+     * folded form is <em>within</em> that range.
+     *
+     * @return The code points, in ascending order
+     */
+    static int[]
+    caseVariants(int lhs, int rhs) {
+
+        // Notice: The upper case and the folded form of a code point are in the BMP iff the code point is.
+        int[][] cased = (
+            rhs < Character.MIN_SUPPLEMENTARY_CODE_POINT
+            ? new int[][] { CaseFolding.CASED }
+            : new int[][] { CaseFolding.CASED, SupplementaryCased.CASED }
+        );
+
+        int[] result = new int[16];
+        int   n      = 0;
+        for (int[] cps : cased) {
+            for (int c : cps) {
+
+                if (c >= lhs && c <= rhs) continue;
+
+                int u = Character.toUpperCase(c);
+                int f = CaseFolding.fold(c);
+                if ((u < lhs || u > rhs) && (f < lhs || f > rhs)) continue;
+
+                if (n == result.length) result = Arrays.copyOf(result, 2 * n);
+                result[n++] = c;
+            }
+        }
+
+        return Arrays.copyOf(result, n);
+    }
+}
@@ -0,0 +1,143 @@
+
+/*
+ * de.unkrig.lfr - A super-fast regular expression evaluator
+ *
+ * Copyright (c) 2017, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.lfr.core;
+
+import java.io.Serializable;
+
+/**
+ * A profile of how frequent each char is in typical subjects. {@link Sequence#find(MatcherImpl)} uses it to anchor
+ * the search on the <em>rarest</em> char of the pattern, e.g. on the {@code "q"} of {@code "[a-z]{2}q[a-z]"}, and
+ * to estimate the average skip distance of the BMH algorithm.
+ * <p>
+ *   The default profile, {@link #ENGLISH}, reflects English prose. Applications that search different corpora (e.g.
+ *   source code or Cyrillic text) can {@link #learn(CharSequence)} a profile from a representative sample, and
+ *   compile their patterns with {@link PatternFactory#withCharFrequencies(CharFrequencies)}.
+ * </p>
+ */
+public final
+class CharFrequencies implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The built-in profile, which reflects English prose.
+     */
+    public static final CharFrequencies ENGLISH = new CharFrequencies(CharFrequencies.english());
+
+    /**
+     * The frequencies of the chars U+0000 through U+00FF, in parts per million, and, at index 256, the frequency of
+     * <em>each</em> char beyond U+00FF. All elements are at least 1.
+     */
+    private final int[] profile;
+
+    private CharFrequencies(int[] profile) { this.profile = profile; }
+
+    /**
+     * @return The char frequencies of the given <var>sample</var>
+     */
+    public static CharFrequencies
+    learn(CharSequence sample) {
+
+        long[]    counts   = new long[257];
+        boolean[] seen     = new boolean[0x10000];
+        int       distinct = 0;
+        for (int i = 0, n = sample.length(); i < n; i++) {
+            char c = sample.charAt(i);
+            if (c < 256) {
+                counts[c]++;
+            } else {
+                counts[256]++;
+                if (!seen[c]) {
+                    seen[c] = true;
+                    distinct++;
+                }
+            }
+        }
+
+        // Each char beyond U+00FF gets the average frequency of these chars.
+        if (distinct > 0) counts[256] /= distinct;
+
+        return new CharFrequencies(CharFrequencies.normalize(counts));
+    }
+
+    /**
+     * @return The frequency of the given char, in parts per million (at least 1)
+     */
+    int
+    of(int c) { return c >= 0 && c < 256 ? this.profile[c] : this.profile[256]; }
+
+    private static int[]
+    english() {
+
+        long[] counts = new long[257];
+
+        // Lower-case letters, by decreasing frequency, and their frequencies in parts per 100,000.
+        String letters     = "etaoinshrdlucmwfgypbvkxjqz";
+        int[]  frequencies = {
+            9500, 6800, 6100, 5800, 5300, 5300, 4900, 4700, 4500, 3300, 3100, 2100, 2000,
+            1900, 1700, 1600, 1500, 1500, 1300, 1100, 750,  550,  110,  100,  70,   50,
+        };
+        for (int i = 0; i < letters.length(); i++) {
+            char c = letters.charAt(i);
+            counts[c]                        = frequencies[i];
+            counts[Character.toUpperCase(c)] = frequencies[i] / 15 + 1;
+        }
+
+        for (char c = '0'; c <= '9'; c++) counts[c] = 150;
+        for (char c = '!'; c <= '~'; c++) {
+            if (counts[c] == 0) counts[c] = 20;
+        }
+        counts[' ']  = 17000;
+        counts['\n'] = 1400;
+        counts[',']  = 1100;
+        counts['.']  = 1000;
+        counts['"']  = 300;
+        counts['\''] = 300;
+        counts['-']  = 250;
+        counts['\t'] = 100;
+        counts['\r'] = 100;
+
+        return CharFrequencies.normalize(counts);
+    }
+
+    /**
+     * @return The <var>counts</var>, scaled to parts per million, and at least 1
+     */
+    private static int[]
+    normalize(long[] counts) {
+
+        long total = 0;
+        for (long count : counts) total += count;
+
+        int[] result = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            result[i] = total == 0 ? 1 : (int) Math.max(1, counts[i] * 1000000 / total);
+        }
+
+        return result;
+    }
+}
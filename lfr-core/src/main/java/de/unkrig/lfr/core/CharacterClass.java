@@ -26,7 +26,10 @@
 
 package de.unkrig.lfr.core;
 
+import java.util.Arrays;
+
 import de.unkrig.commons.lang.protocol.Consumer;
+import de.unkrig.commons.nullanalysis.Nullable;
 
 /**
  * A {@link CompositeSequence} that implements {@link #matches(MatcherImpl)} by applying {@link
@@ -77,8 +80,11 @@ class CharacterClass extends CompositeSequence {
 
         while (matcher.offset < matcher.regionEnd) {
 
-            int startOfMatch = matcher.offset;
+            // Skip the chars that cannot start a match.
+            int startOfMatch = this.skipNonMatching(matcher.subject, matcher.offset, matcher.regionEnd);
+            if (startOfMatch == matcher.regionEnd) break;
 
+            matcher.offset = startOfMatch;
             int cp = matcher.readChar();
 
             if (this.matches(cp)) {
@@ -94,6 +100,42 @@ class CharacterClass extends CompositeSequence {
         return -1;
     }
 
+    /**
+     * Caches the results of {@link #matches(int)} for U+0000 through U+00FF; computed lazily, because {@link
+     * #matches(int)} is not yet functional while the subclass is being constructed.
+     */
+    @Nullable private volatile boolean[] latin1;
+
+    /**
+     * Checks a whole run of chars with a plain array lookup per char (instead of a {@link #matches(int)} call), which
+     * is what makes scanning text for a character class fast.
+     *
+     * @return The offset of the first char in the range <var>from</var>...<var>to</var> that is <em>not</em> a
+     *         Latin-1 char that this class rejects (i.e. which <em>may</em> match), or <var>to</var>
+     */
+    final int
+    skipNonMatching(CharSequence subject, int from, int to) {
+
+        boolean[] latin1 = this.latin1;
+        if (latin1 == null) {
+            latin1 = new boolean[256];
+            for (int c = 0; c < 256; c++) latin1[c] = this.matches(c);
+            this.latin1 = latin1;
+        }
+
+        for (; from < to; from++) {
+            char c = subject.charAt(from);
+            if (c > 0xff || latin1[c]) break;
+        }
+
+        return from;
+    }
+
+    @Override int
+    toNfaWithoutNext(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+        return b.consume(this, next);
+    }
+
     /**
      * @return Whether the <var>codePoint</var> matches this character class
      */
@@ -119,6 +161,36 @@ class CharacterClass extends CompositeSequence {
     @SuppressWarnings("static-method") public int
     sizeBound() { return Integer.MAX_VALUE; }
 
+    /**
+     * The maximum span between {@link #lowerBound()} and {@link #upperBound()} for which {@link #ranges()}
+     * enumerates the code points through {@link #matches(int)}.
+     */
+    private static final int MAX_ENUMERATED_SPAN = 4096;
+
+    /**
+     * The default implementation enumerates the code points between {@link #lowerBound()} and {@link #upperBound()},
+     * iff these are not too far apart.
+     *
+     * @return The code points that this character class matches, as a "canonical range set" (see {@link
+     *         CodePointRanges}), or {@code null} iff they are not known when the pattern is compiled (e.g. for
+     *         UNICODE properties)
+     */
+    @Nullable int[]
+    ranges() {
+
+        int lb = this.lowerBound(), ub = this.upperBound();
+        if (ub <= lb) return new int[0];
+        if (ub - lb > CharacterClass.MAX_ENUMERATED_SPAN) return null;
+
+        int[] tmp  = new int[ub - lb];
+        int   size = 0;
+        for (int cp = lb; cp < ub; cp++) {
+            if (this.matches(cp)) tmp[size++] = cp;
+        }
+
+        return CodePointRanges.of(Arrays.copyOf(tmp, size));
+    }
+
     @Override protected void
     checkWithoutNext(int offset, Consumer<Integer> result) {
 
@@ -26,9 +26,7 @@
 
 package de.unkrig.lfr.core;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -40,6 +38,7 @@ import de.unkrig.commons.lang.Characters;
 import de.unkrig.commons.lang.PrettyPrinter;
 import de.unkrig.commons.lang.protocol.Consumer;
 import de.unkrig.commons.lang.protocol.Predicate;
+import de.unkrig.commons.nullanalysis.Nullable;
 import de.unkrig.commons.util.collections.CollectionUtil;
 import de.unkrig.commons.util.collections.Sets;
 
@@ -106,6 +105,68 @@ class CharacterClasses {
         };
     }
 
+    /**
+     * Like {@link #characterClass(Predicate)}, but evaluates the <var>predicate</var> only once for each code point,
+     * and looks up the results in a {@link CodePointTable}. The table is computed when the character class is
+     * matched for the first time, and is shared by all character classes with the same <var>key</var>.
+     *
+     * @param key Must identify the <var>predicate</var>, e.g. {@code "\\p{IsCyrillic}"}
+     */
+    public static CharacterClass
+    unicodeProperty(final String key, final Predicate<Integer> predicate) {
+        return CharacterClasses.unicodeProperty(key, CharacterClasses.intPredicate(predicate), predicate.toString());
+    }
+
+    private static CharacterClass
+    unicodeProperty(String key, IntPredicate predicate, String toString) {
+        return new UnicodeProperty(key, predicate, toString);
+    }
+
+    /**
+     * @see #unicodeProperty(String, Predicate)
+     */
+    private static
+    class UnicodeProperty extends CharacterClass {
+
+        /**
+         * Identifies the {@link #predicate}.
+         */
+        final String key;
+
+        private final IntPredicate              predicate;
+        private final String                    toString;
+        @Nullable private volatile CodePointTable table;
+
+        UnicodeProperty(String key, IntPredicate predicate, String toString) {
+            this.key       = key;
+            this.predicate = predicate;
+            this.toString  = toString;
+        }
+
+        @Override public boolean
+        matches(int subject) {
+
+            CodePointTable t = this.table;
+            if (t == null) t = (this.table = CodePointTable.get(this.key, this.predicate));
+
+            return t.evaluate(subject);
+        }
+
+        @Override public String
+        toStringWithoutNext() { return this.toString; }
+    }
+
+    /**
+     * @return A string that identifies the set of code points that the <var>cc</var> matches, or {@code null} iff
+     *         that is not possible
+     */
+    @Nullable private static String
+    key(CharacterClass cc, @Nullable int[] ranges) {
+        if (cc instanceof UnicodeProperty) return ((UnicodeProperty) cc).key;
+        if (ranges != null)                return Arrays.toString(ranges);
+        return null;
+    }
+
     /**
      * Checks whether the code point's block equals the given <var>block</var>.
      *
@@ -114,14 +175,11 @@ class CharacterClasses {
     public static CharacterClass
     inUnicodeBlock(final Character.UnicodeBlock block) {
 
-        return new CharacterClass() {
+        return CharacterClasses.unicodeProperty("blk=" + block, new IntPredicate() {
 
             @Override public boolean
-            matches(int subject) { return Character.UnicodeBlock.of(subject) == block; }
-
-            @Override public String
-            toStringWithoutNext() { return "inUnicodeBlock(" + block + ")"; }
-        };
+            evaluate(int subject) { return Character.UnicodeBlock.of(subject) == block; }
+        }, "inUnicodeBlock(" + block + ")");
     }
 
     /**
@@ -132,14 +190,11 @@ class CharacterClasses {
     public static CharacterClass
     inUnicodeGeneralCategory(final int generalCategory) {
 
-        return new CharacterClass() {
+        return CharacterClasses.unicodeProperty("gc=" + generalCategory, new IntPredicate() {
 
             @Override public boolean
-            matches(int subject) { return Character.getType(subject) == generalCategory; }
-
-            @Override public String
-            toStringWithoutNext() { return "inUnicodeGeneralCategory(" + generalCategory + ")"; }
-        };
+            evaluate(int subject) { return Character.getType(subject) == generalCategory; }
+        }, "inUnicodeGeneralCategory(" + generalCategory + ")");
     }
 
     /**
@@ -400,6 +455,22 @@ class CharacterClasses {
         final int[] chars2 = CollectionUtil.toIntArray(chars);
         Arrays.sort(chars2);
 
+        // If the chars are not too widely spread, then a bitmap is faster than the binary search.
+        if (chars2[chars2.length - 1] - chars2[0] < CharacterClasses.MAX_BITMAP_SPAN) {
+
+            final long[] bitmap = CharacterClasses.bitmap(chars2);
+            final int    offset = chars2[0];
+
+            return new MultivalentCharClass(chars) {
+
+                @Override public boolean
+                matches(int cp) { return CharacterClasses.bitmapContains(bitmap, offset, cp); }
+
+                @Override protected String
+                toStringWithoutNext() { return "oneOfManyCharsBitmap(" + Arrays.toString(chars2) + ")"; }
+            };
+        }
+
         return new MultivalentCharClass(chars) {
 
             @Override public boolean
@@ -435,6 +506,9 @@ class CharacterClasses {
             @Override public int
             sizeBound() { return codePoints.length; }
 
+            @Override int[]
+            ranges() { return CodePointRanges.of(codePoints); }
+
             @Override protected String
             toStringWithoutNext() {
                 return "oneOfManyCodePointsBinarySearch(" + PrettyPrinter.toString(codePoints) + ")";
@@ -475,12 +549,20 @@ class CharacterClasses {
 
         if (rhs == CharacterClasses.FAIL) return lhs;
 
-        // Optimization when both operands are multivalent code points.
-        if (lhs instanceof MultivalentCharacterClass && rhs instanceof MultivalentCharacterClass) {
-            MultivalentCharacterClass lhs2 = (MultivalentCharacterClass) lhs;
-            MultivalentCharacterClass rhs2 = (MultivalentCharacterClass) rhs;
+        // Iff the code points of both operands are known, then normalize the union into one flat character class.
+        int[] lhsRanges = lhs.ranges(), rhsRanges = rhs.ranges();
+        if (lhsRanges != null && rhsRanges != null) {
+            return CharacterClasses.codePointRanges(CodePointRanges.union(lhsRanges, rhsRanges));
+        }
 
-            return CharacterClasses.oneOfManyCodePoints(Sets.union(lhs2.codePoints, rhs2.codePoints));
+        // Otherwise (UNICODE properties), tabulate the union lazily.
+        String lhsKey = CharacterClasses.key(lhs, lhsRanges), rhsKey = CharacterClasses.key(rhs, rhsRanges);
+        if (lhsKey != null && rhsKey != null) {
+            return CharacterClasses.unicodeProperty("(" + lhsKey + "||" + rhsKey + ')', new IntPredicate() {
+
+                @Override public boolean
+                evaluate(int subject) { return lhs.matches(subject) || rhs.matches(subject); }
+            }, "union(" + lhs + ", " + rhs + ')');
         }
 
         final int lb = Math.min(lhs.lowerBound(), rhs.lowerBound());
@@ -507,6 +589,19 @@ class CharacterClasses {
     public static CharacterClass
     optimize(CharacterClass cc) {
 
+        int[] ranges = cc.ranges();
+
+        return ranges == null ? cc : CharacterClasses.codePointRanges(ranges);
+    }
+
+    /**
+     * @param ranges A "canonical range set", see {@link CodePointRanges}
+     * @return       A perfomance-optimized character class that matches exactly the code points in the
+     *               <var>ranges</var>
+     */
+    public static CharacterClass
+    codePointRanges(final int[] ranges) {
+
         // Some performance tests on JRE 8 with "-server":
         //   "c == this.c"                  => 1.1 us
         //   "c == this.c1 || c == this.c2" => 2.1 us
@@ -522,108 +617,195 @@ class CharacterClasses {
         // Summary:
         // For 1 character,          "c == this.c"                  is optimal (1.1 us)
         // For 2 characters,         "c == this.c1 || c == this.c2" is optimal (2.1 us)
-        // For 3 or more characters, "this.bitSet.get(c)"           is optimal (3.1 us)
-        // If bitSet cannot be used (c much greater than 256),
-        //                           "this.intHashSet.contains()"   is optimal (5.7 us)
+        // For 3 or more characters, "this.bitSet.get(c)"           is optimal (3.1 us), unless they form one
+        //                                                          contiguous range, or a case-insensitive one
         // The following are optimal in none of the cases, and are thus not useful:
         //    "this.s.indexOf(c) == -1"
         //    "this.intArray[i] == c"
+        //    "this.intHashSet.contains()" (boxes "c" when it is greater than 127)
+        // Instead of a "BitSet", a "long[]" bitmap that is offset by the minimum value is used, so that it is small
+        // even when the code points are much greater than 256.
 
-        // Convert the character class into a Set<Integer>, and determine the minimum and maximum value.
-        final Set<Integer> integerSet;
-        final int          minValue, maxValue;
-        {
-            final int lb = cc.lowerBound(), ub = cc.upperBound();
+        final int size = CodePointRanges.size(ranges);
+        if (size == 0)                            return CharacterClasses.FAIL;
+        if (size == Character.MAX_CODE_POINT + 1) return new CharacterClasses.AnyCharacter();
 
-            if (ub - lb > 1000) {
+        CharacterClass fc = CharacterClasses.fewComparisons(ranges, size);
+        if (fc != null) return fc;
 
-                // Character class is too widely spread for set optimization.
-                return cc;
-            }
+        final int minValue = ranges[0], maxValue = ranges[ranges.length - 1] - 1;
 
-            integerSet = new HashSet<Integer>();
+        if (maxValue - minValue < CharacterClasses.MAX_BITMAP_SPAN) {
 
-            int min = Integer.MAX_VALUE, max = 0;
-            for (int c = lb; c < ub; c++) {
-                if (cc.matches(c)) {
-                    integerSet.add(c);
-                    if (c < min) min = c;
-                    if (c > max) max = c;
-                }
-            }
+            final long[] bitmap = CharacterClasses.bitmap(CodePointRanges.codePoints(ranges));
+
+            return new CharacterClass(Character.charCount(minValue), Character.charCount(maxValue)) {
 
-            minValue = min;
-            maxValue = max;
+                @Override public boolean matches(int c) { return CharacterClasses.bitmapContains(bitmap, minValue, c); }
+                @Override public int     lowerBound()   { return minValue;                                            }
+                @Override public int     upperBound()   { return maxValue + 1;                                        }
+                @Override public int     sizeBound()    { return size;                                                }
+                @Override int[]          ranges()       { return ranges;                                              }
+
+                @Override public String
+                toStringWithoutNext() { return CharacterClasses.bitmapToString(ranges); }
+            };
         }
 
-        // Transform the "integerSet" into a character class.
-        final int size = integerSet.size();
-        switch (size) {
+        // Iff only a few code points are NOT in the set (as for "[^abc]"), then compare with these, or use a bitmap of
+        // them.
+        final int[] complement = CodePointRanges.complement(ranges);
 
-        case 0:
-            return CharacterClasses.FAIL;
+        final CharacterClass operand = CharacterClasses.fewComparisons(complement, CodePointRanges.size(complement));
+        if (operand != null) {
 
-        case 1:
-            return CharacterClasses.literalCharacter(integerSet.iterator().next());
+            return new CharacterClass() {
 
-        case 2:
-            {
-                Iterator<Integer> it = integerSet.iterator();
-                return CharacterClasses.oneOfTwoCodePoints(it.next(), it.next());
-            }
+                @Override public boolean
+                matches(int c) { return !operand.matches(c); }
 
-        case 3:
-            {
-                Iterator<Integer> it = integerSet.iterator();
-                return CharacterClasses.oneOfThreeCodePoints(it.next(), it.next(), it.next());
-            }
+                @Override int[]
+                ranges() { return ranges; }
+
+                @Override public String
+                toStringWithoutNext() { return "negate(" + operand + ")"; }
+            };
         }
 
-        if (maxValue < 256) {
+        final int   cMinValue  = complement[0], cMaxValue = complement[complement.length - 1] - 1;
+        if (cMaxValue - cMinValue < CharacterClasses.MAX_BITMAP_SPAN) {
 
-            // Optimize into a "BitSet" if the maxValue is small enough.
-            final BitSet bitSet = new BitSet(maxValue + 1);
-            for (int c : integerSet) bitSet.set(c);
+            final long[] bitmap = CharacterClasses.bitmap(CodePointRanges.codePoints(complement));
 
-            return new CharacterClass(1) {
+            return new CharacterClass() {
 
-                @Override public boolean matches(int c) { return bitSet.get(c); }
-                @Override public int     lowerBound()   { return minValue;      }
-                @Override public int     upperBound()   { return maxValue + 1;  }
-                @Override public int     sizeBound()    { return size;          }
+                @Override public boolean
+                matches(int c) { return !CharacterClasses.bitmapContains(bitmap, cMinValue, c); }
+
+                @Override int[]
+                ranges() { return ranges; }
 
                 @Override public String
-                toStringWithoutNext() {
-                    StringBuilder sb = new StringBuilder("bitSet(");
-                    for (int i = minValue; i <= maxValue; i++) {
-                        if (bitSet.get(i)) {
-                            (sb.length() == 7 ? sb.append('\'') : sb.append(", '")).append((char) i).append('\'');
-                        }
-                    }
-                    return sb.append(')').toString();
-                }
+                toStringWithoutNext() { return "negate(" + CharacterClasses.bitmapToString(complement) + ")"; }
             };
-        } else {
+        }
 
-            return new CharacterClass(1, 2) {
+        // A few, widely spread code points make a multivalent character class, which gives opportunities for later
+        // optimization.
+        if (size <= 16 && !CharacterClasses.containsSurrogates(ranges)) {
+            HashSet<Integer> codePoints = new HashSet<Integer>();
+            for (int cp : CodePointRanges.codePoints(ranges)) codePoints.add(cp);
+            return CharacterClasses.oneOfManyCodePoints(codePoints);
+        }
 
-                @Override public boolean matches(int c) { return integerSet.contains(c); }
-                @Override public int     lowerBound()   { return minValue;               }
-                @Override public int     upperBound()   { return maxValue + 1;           }
-                @Override public int     sizeBound()    { return size;                   }
+        // Otherwise, look up the code point in a two-stage table.
+        final CodePointTable table = CodePointTable.ofRanges(ranges);
 
-                @Override public String
-                toStringWithoutNext() {
+        return new CharacterClass(Character.charCount(minValue), Character.charCount(maxValue)) {
 
-                    ArrayList<Integer> l = new ArrayList<Integer>(integerSet);
-                    Collections.sort(l);
+            @Override public boolean matches(int c) { return table.evaluate(c); }
+            @Override public int     lowerBound()   { return minValue;          }
+            @Override public int     upperBound()   { return maxValue + 1;      }
+            @Override public int     sizeBound()    { return size;              }
+            @Override int[]          ranges()       { return ranges;            }
 
-                    StringBuilder sb = new StringBuilder("set('").appendCodePoint(l.get(0));
-                    for (int i = 1; i < l.size(); i++) sb.append("', '").appendCodePoint(l.get(i));
-                    return sb.append("')").toString();
-                }
-            };
+            @Override public String
+            toStringWithoutNext() { return "ranges(" + CodePointRanges.toString(ranges) + ")"; }
+        };
+    }
+
+    /**
+     * @return A character class that matches exactly the code points in the <var>ranges</var> with at most four
+     *         comparisons, or {@code null} iff the <var>ranges</var> are not that simple
+     */
+    @Nullable private static CharacterClass
+    fewComparisons(int[] ranges, int size) {
+
+        // Notice: These are multivalent, which gives opportunities for later optimization. Bare surrogates, however,
+        // must not be matched char-wise; see "BareSurrogate".
+        if (size == 1 || (size <= 3 && !CharacterClasses.containsSurrogates(ranges))) {
+            int[] codePoints = CodePointRanges.codePoints(ranges);
+            return (
+                size == 1 ? CharacterClasses.literalCharacter(codePoints[0]) :
+                size == 2 ? CharacterClasses.oneOfTwoCodePoints(codePoints[0], codePoints[1]) :
+                CharacterClasses.oneOfThreeCodePoints(codePoints[0], codePoints[1], codePoints[2])
+            );
         }
+
+        if (ranges.length == 2) return CharacterClasses.range(ranges[0], ranges[1] - 1);
+
+        // E.g. "(?i)[a-k]".
+        if (
+            ranges.length == 4
+            && ranges[0] >= 'A'
+            && ranges[1] <= 'Z' + 1
+            && ranges[2] == ranges[0] + 32
+            && ranges[3] == ranges[1] + 32
+        ) return CharacterClasses.caseInsensitiveRange(ranges[2], ranges[3] - 1);
+
+        return null;
+    }
+
+    private static boolean
+    containsSurrogates(int[] ranges) {
+        return CodePointRanges.intersection(ranges, CharacterClasses.SURROGATES).length > 0;
+    }
+
+    private static final int[] SURROGATES = { Character.MIN_SURROGATE, Character.MAX_SURROGATE + 1 };
+
+    /**
+     * @return E.g. {@code "bitSet('A', 'C', 'E')"}
+     */
+    private static String
+    bitmapToString(int[] ranges) {
+
+        StringBuilder sb = new StringBuilder(ranges[ranges.length - 1] <= 256 ? "bitSet(" : "set(");
+
+        // Enumerate the code points, unless there are very many.
+        if (CodePointRanges.size(ranges) > 256) {
+            return sb.append(CodePointRanges.toString(ranges)).append(')').toString();
+        }
+
+        int[] codePoints = CodePointRanges.codePoints(ranges);
+        for (int i = 0; i < codePoints.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append('\'').appendCodePoint(codePoints[i]).append('\'');
+        }
+
+        return sb.append(')').toString();
+    }
+
+    /**
+     * The maximum difference between the greatest and the least code point for which {@link #bitmap(int[])} is
+     * used; 4096 code points make a 512 byte bitmap.
+     */
+    private static final int MAX_BITMAP_SPAN = 4096;
+
+    /**
+     * @param sortedCodePoints Must not be empty
+     * @return                 A bitmap where bit <var>cp</var>{@code - sortedCodePoints[0]} is set for each of the
+     *                         <var>sortedCodePoints</var>
+     * @see                    #bitmapContains(long[], int, int)
+     */
+    private static long[]
+    bitmap(int[] sortedCodePoints) {
+
+        int offset = sortedCodePoints[0];
+
+        long[] result = new long[((sortedCodePoints[sortedCodePoints.length - 1] - offset) >> 6) + 1];
+        for (int cp : sortedCodePoints) result[(cp - offset) >> 6] |= 1L << (cp - offset);
+
+        return result;
+    }
+
+    /**
+     * @return Whether the <var>bitmap</var>, as created by {@link #bitmap(int[])}, contains the code point
+     *         <var>cp</var>
+     */
+    private static boolean
+    bitmapContains(long[] bitmap, int offset, int cp) {
+        int i = cp - offset;
+        return i >= 0 && (i >> 6) < bitmap.length && (bitmap[i >> 6] & (1L << i)) != 0;
     }
 
     /**
@@ -635,12 +817,21 @@ class CharacterClasses {
         assert lhs.next == Sequences.TERMINAL;
         assert rhs.next == Sequences.TERMINAL;
 
-        // Optimization when both operands are multivalent character classes.
-        if (lhs instanceof MultivalentCharacterClass && rhs instanceof MultivalentCharacterClass) {
-            MultivalentCharacterClass lhs2 = (MultivalentCharacterClass) lhs;
-            MultivalentCharacterClass rhs2 = (MultivalentCharacterClass) rhs;
+        // Iff the code points of both operands are known, then normalize the intersection into one flat character
+        // class.
+        int[] lhsRanges = lhs.ranges(), rhsRanges = rhs.ranges();
+        if (lhsRanges != null && rhsRanges != null) {
+            return CharacterClasses.codePointRanges(CodePointRanges.intersection(lhsRanges, rhsRanges));
+        }
 
-            return CharacterClasses.oneOfManyCodePoints(Sets.intersection(lhs2.codePoints, rhs2.codePoints));
+        // Otherwise (UNICODE properties), tabulate the intersection lazily.
+        String lhsKey = CharacterClasses.key(lhs, lhsRanges), rhsKey = CharacterClasses.key(rhs, rhsRanges);
+        if (lhsKey != null && rhsKey != null) {
+            return CharacterClasses.unicodeProperty("(" + lhsKey + "&&" + rhsKey + ')', new IntPredicate() {
+
+                @Override public boolean
+                evaluate(int subject) { return lhs.matches(subject) && rhs.matches(subject); }
+            }, "intersection(" + lhs + ", " + rhs + ')');
         }
 
         final int lb = Math.max(lhs.lowerBound(), rhs.lowerBound());
@@ -684,6 +875,9 @@ class CharacterClasses {
                 @Override public int lowerBound() { return lhs;     }
                 @Override public int upperBound() { return rhs + 1; }
 
+                @Override int[]
+                ranges() { return new int[] { lhs, rhs + 1 }; }
+
                 @Override protected void
                 checkWithoutNext(int offset, Consumer<Integer> result) {
                     for (int cp = lhs; cp <= rhs; cp++) result.consume(cp);
@@ -711,6 +905,9 @@ class CharacterClasses {
             @Override public int upperBound() { return rhs + 1;       }
             @Override public int sizeBound()  { return rhs - lhs + 1; }
 
+            @Override int[]
+            ranges() { return new int[] { lhs, rhs + 1 }; }
+
             @Override public String
             toStringWithoutNext() {
                 return (
@@ -746,6 +943,22 @@ class CharacterClasses {
                 return subject >= lhs && subject <= rhs;
             }
 
+            @Override int[]
+            ranges() {
+
+                int[] result = { lhs, rhs + 1 };
+
+                // The ASCII letters in the range also match in the other case.
+                int from = Math.max(lhs, 'a'), to = Math.min(rhs, 'z');
+                if (from <= to) result = CodePointRanges.union(result, new int[] { from - 32, to - 31 });
+
+                from = Math.max(lhs, 'A');
+                to   = Math.min(rhs, 'Z');
+                if (from <= to) result = CodePointRanges.union(result, new int[] { from + 32, to + 33 });
+
+                return result;
+            }
+
             @Override public String
             toStringWithoutNext() {
                 return (
@@ -770,21 +983,17 @@ class CharacterClasses {
 
         if (lhs > rhs) return CharacterClasses.FAIL;
 
+        // The code points OUTSIDE of the range that match case-insensitively, e.g. "A" through "F" for "a-f".
+        final int[]          variants     = CaseFolding.caseVariants(lhs, rhs);
+        final CodePointTable caseVariants = CodePointTable.of(variants);
+
         return new CharacterClass() {
 
             @Override public boolean
-            matches(int subject) {
-
-                if (subject >= lhs && subject <= rhs) return true;
+            matches(int subject) { return (subject >= lhs && subject <= rhs) || caseVariants.evaluate(subject); }
 
-                subject = Character.toUpperCase(subject);
-                if (subject >= lhs && subject <= rhs) return true;
-
-                subject = Character.toLowerCase(subject);
-                if (subject >= lhs && subject <= rhs) return true;
-
-                return false;
-            }
+            @Override int[]
+            ranges() { return CodePointRanges.union(new int[] { lhs, rhs + 1 }, CodePointRanges.of(variants)); }
 
             @Override public String
             toStringWithoutNext() {
@@ -803,7 +1012,54 @@ class CharacterClasses {
     /**  An (ASCII) digit: [0-9] */
     public static CharacterClass
     digit(boolean unicode) {
-        return CharacterClasses.characterClass(unicode ? Characters.IS_UNICODE_DIGIT : Characters.IS_POSIX_DIGIT);
+        return (
+            unicode
+            ? CharacterClasses.unicodeProperty("\\dU", Characters.IS_UNICODE_DIGIT)
+            : CharacterClasses.characterClass(CharacterClasses.POSIX_DIGIT, Characters.IS_POSIX_DIGIT)
+        );
+    }
+
+    /**
+     * The lookup tables for the predefined character classes in ASCII mode, i.e. without {@link
+     * de.unkrig.ref4j.Pattern#UNICODE_CHARACTER_CLASS}. (In UNICODE mode, the tables are computed only when needed,
+     * see {@link #unicodeProperty(String, Predicate)}.)
+     */
+    private static final CodePointTable
+    POSIX_DIGIT = CodePointTable.ascii(CharacterClasses.intPredicate(Characters.IS_POSIX_DIGIT)),
+    POSIX_SPACE = CodePointTable.ascii(CharacterClasses.intPredicate(Characters.IS_POSIX_SPACE)),
+    WORD        = CodePointTable.ascii(CharacterClasses.intPredicate(Characters.IS_WORD));
+
+    /**
+     * @return The lookup table for the code points that {@code "(?U)\\w"} matches; also used by {@link
+     *         Sequences#wordBoundary()}
+     */
+    static CodePointTable
+    unicodeWordTable() {
+        return CodePointTable.get("\\wU", CharacterClasses.intPredicate(Characters.IS_UNICODE_WORD));
+    }
+
+    private static IntPredicate
+    intPredicate(final Predicate<Integer> predicate) {
+
+        return new IntPredicate() {
+
+            @Override public boolean
+            evaluate(int subject) { return predicate.evaluate(subject); }
+        };
+    }
+
+    /**
+     * Looks up the code points in the <var>table</var>, which must be equivalent with the <var>predicate</var>, and
+     * must have been created by {@link CodePointTable#ascii(IntPredicate)}.
+     */
+    private static CharacterClass
+    characterClass(final CodePointTable table, final Predicate<Integer> predicate) {
+
+        return new CharacterClass() {
+            @Override public boolean matches(int subject)  { return table.evaluate(subject); }
+            @Override public int     upperBound()          { return 128;                     }
+            @Override public String  toStringWithoutNext() { return predicate.toString();    }
+        };
     }
 
     /**
@@ -812,8 +1068,18 @@ class CharacterClasses {
     public static CharacterClass
     negate(final CharacterClass operand, final String toString) {
 
-        if (operand instanceof CharacterClasses.AnyCharacter) return CharacterClasses.FAIL;
-        if (operand == CharacterClasses.FAIL)                 return new CharacterClasses.AnyCharacter();
+        // Iff the code points of the operand are known, then normalize the negation into one flat character class.
+        int[] ranges = operand.ranges();
+        if (ranges != null) return CharacterClasses.codePointRanges(CodePointRanges.complement(ranges));
+
+        // Otherwise (UNICODE properties), tabulate the negation lazily.
+        if (operand instanceof UnicodeProperty) {
+            return CharacterClasses.unicodeProperty("^" + ((UnicodeProperty) operand).key, new IntPredicate() {
+
+                @Override public boolean
+                evaluate(int subject) { return !operand.matches(subject); }
+            }, "negate(" + operand + ")");
+        }
 
         return new CharacterClass() {
 
@@ -831,15 +1097,16 @@ class CharacterClasses {
      */
     public static CharacterClass
     horizontalWhitespace() {
-        return CharacterClasses.characterClass(Characters.IS_HORIZONTAL_WHITESPACE);
+        return CharacterClasses.unicodeProperty("\\h", Characters.IS_HORIZONTAL_WHITESPACE);
     }
 
     /**  A whitespace character: [ \t\n\x0B\f\r] */
     public static CharacterClass
     whitespace(boolean unicode) {
-
-        return CharacterClasses.characterClass(
-            unicode ? Characters.IS_UNICODE_WHITE_SPACE : Characters.IS_POSIX_SPACE
+        return (
+            unicode
+            ? CharacterClasses.unicodeProperty("\\sU", Characters.IS_UNICODE_WHITE_SPACE)
+            : CharacterClasses.characterClass(CharacterClasses.POSIX_SPACE, Characters.IS_POSIX_SPACE)
         );
     }
 
@@ -855,7 +1122,11 @@ class CharacterClasses {
      */
     public static CharacterClass
     word(final boolean unicode) {
-        return CharacterClasses.characterClass(unicode ? Characters.IS_UNICODE_WORD : Characters.IS_WORD);
+        return (
+            unicode
+            ? CharacterClasses.unicodeProperty("\\wU", Characters.IS_UNICODE_WORD)
+            : CharacterClasses.characterClass(CharacterClasses.WORD, Characters.IS_WORD)
+        );
     }
 
     /**
@@ -880,8 +1151,9 @@ class CharacterClasses {
      */
     public static
     class AnyCharacter extends CharacterClass {
-        @Override public boolean matches(int cp)       { return true;           }
-        @Override public String  toStringWithoutNext() { return "anyCharacter"; }
+        @Override public boolean matches(int cp)       { return true;                 }
+        @Override int[]          ranges()              { return CodePointRanges.ALL; }
+        @Override public String  toStringWithoutNext() { return "anyCharacter";       }
     }
 
     /**
@@ -892,6 +1164,9 @@ class CharacterClasses {
         return new CharacterClass() {
             @Override public boolean   matches(int c)        { return c != '\n';           }
             @Override protected String toStringWithoutNext() { return "anyCharButNewline"; }
+
+            @Override int[]
+            ranges() { return CodePointRanges.complement(new int[] { '\n', '\n' + 1 }); }
         };
     }
 
@@ -912,6 +1187,9 @@ class CharacterClasses {
                 );
             }
 
+            @Override int[]
+            ranges() { return CodePointRanges.complement(new int[] { 0x0a, 0x0e, 0x85, 0x86, 0x2028, 0x202a }); }
+
             @Override protected String
             toStringWithoutNext() { return "anyCharButLineBreak"; }
         };
@@ -0,0 +1,213 @@
+
+/*
+ * de.unkrig.lfr - A super-fast regular expression evaluator
+ *
+ * Copyright (c) 2017, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.unkrig.lfr.core;
+
+import java.util.Arrays;
+
+/**
+ * Utility methods for sets of code points that are represented as "canonical range sets", i.e. as sorted arrays
+ * {@code [ from1, to1, from2, to2, ... ]} of disjoint, non-adjacent ranges, where the "from"s are inclusive, and the
+ * "to"s are exclusive. Canonical range sets are never modified after their creation.
+ */
+final
+class CodePointRanges {
+
+    private CodePointRanges() {}
+
+    /**
+     * The canonical range set that contains <em>all</em> code points.
+     */
+    static final int[] ALL = { Character.MIN_CODE_POINT, Character.MAX_CODE_POINT + 1 };
+
+    /**
+     * @param sortedCodePoints In ascending order; duplicates are allowed
+     */
+    static int[]
+    of(int[] sortedCodePoints) {
+
+        int[] result = new int[2 * sortedCodePoints.length];
+        int   n      = 0;
+        for (int cp : sortedCodePoints) {
+            if (n > 0 && cp <= result[n - 1]) {
+                if (cp == result[n - 1]) result[n - 1]++;
+            } else {
+                result[n++] = cp;
+                result[n++] = cp + 1;
+            }
+        }
+
+        return Arrays.copyOf(result, n);
+    }
+
+    static int[]
+    union(int[] lhs, int[] rhs) {
+
+        int[] result = new int[lhs.length + rhs.length];
+        int   n      = 0;
+        for (int i = 0, j = 0; i < lhs.length || j < rhs.length;) {
+
+            // Take the range that starts first.
+            int from, to;
+            if (j == rhs.length || (i < lhs.length && lhs[i] <= rhs[j])) {
+                from = lhs[i++];
+                to   = lhs[i++];
+            } else {
+                from = rhs[j++];
+                to   = rhs[j++];
+            }
+
+            // Merge it with the preceding range, if they overlap or are adjacent.
+            if (n > 0 && from <= result[n - 1]) {
+                if (to > result[n - 1]) result[n - 1] = to;
+            } else {
+                result[n++] = from;
+                result[n++] = to;
+            }
+        }
+
+        return Arrays.copyOf(result, n);
+    }
+
+    static int[]
+    intersection(int[] lhs, int[] rhs) {
+
+        int[] result = new int[lhs.length + rhs.length];
+        int   n      = 0;
+        for (int i = 0, j = 0; i < lhs.length && j < rhs.length;) {
+
+            int from = Math.max(lhs[i], rhs[j]), to = Math.min(lhs[i + 1], rhs[j + 1]);
+            if (from < to) {
+                result[n++] = from;
+                result[n++] = to;
+            }
+
+            // Advance past the range that ends first.
+            if (lhs[i + 1] < rhs[j + 1]) {
+                i += 2;
+            } else {
+                j += 2;
+            }
+        }
+
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * @return All code points that are <em>not</em> in the <var>ranges</var>
+     */
+    static int[]
+    complement(int[] ranges) {
+
+        int[] result = new int[ranges.length + 2];
+        int   n      = 0;
+        int   from   = Character.MIN_CODE_POINT;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > from) {
+                result[n++] = from;
+                result[n++] = ranges[i];
+            }
+            from = ranges[i + 1];
+        }
+        if (from <= Character.MAX_CODE_POINT) {
+            result[n++] = from;
+            result[n++] = Character.MAX_CODE_POINT + 1;
+        }
+
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * @return The number of code points in the <var>ranges</var>
+     */
+    static int
+    size(int[] ranges) {
+
+        int result = 0;
+        for (int i = 0; i < ranges.length; i += 2) result += ranges[i + 1] - ranges[i];
+
+        return result;
+    }
+
+    /**
+     * @return The code points in the <var>ranges</var>, in ascending order
+     */
+    static int[]
+    codePoints(int[] ranges) {
+
+        int[] result = new int[CodePointRanges.size(ranges)];
+        int   n      = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            for (int cp = ranges[i]; cp < ranges[i + 1]; cp++) result[n++] = cp;
+        }
+
+        return result;
+    }
+
+    /**
+     * Determines by binary search whether the <var>cp</var> is in the <var>ranges</var>.
+     */
+    static boolean
+    contains(int[] ranges, int cp) {
+
+        int lo = 0, hi = ranges.length >> 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cp < ranges[2 * mid]) {
+                hi = mid;
+            } else
+            if (cp >= ranges[2 * mid + 1]) {
+                lo = mid + 1;
+            } else
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return E.g. {@code "'0' - '9', '_', 'a' - 'z'"}; very long range sets are abbreviated with {@code "..."}
+     */
+    static String
+    toString(int[] ranges) {
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ranges.length; i += 2) {
+
+            if (i > 0) sb.append(", ");
+
+            if (i == 32) return sb.append("...").toString();
+
+            sb.append('\'').appendCodePoint(ranges[i]).append('\'');
+            if (ranges[i + 1] - ranges[i] > 1) sb.append(" - '").appendCodePoint(ranges[i + 1] - 1).append('\'');
+        }
+
+        return sb.toString();
+    }
+}
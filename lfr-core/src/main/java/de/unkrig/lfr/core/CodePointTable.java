@@ -0,0 +1,226 @@
+
+/*
+ * de.unkrig.lfr - A super-fast regular expression evaluator
+ *
+ * Copyright (c) 2017, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.lfr.core;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An immutable, compact lookup table that tells whether a code point has a given property, e.g. whether it is in
+ * UNICODE general category "L", or in script "Cyrillic".
+ * <p>
+ *   It is a "two-stage" table: The first stage maps the high bits of the code point to one of the <em>distinct</em>
+ *   256-bit blocks of the second stage, so that the many identical blocks (typically all zeros or all ones) are
+ *   stored only once. A lookup costs two array accesses, and neither boxes nor allocates.
+ * </p>
+ * <p>
+ *   The ASCII code points are additionally held in two fields, so that their lookup costs only one memory access.
+ * </p>
+ * <p>
+ *   Only the BMP code points are tabulated, because computing the table takes one evaluation of the property for
+ *   each code point; for the (rare) supplementary code points, the property is evaluated directly.
+ * </p>
+ */
+final
+class CodePointTable implements IntPredicate {
+
+    private static final int BLOCK_BITS = 8;
+
+    /**
+     * The bits for U+0000 through U+003F and U+0040 through U+007F.
+     */
+    private final long ascii0, ascii1;
+
+    /**
+     * Maps {@code cp >> 8} to the index of the block in {@link #blocks}.
+     */
+    private final char[] index;
+
+    /**
+     * The distinct blocks, 4 {@code long}s (256 bits) each.
+     */
+    private final long[] blocks;
+
+    /**
+     * Evaluates the property for the supplementary code points.
+     */
+    private final IntPredicate supplementary;
+
+    private
+    CodePointTable(char[] index, long[] blocks, IntPredicate supplementary) {
+        this.index         = index;
+        this.blocks        = blocks;
+        this.supplementary = supplementary;
+        this.ascii0        = blocks[index[0] << 2];
+        this.ascii1        = blocks[index[0] << 2 | 1];
+    }
+
+    @Override public boolean
+    evaluate(int subject) {
+
+        if (subject < 128) return ((subject < 64 ? this.ascii0 : this.ascii1) & 1L << subject) != 0;
+
+        int hi = subject >>> CodePointTable.BLOCK_BITS;
+        if (hi >= this.index.length) return this.supplementary.evaluate(subject);
+
+        return (this.blocks[this.index[hi] << 2 | (subject >> 6 & 3)] & 1L << subject) != 0;
+    }
+
+    /**
+     * The tables computed so far, see {@link #get(String, IntPredicate)}.
+     */
+    private static final ConcurrentMap<String, CodePointTable>
+    CACHE = new ConcurrentHashMap<String, CodePointTable>();
+
+    /**
+     * Returns the table for the given <var>key</var>; iff there is none yet, then it is computed from the
+     * <var>predicate</var> (which takes some milliseconds) and shared from then on.
+     *
+     * @param key Identifies the property, e.g. {@code "gc=Lu"}
+     */
+    static CodePointTable
+    get(String key, IntPredicate predicate) {
+
+        CodePointTable result = CodePointTable.CACHE.get(key);
+        if (result != null) return result;
+
+        result = CodePointTable.of(predicate);
+
+        CodePointTable previous = CodePointTable.CACHE.putIfAbsent(key, result);
+        return previous != null ? previous : result;
+    }
+
+    /**
+     * Evaluates the <var>predicate</var> only for the ASCII code points (U+0000 through U+007F), and stores the
+     * results in a new table; all other code points are assumed to not qualify.
+     */
+    static CodePointTable
+    ascii(IntPredicate predicate) {
+
+        long[] blocks = new long[8]; // Block #0 holds the ASCII code points, block #1 is all zeros.
+        for (int cp = 0; cp < 128; cp++) {
+            if (predicate.evaluate(cp)) blocks[cp >> 6] |= 1L << cp;
+        }
+
+        char[] index = new char[Character.MIN_SUPPLEMENTARY_CODE_POINT >> CodePointTable.BLOCK_BITS];
+        Arrays.fill(index, 1, index.length, (char) 1);
+
+        return new CodePointTable(index, blocks, new IntPredicate() {
+
+            @Override public boolean
+            evaluate(int subject) { return false; }
+        });
+    }
+
+    /**
+     * Evaluates the <var>predicate</var> for all BMP code points (U+0000 through U+FFFF), and stores the results in
+     * a new table.
+     */
+    static CodePointTable
+    of(IntPredicate predicate) {
+
+        long[] bits = new long[Character.MIN_SUPPLEMENTARY_CODE_POINT >> 6];
+        for (int cp = 0; cp < Character.MIN_SUPPLEMENTARY_CODE_POINT; cp++) {
+            if (predicate.evaluate(cp)) bits[cp >> 6] |= 1L << cp;
+        }
+
+        return CodePointTable.compress(bits, predicate);
+    }
+
+    /**
+     * @param sortedCodePoints The code points that qualify, in ascending order
+     */
+    static CodePointTable
+    of(final int[] sortedCodePoints) {
+
+        long[] bits = new long[Character.MIN_SUPPLEMENTARY_CODE_POINT >> 6];
+        for (int cp : sortedCodePoints) {
+            if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT) bits[cp >> 6] |= 1L << cp;
+        }
+
+        return CodePointTable.compress(bits, new IntPredicate() {
+
+            @Override public boolean
+            evaluate(int subject) { return Arrays.binarySearch(sortedCodePoints, subject) >= 0; }
+        });
+    }
+
+    /**
+     * @param ranges A "canonical range set", see {@link CodePointRanges}
+     */
+    static CodePointTable
+    ofRanges(final int[] ranges) {
+
+        long[] bits = new long[Character.MIN_SUPPLEMENTARY_CODE_POINT >> 6];
+        for (int i = 0; i < ranges.length && ranges[i] < Character.MIN_SUPPLEMENTARY_CODE_POINT; i += 2) {
+            int to = Math.min(ranges[i + 1], Character.MIN_SUPPLEMENTARY_CODE_POINT);
+            for (int cp = ranges[i]; cp < to; cp++) bits[cp >> 6] |= 1L << cp;
+        }
+
+        return CodePointTable.compress(bits, new IntPredicate() {
+
+            @Override public boolean
+            evaluate(int subject) { return CodePointRanges.contains(ranges, subject); }
+        });
+    }
+
+    /**
+     * Splits the <var>bits</var> (one for each BMP code point) into blocks, and stores each distinct block only once.
+     */
+    private static CodePointTable
+    compress(long[] bits, IntPredicate supplementary) {
+
+        char[] index  = new char[Character.MIN_SUPPLEMENTARY_CODE_POINT >> CodePointTable.BLOCK_BITS];
+        long[] blocks = new long[4 * 16];
+        int    n      = 0; // Number of distinct blocks.
+
+        for (int hi = 0; hi < index.length; hi++) {
+
+            // Re-use an identical block, if any.
+            int b = 0;
+            while (
+                b < n
+                && (
+                    blocks[4 * b] != bits[4 * hi]
+                    || blocks[4 * b + 1] != bits[4 * hi + 1]
+                    || blocks[4 * b + 2] != bits[4 * hi + 2]
+                    || blocks[4 * b + 3] != bits[4 * hi + 3]
+                )
+            ) b++;
+
+            if (b == n) {
+                if (4 * n == blocks.length) blocks = Arrays.copyOf(blocks, 2 * blocks.length);
+                System.arraycopy(bits, 4 * hi, blocks, 4 * n++, 4);
+            }
+
+            index[hi] = (char) b;
+        }
+
+        return new CodePointTable(index, Arrays.copyOf(blocks, 4 * n), supplementary);
+    }
+}
@@ -0,0 +1,203 @@
+
+/*
+ * de.unkrig.lfr - A super-fast regular expression evaluator
+ *
+ * Copyright (c) 2017, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.lfr.core;
+
+import java.util.Arrays;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * The superclass of the classes that {@link NfaCompiler} generates at runtime; each of these implements the
+ * backtracking evaluation of one specific {@link Nfa} in one single method.
+ * <p>
+ *   This class is PUBLIC only because the generated classes are defined by a separate class loader; it is not
+ *   intended to be used by client code.
+ * </p>
+ * <p>
+ *   Instances are <em>not</em> thread-safe; each {@link MatcherImpl} uses its own instance.
+ * </p>
+ *
+ * @see Pattern#BYTECODE
+ */
+public abstract
+class CompiledNfa {
+
+    /**
+     * The character classes of the NFA's {@link Nfa#CHAR} instructions, indexed by instruction.
+     */
+    protected final CharacterClass[] classes;
+
+    /**
+     * For each loop of the NFA: The offset where the current iteration started, or -1.
+     */
+    protected final int[] loopStarts;
+
+    /**
+     * The backtracking stack; each entry consists of three {@code int}s.
+     */
+    protected int[] stack = new int[48];
+
+    /**
+     * Whether the last evaluation attempted to peek at or behind the end of the region.
+     */
+    protected boolean hitEnd;
+
+    /**
+     * The matcher of the current evaluation; enforces the step limit and the deadline.
+     */
+    @Nullable private MatcherImpl matcher;
+
+    protected
+    CompiledNfa(CharacterClass[] classes, int loopCount) {
+        this.classes    = classes;
+        this.loopStarts = new int[loopCount];
+    }
+
+    /**
+     * @return A new instance of the same (generated) class, for the same NFA
+     */
+    protected abstract CompiledNfa
+    newInstance();
+
+    /**
+     * Attempts to match at the given <var>offset</var>, and updates the <var>groups</var> (except 0 and 1) iff
+     * successful. Expects that all {@link #loopStarts} are -1.
+     *
+     * @param toEnd Whether the match must end at the <var>end</var> of the region
+     * @return      The offset after the match, or -1
+     */
+    protected abstract int
+    run(CharSequence subject, int offset, int end, boolean toEnd, int[] groups);
+
+    /**
+     * Doubles the size of the {@link #stack}.
+     *
+     * @return The new stack
+     */
+    protected final int[]
+    grow(int[] stack) { return (this.stack = Arrays.copyOf(stack, 2 * stack.length)); }
+
+    /**
+     * Is invoked by the generated code each time it backtracks.
+     *
+     * @throws MatchLimitExceededException
+     * @see MatcherImpl#step()
+     */
+    protected final void
+    step() {
+        MatcherImpl matcher = this.matcher;
+        assert matcher != null;
+        matcher.step();
+    }
+
+    /**
+     * Decodes the code point at the given <var>offset</var>, exactly like {@link MatcherImpl#readChar()}.
+     */
+    protected static int
+    codePointAt(CharSequence subject, int offset, int end) {
+
+        char c = subject.charAt(offset);
+        if (Character.isHighSurrogate(c) && offset + 1 < end) {
+            char ls = subject.charAt(offset + 1);
+            if (Character.isLowSurrogate(ls)) return Character.toCodePoint(c, ls);
+        }
+
+        return c;
+    }
+
+    /**
+     * Steps back one character, exactly like {@link MatcherImpl#positionMinus1(int)}.
+     *
+     * @param offset Must be greater than <var>from</var>
+     */
+    protected static int
+    positionMinus1(CharSequence subject, int offset, int from) {
+
+        if (
+            Character.isLowSurrogate(subject.charAt(--offset))
+            && offset > from
+            && Character.isHighSurrogate(subject.charAt(offset - 1))
+        ) offset--;
+
+        return offset;
+    }
+
+    /**
+     * @return Whether the NFA matches at the <var>matcher</var>'s current offset; if so, the {@link
+     *         MatcherImpl#offset} and the {@link MatcherImpl#groups} (except 0 and 1) are updated
+     * @see    Sequence#matches(MatcherImpl)
+     */
+    boolean
+    matches(MatcherImpl matcher) {
+
+        Arrays.fill(this.loopStarts, -1);
+        this.hitEnd  = false;
+        this.matcher = matcher;
+
+        int end = this.run(
+            matcher.subject,
+            matcher.offset,
+            matcher.regionEnd,
+            matcher.end == MatcherImpl.End.END_OF_REGION,
+            matcher.groups
+        );
+
+        if (this.hitEnd) matcher.hitEnd = true;
+
+        if (end == -1) return false;
+
+        matcher.touchAllGroups();
+        matcher.offset = end;
+        return true;
+    }
+
+    /**
+     * @return The offset of the start of the next match at or after the <var>matcher</var>'s current offset, or -1;
+     *         on success, the {@link MatcherImpl#offset} and the {@link MatcherImpl#groups} (except 0 and 1) are
+     *         updated
+     * @see    Sequence#find(MatcherImpl)
+     */
+    int
+    find(MatcherImpl matcher) {
+
+        for (;;) {
+
+            // Each start position counts as one "step".
+            matcher.step();
+
+            int startOfMatch = matcher.offset;
+            if (this.matches(matcher)) return startOfMatch;
+
+            if (startOfMatch >= matcher.regionEnd) {
+                matcher.hitEnd = true;
+                return -1;
+            }
+
+            matcher.offset = matcher.positionPlus1(startOfMatch);
+        }
+    }
+}
@@ -47,13 +47,13 @@ class CompositeSequence extends Sequence {
      * This sequence (excluding the {@link #next} sequence) will match at least that many characters. E.g.
      * <code>".{3,5}"</code> has a {@link #minMatchLengthWithoutNext} of three.
      */
-    private final int minMatchLengthWithoutNext;
+    final int minMatchLengthWithoutNext;
 
     /**
      * This sequence (excluding the {@link #next} sequence) will match at most that many characters. E.g.
      * <code>".{,3}"</code> has a {@link #maxMatchLengthWithoutNext} of six.
      */
-    private final int maxMatchLengthWithoutNext;
+    final int maxMatchLengthWithoutNext;
 
     CompositeSequence(int matchLengthWithoutNext) {
         super(matchLengthWithoutNext, matchLengthWithoutNext);
@@ -122,6 +122,19 @@ class CompositeSequence extends Sequence {
         if (this.maxMatchLengthWithoutNext > 0) result.consume(-1);
     }
 
+    @Override int
+    toNfa(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+        return this.toNfaWithoutNext(b, this.next.toNfa(b, next));
+    }
+
+    /**
+     * Same as {@link #toNfa(Nfa.Builder, int)}, but ignores the {@link #next} sequence.
+     */
+    int
+    toNfaWithoutNext(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+        throw new Nfa.UnsupportedSequenceException();
+    }
+
     /**
      * @return A human-readable form of {@code this} sequence, but without the {@link #next} sequence
      */
@@ -0,0 +1,286 @@
+
+/*
+ * de.unkrig.lfr - A super-fast regular expression evaluator
+ *
+ * Copyright (c) 2017, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.lfr.core;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * A "lazy DFA" that is built on demand from an {@link Nfa}: Each DFA state represents a set of NFA instructions, and
+ * is created (and cached) only when the evaluation first reaches it.
+ * <p>
+ *   A DFA determines in linear time whether a pattern matches, but cannot tell the groups and "counts" of the
+ *   match. Therefore the matcher uses it to quickly <em>reject</em> subjects, and falls back to the backtracking
+ *   engine for the details of a successful match.
+ * </p>
+ * <p>
+ *   Instances are thread-safe and are typically shared by all matchers of a {@link Pattern}.
+ * </p>
+ */
+final
+class Dfa {
+
+    /**
+     * The maximum number of states that are cached. When that limit is reached, transitions to new states are no
+     * longer cached, i.e. the evaluation becomes slower, but remains linear.
+     */
+    private static final int MAX_CACHED_STATES = 1000;
+
+    /**
+     * The result of a DFA evaluation.
+     */
+    enum Result {
+
+        /**
+         * The subject matches (but it is unknown <em>how</em> exactly).
+         */
+        MATCH,
+
+        /**
+         * The subject does not match, and the evaluation did not hit the end of the region.
+         */
+        NO_MATCH,
+
+        /**
+         * The subject does not match, and the evaluation hit the end of the region.
+         */
+        NO_MATCH_HIT_END,
+
+        /**
+         * The DFA cannot decide, e.g. because the subject contains surrogates; use the backtracking engine instead.
+         */
+        UNDECIDED,
+    }
+
+    private final Nfa nfa;
+
+    private final ConcurrentMap<String, State> states = new ConcurrentHashMap<String, State>();
+
+    private final State anchoredStart, unanchoredStart;
+
+    Dfa(Nfa nfa) {
+        this.nfa             = nfa;
+        this.anchoredStart   = this.state(new int[] { nfa.start }, 1, false);
+        this.unanchoredStart = this.state(new int[] { nfa.start }, 1, true);
+    }
+
+    /**
+     * Checks whether the entire region matches.
+     *
+     * @see Matcher#matches()
+     */
+    Result
+    matches(CharSequence subject, int regionStart, int regionEnd) {
+        return this.run(this.anchoredStart, subject, regionStart, regionEnd, true);
+    }
+
+    /**
+     * Checks whether a prefix of the region matches.
+     *
+     * @see Matcher#lookingAt()
+     */
+    Result
+    lookingAt(CharSequence subject, int regionStart, int regionEnd) {
+        return this.run(this.anchoredStart, subject, regionStart, regionEnd, false);
+    }
+
+    /**
+     * Checks whether a subsequence of the region, starting at or after <var>start</var>, matches.
+     *
+     * @see Matcher#find(int)
+     */
+    Result
+    find(CharSequence subject, int start, int regionEnd) {
+        return this.run(this.unanchoredStart, subject, start, regionEnd, false);
+    }
+
+    private Result
+    run(State state, CharSequence subject, int start, int end, boolean toEnd) {
+
+        for (int o = start;; o++) {
+
+            if (state.accepting && !toEnd) return Result.MATCH;
+
+            if (o == end) {
+                return (
+                    state.accepting         ? Result.MATCH :
+                    state.chars.length == 0 ? Result.NO_MATCH :
+                    Result.NO_MATCH_HIT_END
+                );
+            }
+
+            char c = subject.charAt(o);
+            if (Character.isSurrogate(c)) return Result.UNDECIDED;
+
+            State[] page = state.transitions[c >> 8];
+            if (page == null) {
+                state.transitions[c >> 8] = (page = new State[256]);
+            }
+
+            State next = page[c & 0xff];
+            if (next == null) {
+                next = this.transition(state, c);
+                if (next.cached) page[c & 0xff] = next;
+            }
+
+            state = next;
+
+            if (state.chars.length == 0 && !state.accepting) return Result.NO_MATCH;
+        }
+    }
+
+    /**
+     * A set of NFA instructions; only {@link Nfa#CHAR} instructions are relevant (the epsilon transitions are already
+     * resolved), plus the information whether an {@link Nfa#MATCH} instruction is reachable.
+     */
+    private static final
+    class State {
+
+        /**
+         * The {@link Nfa#CHAR} instructions of this state.
+         */
+        final int[] chars;
+
+        /**
+         * Whether this state includes the {@link Nfa#MATCH} instruction.
+         */
+        final boolean accepting;
+
+        /**
+         * Whether this state implies the NFA's start instruction at <em>any</em> subject position.
+         */
+        final boolean unanchored;
+
+        /**
+         * Whether this state is registered in the cache; only these states can be the targets of cached transitions.
+         */
+        final boolean cached;
+
+        /**
+         * The transitions for each {@code char}, in "pages" of 256 {@code char}s, which are allocated on demand.
+         * Elements are {@code null} until the respective transition is first computed.
+         */
+        final State[][] transitions = new State[256][];
+
+        State(int[] chars, boolean accepting, boolean unanchored, boolean cached) {
+            this.chars      = chars;
+            this.accepting  = accepting;
+            this.unanchored = unanchored;
+            this.cached     = cached;
+        }
+    }
+
+    private State
+    transition(State from, char c) {
+
+        Nfa nfa = this.nfa;
+
+        int[] targets = new int[from.chars.length + 1];
+        int   n       = 0;
+        for (int pc : from.chars) {
+            if (nfa.classes[pc].matches(c)) targets[n++] = nfa.next1[pc];
+        }
+
+        if (from.unanchored) targets[n++] = nfa.start;
+
+        return this.state(targets, n, from.unanchored);
+    }
+
+    /**
+     * Computes the "epsilon closure" of the given NFA instructions, and returns the (cached) DFA state for it.
+     */
+    private State
+    state(int[] instructions, int n, boolean unanchored) {
+
+        Nfa nfa = this.nfa;
+
+        boolean[] seen      = new boolean[nfa.size()];
+        int[]     stack     = new int[2 * nfa.size() + n];
+        int       sp        = 0;
+        int[]     chars     = new int[nfa.size()];
+        int       charCount = 0;
+        boolean   accepting = false;
+
+        for (int i = n - 1; i >= 0; i--) stack[sp++] = instructions[i];
+
+        while (sp > 0) {
+            int pc = stack[--sp];
+
+            if (seen[pc]) continue;
+            seen[pc] = true;
+
+            switch (nfa.kinds[pc]) {
+
+            case Nfa.MATCH:
+                accepting = true;
+                break;
+
+            case Nfa.CHAR:
+                chars[charCount++] = pc;
+                break;
+
+            case Nfa.SPLIT:
+            case Nfa.GREEDY_LOOP:
+            case Nfa.RELUCTANT_LOOP:
+                stack[sp++] = nfa.next2[pc];
+                stack[sp++] = nfa.next1[pc];
+                break;
+
+            case Nfa.SAVE:
+                stack[sp++] = nfa.next1[pc];
+                break;
+
+            default:
+                throw new AssertionError(nfa.kinds[pc]);
+            }
+        }
+
+        chars = Arrays.copyOf(chars, charCount);
+        Arrays.sort(chars);
+
+        String key;
+        {
+            StringBuilder sb = new StringBuilder(charCount + 1);
+            sb.append((char) ((accepting ? 1 : 0) | (unanchored ? 2 : 0)));
+            for (int pc : chars) sb.append((char) pc);
+            key = sb.toString();
+        }
+
+        @Nullable State result = this.states.get(key);
+        if (result != null) return result;
+
+        if (this.states.size() >= Dfa.MAX_CACHED_STATES) return new State(chars, accepting, unanchored, false);
+
+        result = new State(chars, accepting, unanchored, true);
+
+        State previous = this.states.putIfAbsent(key, result);
+        return previous != null ? previous : result;
+    }
+}
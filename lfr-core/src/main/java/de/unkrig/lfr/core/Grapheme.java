@@ -2,7 +2,7 @@
 /*
  * de.unkrig.lfr - A super-fast regular expression evaluator
  *
- * Copyright (c) 2019, Arno Unkrig
+ * Copyright (c) 2017, Arno Unkrig
  * All rights reserved.
  *
  * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
@@ -24,33 +24,353 @@
  * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
+
 package de.unkrig.lfr.core;
 
-import de.unkrig.commons.lang.AssertionUtil;
-import de.unkrig.commons.lang.OptionalMethods;
-import de.unkrig.commons.lang.OptionalMethods.MethodWrapper2;
+import java.util.Arrays;
 
+/**
+ * Segmentation of text into "extended grapheme clusters", as defined by <a
+ * href="https://unicode.org/reports/tr29/">UAX #29: Unicode Text Segmentation</a> (Unicode 13), which implements
+ * {@code "\\X"} and {@code "\\b{g}"}.
+ * <p>
+ *   The "Grapheme_Cluster_Break" property of the code points is derived from their general category, plus a few
+ *   lists of exceptional code points, so this works on every JRE (and does not depend on {@code
+ *   java.util.regex.Grapheme}, which is only available in some JREs). The property values of the BMP code points
+ *   are precomputed in a compact "two-stage" table.
+ * </p>
+ */
 public final
 class Grapheme {
 
-    static { AssertionUtil.enableAssertionsForThisClass(); }
-
     private Grapheme() {}
 
-    private static final MethodWrapper2<?, Boolean, Integer, Integer, RuntimeException>
-    GRAPHEME__IS_BOUNDARY = OptionalMethods.get2(
-        "Graphemes only available in Java 9+", // message
-        null,                                  // classLoader
-        "java.util.regex.Grapheme",            // declaringClassName
-        "isBoundary",                          // methodName
-        int.class,                             // parameterType1
-        int.class                              // parameterType2
-    );
+    // The values of the "Grapheme_Cluster_Break" property.
+    private static final int OTHER                 = 0;
+    private static final int CR                    = 1;
+    private static final int LF                    = 2;
+    private static final int CONTROL               = 3;
+    private static final int EXTEND                = 4;
+    private static final int ZWJ                   = 5;
+    private static final int REGIONAL_INDICATOR    = 6;
+    private static final int PREPEND               = 7;
+    private static final int SPACING_MARK          = 8;
+    private static final int L                     = 9;
+    private static final int V                     = 10;
+    private static final int T                     = 11;
+    private static final int LV                    = 12;
+    private static final int LVT                   = 13;
+    private static final int EXTENDED_PICTOGRAPHIC = 14;
+
+    /**
+     * For each property value of a code point, the set ({@code 1 << value}) of property values of the
+     * <em>next</em> code point where the rules GB3 through GB9b forbid a break. (The rules GB11, GB12 and GB13
+     * depend on more context and are not reflected here.)
+     */
+    private static final int[] NO_BREAK = new int[15];
+    static {
+        for (int t = 0; t < Grapheme.NO_BREAK.length; t++) {
+
+            // GB9 and GB9a: Do not break before extending characters, ZERO WIDTH JOINER, and spacing marks.
+            Grapheme.NO_BREAK[t] = 1 << Grapheme.EXTEND | 1 << Grapheme.ZWJ | 1 << Grapheme.SPACING_MARK;
+        }
+
+        // GB9b: Do not break after prepend characters (but GB5 has precedence).
+        Grapheme.NO_BREAK[Grapheme.PREPEND] = ~(1 << Grapheme.CR | 1 << Grapheme.LF | 1 << Grapheme.CONTROL);
+
+        // GB6 through GB8: Do not break Hangul syllable sequences.
+        Grapheme.NO_BREAK[Grapheme.L]   |= 1 << Grapheme.L | 1 << Grapheme.V | 1 << Grapheme.LV | 1 << Grapheme.LVT;
+        Grapheme.NO_BREAK[Grapheme.LV]  |= 1 << Grapheme.V | 1 << Grapheme.T;
+        Grapheme.NO_BREAK[Grapheme.V]   |= 1 << Grapheme.V | 1 << Grapheme.T;
+        Grapheme.NO_BREAK[Grapheme.LVT] |= 1 << Grapheme.T;
+        Grapheme.NO_BREAK[Grapheme.T]   |= 1 << Grapheme.T;
+
+        // GB3 and GB4: Do not break between a CR and LF; otherwise, break after controls.
+        Grapheme.NO_BREAK[Grapheme.CR]      = 1 << Grapheme.LF;
+        Grapheme.NO_BREAK[Grapheme.LF]      = 0;
+        Grapheme.NO_BREAK[Grapheme.CONTROL] = 0;
+    }
+
+    /**
+     * The "Extended_Pictographic" code points, as pairs of first and last code point.
+     */
+    private static final int[] EXTENDED_PICTOGRAPHICS = {
+        0x00a9, 0x00a9, 0x00ae, 0x00ae, 0x203c, 0x203c, 0x2049, 0x2049, 0x2122, 0x2122, 0x2139, 0x2139,
+        0x2194, 0x2199, 0x21a9, 0x21aa, 0x231a, 0x231b, 0x2328, 0x2328, 0x2388, 0x2388, 0x23cf, 0x23cf,
+        0x23e9, 0x23f3, 0x23f8, 0x23fa, 0x24c2, 0x24c2, 0x25aa, 0x25ab, 0x25b6, 0x25b6, 0x25c0, 0x25c0,
+        0x25fb, 0x25fe, 0x2600, 0x2605, 0x2607, 0x2612, 0x2614, 0x2685, 0x2690, 0x2705, 0x2708, 0x2712,
+        0x2714, 0x2714, 0x2716, 0x2716, 0x271d, 0x271d, 0x2721, 0x2721, 0x2728, 0x2728, 0x2733, 0x2734,
+        0x2744, 0x2744, 0x2747, 0x2747, 0x274c, 0x274c, 0x274e, 0x274e, 0x2753, 0x2755, 0x2757, 0x2757,
+        0x2763, 0x2767, 0x2795, 0x2797, 0x27a1, 0x27a1, 0x27b0, 0x27b0, 0x27bf, 0x27bf, 0x2934, 0x2935,
+        0x2b05, 0x2b07, 0x2b1b, 0x2b1c, 0x2b50, 0x2b50, 0x2b55, 0x2b55, 0x3030, 0x3030, 0x303d, 0x303d,
+        0x3297, 0x3297, 0x3299, 0x3299, 0x1f000, 0x1f0ff, 0x1f10d, 0x1f10f, 0x1f12f, 0x1f12f, 0x1f16c, 0x1f171,
+        0x1f17e, 0x1f17f, 0x1f18e, 0x1f18e, 0x1f191, 0x1f19a, 0x1f1ad, 0x1f1e5, 0x1f201, 0x1f20f, 0x1f21a, 0x1f21a,
+        0x1f22f, 0x1f22f, 0x1f232, 0x1f23a, 0x1f23c, 0x1f23f, 0x1f249, 0x1f3fa, 0x1f400, 0x1f53d, 0x1f546, 0x1f64f,
+        0x1f680, 0x1f6ff, 0x1f774, 0x1f77f, 0x1f7d5, 0x1f7ff, 0x1f80c, 0x1f80f, 0x1f848, 0x1f84f, 0x1f85a, 0x1f85f,
+        0x1f888, 0x1f88f, 0x1f8ae, 0x1f8ff, 0x1f90c, 0x1f93a, 0x1f93c, 0x1f945, 0x1f947, 0x1faff, 0x1fc00, 0x1fffd
+    };
+
+    /**
+     * The code points that are "Extend" although their general category is not "Mn" or "Me"
+     * ("Other_Grapheme_Extend" and "Emoji_Modifier"), as pairs of first and last code point.
+     */
+    private static final int[] OTHER_EXTENDS = {
+        0x09be, 0x09be, 0x09d7, 0x09d7, 0x0b3e, 0x0b3e, 0x0b57, 0x0b57, 0x0bbe, 0x0bbe, 0x0bd7, 0x0bd7, 0x0cc2, 0x0cc2,
+        0x0cd5, 0x0cd6, 0x0d3e, 0x0d3e, 0x0d57, 0x0d57, 0x0dcf, 0x0dcf, 0x0ddf, 0x0ddf, 0x1b35, 0x1b35, 0x200c, 0x200c,
+        0x302e, 0x302f, 0xff9e, 0xff9f, 0x1133e, 0x1133e, 0x11357, 0x11357, 0x114b0, 0x114b0, 0x114bd, 0x114bd,
+        0x115af, 0x115af, 0x11930, 0x11930, 0x1d165, 0x1d165, 0x1d16e, 0x1d172, 0x1f3fb, 0x1f3ff, 0xe0020, 0xe007f,
+    };
+
+    /**
+     * The "Prepend" code points, as pairs of first and last code point.
+     */
+    private static final int[] PREPENDS = {
+        0x0600, 0x0605, 0x06dd, 0x06dd, 0x070f, 0x070f, 0x08e2, 0x08e2, 0x0d4e, 0x0d4e, 0x110bd, 0x110bd,
+        0x110cd, 0x110cd, 0x111c2, 0x111c3, 0x1193f, 0x1193f, 0x11941, 0x11941, 0x11a3a, 0x11a3a, 0x11a84, 0x11a89,
+        0x11d46, 0x11d46,
+    };
+
+    /**
+     * The code points with general category "Mc" that are nevertheless <em>not</em> "SpacingMark", as pairs of first
+     * and last code point.
+     */
+    private static final int[] NON_SPACING_MARKS = {
+        0x102b, 0x102c, 0x1038, 0x1038, 0x1062, 0x1064, 0x1067, 0x106d, 0x1083, 0x1083, 0x1087, 0x108c, 0x108f, 0x108f,
+        0x109a, 0x109c, 0x1a61, 0x1a61, 0x1a63, 0x1a64, 0xaa7b, 0xaa7b, 0xaa7d, 0xaa7d, 0x11720, 0x11721,
+    };
+
+    /**
+     * The unassigned code points that are "Default_Ignorable_Code_Point" (and thus "Control"), as pairs of first and
+     * last code point.
+     */
+    private static final int[] IGNORABLE_UNASSIGNEDS = {
+        0x2065, 0x2065, 0xfff0, 0xfff8, 0xe0000, 0xe0000, 0xe0002, 0xe001f, 0xe0080, 0xe00ff, 0xe01f0, 0xe0fff,
+    };
+
+    /**
+     * Maps {@code cp >> 8} to the offset of the block in {@link #BLOCKS}.
+     */
+    private static final char[] INDEX = new char[256];
+
+    /**
+     * The distinct blocks of 256 property values.
+     */
+    private static final byte[] BLOCKS;
+    static {
+        byte[] blocks = new byte[256 * 16];
+        byte[] block  = new byte[256];
+        int    n      = 0; // Number of distinct blocks.
+
+        for (int hi = 0; hi < Grapheme.INDEX.length; hi++) {
+
+            for (int lo = 0; lo < 256; lo++) block[lo] = (byte) Grapheme.computeProperty(hi << 8 | lo);
+
+            // Re-use an identical block, if any.
+            int b = 0;
+            while (b < n && !Grapheme.regionEquals(blocks, b << 8, block)) b++;
+
+            if (b == n) {
+                if (n << 8 == blocks.length) blocks = Arrays.copyOf(blocks, 2 * blocks.length);
+                System.arraycopy(block, 0, blocks, n++ << 8, 256);
+            }
+
+            Grapheme.INDEX[hi] = (char) (b << 8);
+        }
+
+        BLOCKS = Arrays.copyOf(blocks, n << 8);
+    }
+
+    private static boolean
+    regionEquals(byte[] blocks, int offset, byte[] block) {
+
+        for (int i = 0; i < block.length; i++) {
+            if (blocks[offset + i] != block[i]) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The "Grapheme_Cluster_Break" property of the code point
+     */
+    private static int
+    property(int cp) {
+
+        if (cp > 0xffff) return Grapheme.computeProperty(cp);
+
+        return Grapheme.BLOCKS[Grapheme.INDEX[cp >> 8] | (cp & 0xff)];
+    }
+
+    private static int
+    computeProperty(int cp) {
+
+        if (cp == '\r') return Grapheme.CR;
+        if (cp == '\n') return Grapheme.LF;
+        if (cp == 0x200d) return Grapheme.ZWJ;
+
+        if (Grapheme.in(cp, Grapheme.EXTENDED_PICTOGRAPHICS)) return Grapheme.EXTENDED_PICTOGRAPHIC;
+        if (Grapheme.in(cp, Grapheme.OTHER_EXTENDS))          return Grapheme.EXTEND;
+        if (Grapheme.in(cp, Grapheme.PREPENDS))               return Grapheme.PREPEND;
+
+        if (cp >= 0x1f1e6 && cp <= 0x1f1ff) return Grapheme.REGIONAL_INDICATOR;
+
+        // Hangul syllables and Jamo.
+        if (cp >= 0xac00 && cp <= 0xd7a3) return (cp - 0xac00) % 28 == 0 ? Grapheme.LV : Grapheme.LVT;
+        if ((cp >= 0x1100 && cp <= 0x115f) || (cp >= 0xa960 && cp <= 0xa97c)) return Grapheme.L;
+        if ((cp >= 0x1160 && cp <= 0x11a7) || (cp >= 0xd7b0 && cp <= 0xd7c6)) return Grapheme.V;
+        if ((cp >= 0x11a8 && cp <= 0x11ff) || (cp >= 0xd7cb && cp <= 0xd7fb)) return Grapheme.T;
 
+        switch (Character.getType(cp)) {
+
+        case Character.CONTROL:
+        case Character.FORMAT:
+        case Character.LINE_SEPARATOR:
+        case Character.PARAGRAPH_SEPARATOR:
+        case Character.SURROGATE:
+            return Grapheme.CONTROL;
+
+        case Character.UNASSIGNED:
+            return Grapheme.in(cp, Grapheme.IGNORABLE_UNASSIGNEDS) ? Grapheme.CONTROL : Grapheme.OTHER;
+
+        case Character.NON_SPACING_MARK:
+        case Character.ENCLOSING_MARK:
+            return Grapheme.EXTEND;
+
+        case Character.COMBINING_SPACING_MARK:
+            return Grapheme.in(cp, Grapheme.NON_SPACING_MARKS) ? Grapheme.OTHER : Grapheme.SPACING_MARK;
+
+        default:
+            return cp == 0x0e33 || cp == 0x0eb3 ? Grapheme.SPACING_MARK : Grapheme.OTHER;
+        }
+    }
+
+    /**
+     * @param ranges Pairs of first and last code point, in ascending order
+     */
+    private static boolean
+    in(int cp, int[] ranges) {
+
+        for (int i = 0; i < ranges.length && cp >= ranges[i]; i += 2) {
+            if (cp <= ranges[i + 1]) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks whether there is a grapheme cluster boundary between two adjacent code points, assuming that the
+     * preceding code points do not prevent a break (see rules GB11, GB12 and GB13).
+     */
     public static boolean
     isBoundary(int cp0, int cp1) {
-        Boolean result = GRAPHEME__IS_BOUNDARY.invoke(null, cp0, cp1);
-        assert result != null;
-        return result;
+
+        int t0 = Grapheme.property(cp0), t1 = Grapheme.property(cp1);
+
+        if (t0 == Grapheme.ZWJ && t1 == Grapheme.EXTENDED_PICTOGRAPHIC)             return false;
+        if (t0 == Grapheme.REGIONAL_INDICATOR && t1 == Grapheme.REGIONAL_INDICATOR) return false;
+
+        return (Grapheme.NO_BREAK[t0] & 1 << t1) == 0;
+    }
+
+    /**
+     * Checks whether there is a grapheme cluster boundary at the given <var>offset</var>, which must be greater than
+     * <var>start</var>, and less than the length of the <var>subject</var>.
+     *
+     * @param start The position before which the <var>subject</var> is not examined
+     */
+    public static boolean
+    isBoundary(CharSequence subject, int offset, int start) {
+
+        // Never break a surrogate pair.
+        if (Character.isHighSurrogate(subject.charAt(offset - 1)) && Character.isLowSurrogate(subject.charAt(offset))) {
+            return false;
+        }
+
+        int cp0 = Grapheme.codePointBefore(subject, offset, start);
+        int t0  = Grapheme.property(cp0);
+        int t1  = Grapheme.property(Character.codePointAt(subject, offset));
+
+        // GB11: Do not break within emoji modifier sequences or emoji zwj sequences, i.e. between a ZWJ and a
+        // pictographic if the grapheme cluster already contains a pictographic.
+        if (t0 == Grapheme.ZWJ && t1 == Grapheme.EXTENDED_PICTOGRAPHIC) {
+            for (int o = offset - 1; o > start;) {
+                int cp = Grapheme.codePointBefore(subject, o, start);
+                int t  = Grapheme.property(cp);
+                if (t == Grapheme.EXTENDED_PICTOGRAPHIC) return false;
+                if (t != Grapheme.EXTEND && t != Grapheme.ZWJ && t != Grapheme.SPACING_MARK) break;
+                o -= Character.charCount(cp);
+            }
+            return true;
+        }
+
+        // GB12 and GB13: Do not break within emoji flag sequences, i.e. between an odd number of regional
+        // indicators and another regional indicator.
+        if (t0 == Grapheme.REGIONAL_INDICATOR && t1 == Grapheme.REGIONAL_INDICATOR) {
+            int n = 0;
+            for (int o = offset; o > start;) {
+                int cp = Grapheme.codePointBefore(subject, o, start);
+                if (Grapheme.property(cp) != Grapheme.REGIONAL_INDICATOR) break;
+                n++;
+                o -= Character.charCount(cp);
+            }
+            return n % 2 == 0;
+        }
+
+        return (Grapheme.NO_BREAK[t0] & 1 << t1) == 0;
+    }
+
+    /**
+     * Like {@link Character#codePointBefore(char[], int, int)}, but for a {@link CharSequence}.
+     */
+    private static int
+    codePointBefore(CharSequence subject, int offset, int start) {
+
+        char c2 = subject.charAt(offset - 1);
+        if (Character.isLowSurrogate(c2) && offset - 2 >= start) {
+            char c1 = subject.charAt(offset - 2);
+            if (Character.isHighSurrogate(c1)) return Character.toCodePoint(c1, c2);
+        }
+
+        return c2;
+    }
+
+    /**
+     * Finds the end of the grapheme cluster that starts at the given <var>offset</var>.
+     *
+     * @param offset Must be less than <var>limit</var>
+     * @return       The position of the next grapheme cluster boundary after the <var>offset</var>, or the
+     *               <var>limit</var>
+     */
+    public static int
+    nextBoundary(CharSequence subject, int offset, int limit) {
+
+        int cp0 = Character.codePointAt(subject, offset);
+        int o   = offset + Character.charCount(cp0);
+        int t0  = Grapheme.property(cp0);
+
+        boolean pictographic = t0 == Grapheme.EXTENDED_PICTOGRAPHIC; // Whether the cluster contains a pictographic.
+        int     ris          = t0 == Grapheme.REGIONAL_INDICATOR ? 1 : 0;
+
+        while (o < limit) {
+
+            int cp1 = Character.codePointAt(subject, o);
+            int t1  = Grapheme.property(cp1);
+
+            if (
+                t1 == Grapheme.EXTENDED_PICTOGRAPHIC && t0 == Grapheme.ZWJ                // GB11
+                ? !pictographic
+                : t1 == Grapheme.REGIONAL_INDICATOR && t0 == Grapheme.REGIONAL_INDICATOR  // GB12, GB13
+                ? ris % 2 == 0
+                : (Grapheme.NO_BREAK[t0] & 1 << t1) == 0
+            ) break;
+
+            pictographic |= t1 == Grapheme.EXTENDED_PICTOGRAPHIC;
+            ris          =  t1 == Grapheme.REGIONAL_INDICATOR ? ris + 1 : 0;
+
+            t0 = t1;
+            o  += Character.charCount(cp1);
+        }
+
+        return o;
     }
 }
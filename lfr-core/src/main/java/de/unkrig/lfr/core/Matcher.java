@@ -141,6 +141,46 @@ interface Matcher extends de.unkrig.ref4j.Matcher {
     int
     count(int number);
 
+    /**
+     * Limits the effort of each subsequent matching operation ({@link #matches()}, {@link #lookingAt()}, {@link
+     * #find()}, ...): Iff it takes more than <var>maxSteps</var> steps, then the operation throws a {@link
+     * MatchLimitExceededException}. Afterwards, the state of this matcher is undefined until it is {@link #reset()}.
+     * <p>
+     *   What counts as a "step" depends on the evaluation: For backtracking (the default, and {@link
+     *   Pattern#BYTECODE}), it is each backtracking, plus each start position that {@link #find()} tries; for the
+     *   {@link Pattern#LINEAR_TIME linear-time evaluation}, it is the advancing by one character.
+     * </p>
+     * <p>
+     *   Useful when evaluating regular expressions from untrusted sources.
+     * </p>
+     *
+     * @param maxSteps {@link Long#MAX_VALUE} means "no limit", which is also the default
+     */
+    Matcher
+    setMaxSteps(long maxSteps);
+
+    /**
+     * Subsequent matching operations ({@link #matches()}, {@link #lookingAt()}, {@link #find()}, ...) throw a {@link
+     * MatchLimitExceededException} when the <var>deadline</var> has passed. The deadline is checked only now and
+     * then, so the operations may take slightly longer. Afterwards, the state of this matcher is undefined until it
+     * is {@link #reset()}.
+     * <p>
+     *   The deadline is enforced with all evaluations, i.e. also with {@link Pattern#LINEAR_TIME} and {@link
+     *   Pattern#BYTECODE}.
+     * </p>
+     *
+     * @param deadline In the time base of {@link System#nanoTime()}
+     * @see            #clearDeadline()
+     */
+    Matcher
+    setDeadline(long deadline);
+
+    /**
+     * Removes the deadline that was set with {@link #setDeadline(long)}.
+     */
+    Matcher
+    clearDeadline();
+
     /**
      * @see java.util.regex.Matcher#quoteReplacement(String)
      */
@@ -93,6 +93,22 @@ class MatcherImpl implements Matcher {
      */
     int regionStart, regionEnd;
 
+    /**
+     * @see #setMaxSteps(long)
+     */
+    private long maxSteps = Long.MAX_VALUE;
+
+    /**
+     * @see #setDeadline(long)
+     */
+    private boolean hasDeadline;
+    private long    deadline;
+
+    /**
+     * While a deadline is configured, it is checked after each so many steps.
+     */
+    private static final int DEADLINE_CHECK_INTERVAL = 1024;
+
     // STATE
 
     /**
@@ -105,6 +121,27 @@ class MatcherImpl implements Matcher {
      */
     int[] groups;
 
+    /**
+     * The numbers of the groups that were recorded in the {@link #groups} since the last {@link #resetGroups()}; only
+     * the first {@link #touchedGroupCount} elements are valid. Thus resetting the groups is O(touched groups) and
+     * not O({@link Pattern#groupCount}).
+     *
+     * @see #touchGroup(int)
+     */
+    private int[] touchedGroups;
+    private int   touchedGroupCount;
+
+    /**
+     * Whether each group is listed in the {@link #touchedGroups}.
+     */
+    private boolean[] groupTouched;
+
+    /**
+     * Whether the {@link #groups} were written in bulk (by the {@link PikeVm} or the {@link CompiledNfa}), so that
+     * {@link #resetGroups()} must reset all of them.
+     */
+    private boolean allGroupsTouched;
+
     /**
      * The counters for the currently executing iterations.
      * <p>
@@ -113,6 +150,55 @@ class MatcherImpl implements Matcher {
      */
     int[] counters;
 
+    /**
+     * A reusable stack of offsets for backtracking without recursion; see {@link #pushBacktrack(int)}. Each user
+     * must restore the {@link #backtrackStackSize} before it returns.
+     */
+    int[] backtrackStack = new int[16];
+    int   backtrackStackSize;
+
+    /**
+     * The "bit state" of the backtracker: Bit number <code>row * {@link #failuresRowLength} + offset -
+     * {@link #regionStart}</code> is set iff the memoized loop with that row (see {@link Pattern#loopRows}) has already
+     * failed at that offset. Is allocated lazily, and then reused, also across {@link #reset()}s.
+     */
+    @Nullable private long[] failures;
+
+    /**
+     * The length of one row of the {@link #failures} bitmap, or zero iff memoization is disabled for the current
+     * operation.
+     */
+    private int failuresRowLength;
+
+    /**
+     * Whether any bit of the {@link #failures} bitmap is set.
+     */
+    private boolean failuresDirty;
+
+    /**
+     * Regions longer than this are matched without memoization, to bound the size of the {@link #failures} bitmap.
+     * Can be configured through the system property {@code "de.unkrig.lfr.core.maxMemoizedRegionLength"}.
+     */
+    private static final int MAX_MEMOIZED_REGION_LENGTH = Integer.getInteger(
+        "de.unkrig.lfr.core.maxMemoizedRegionLength",
+        16 * 1024
+    );
+
+    /**
+     * The number of {@link #step()}s left before {@link #checkLimits()} must be called.
+     */
+    private long stepCountdown = Long.MAX_VALUE;
+
+    /**
+     * The number of {@link #step()}s of the current operation, excluding the current "batch".
+     */
+    private long stepsDone;
+
+    /**
+     * The size of the current "batch" of {@link #step()}s.
+     */
+    private long stepBatch;
+
     /**
      * Whether an attempt was made to peek at or behind the {@link #regionEnd}.
      */
@@ -148,6 +234,11 @@ class MatcherImpl implements Matcher {
      */
     @Nullable MatcherImpl.End end;
 
+    /**
+     * This matcher's instance of the {@link Pattern.Engines#compiledNfa}; created lazily.
+     */
+    @Nullable private CompiledNfa compiledNfa;
+
     /**
      * Designates the current matching position.
      *
@@ -161,12 +252,70 @@ class MatcherImpl implements Matcher {
         this.subject   = subject;
         this.regionEnd = subject.length();
 
-        this.groups = new int[2 + 2 * pattern.groupCount];
-        Arrays.fill(this.groups, -1);
+        this.allocateGroups();
 
         this.counters = new int[pattern.capturingQuantifierCount];
     }
 
+    private void
+    allocateGroups() {
+
+        int groupCount = this.pattern.groupCount;
+
+        this.groups = new int[2 + 2 * groupCount];
+        Arrays.fill(this.groups, -1);
+
+        this.touchedGroups     = new int[groupCount + 1];
+        this.touchedGroupCount = 0;
+        this.groupTouched      = new boolean[groupCount + 1];
+        this.allGroupsTouched  = false;
+    }
+
+    /**
+     * Must be invoked before the start or end offset of the given group is stored in the {@link #groups}.
+     */
+    void
+    touchGroup(int groupNumber) {
+
+        if (this.groupTouched[groupNumber]) return;
+
+        this.groupTouched[groupNumber]               = true;
+        this.touchedGroups[this.touchedGroupCount++] = groupNumber;
+    }
+
+    /**
+     * Must be invoked after the {@link #groups} were written in bulk.
+     */
+    void
+    touchAllGroups() { this.allGroupsTouched = true; }
+
+    /**
+     * Sets all {@link #groups} to -1, which is cheap if only few of them were touched since the last reset.
+     */
+    private void
+    resetGroups() {
+
+        int[] gs = this.groups;
+
+        gs[0] = -1;
+        gs[1] = -1;
+
+        for (int i = 0; i < this.touchedGroupCount; i++) {
+            int groupNumber = this.touchedGroups[i];
+
+            gs[2 * groupNumber]     = -1;
+            gs[2 * groupNumber + 1] = -1;
+
+            this.groupTouched[groupNumber] = false;
+        }
+        this.touchedGroupCount = 0;
+
+        if (this.allGroupsTouched) {
+            Arrays.fill(gs, 2, gs.length, -1);
+            this.allGroupsTouched = false;
+        }
+    }
+
     @Override public MatchResult
     toMatchResult() {
 
@@ -215,10 +364,10 @@ class MatcherImpl implements Matcher {
     @Override public Matcher
     usePattern(de.unkrig.ref4j.Pattern newPattern) {
 
-        this.pattern  = (Pattern) newPattern;
-        this.counters = new int[this.pattern.capturingQuantifierCount];
-        this.groups   = new int[2 + 2 * this.pattern.groupCount];
-        Arrays.fill(this.groups, -1);
+        this.pattern     = (Pattern) newPattern;
+        this.counters    = new int[this.pattern.capturingQuantifierCount];
+        this.compiledNfa = null;
+        this.allocateGroups();
 
         return this;
     }
@@ -321,7 +470,7 @@ class MatcherImpl implements Matcher {
     @Override public boolean
     matches() {
 
-        Arrays.fill(this.groups, -1);
+        this.resetGroups();
         this.hitEnd     = false;
         this.requireEnd = false;
         this.end        = MatcherImpl.End.END_OF_REGION;
@@ -344,7 +493,14 @@ class MatcherImpl implements Matcher {
             }
         }
 
-        if (!this.pattern.sequence.matches(this)) {
+        // Optimization: Let the DFA reject the subject in linear time, before the backtracking begins.
+        Dfa dfa = this.pattern.engines().dfa;
+        if (dfa != null && this.rejectedByDfa(dfa.matches(this.subject, this.regionStart, this.regionEnd))) {
+            this.endOfPreviousMatch = -1;
+            return false;
+        }
+
+        if (!this.sequenceMatches()) {
             this.endOfPreviousMatch = -1;
             return false;
         }
@@ -359,7 +515,7 @@ class MatcherImpl implements Matcher {
     @Override public boolean
     lookingAt() {
 
-        Arrays.fill(this.groups, -1);
+        this.resetGroups();
         this.hitEnd     = false;
         this.requireEnd = false;
         this.end        = MatcherImpl.End.ANY;
@@ -372,7 +528,14 @@ class MatcherImpl implements Matcher {
             return false;
         }
 
-        if (!this.pattern.sequence.matches(this)) {
+        // Optimization: Let the DFA reject the subject in linear time, before the backtracking begins.
+        Dfa dfa = this.pattern.engines().dfa;
+        if (dfa != null && this.rejectedByDfa(dfa.lookingAt(this.subject, this.regionStart, this.regionEnd))) {
+            this.endOfPreviousMatch = -1;
+            return false;
+        }
+
+        if (!this.sequenceMatches()) {
             this.endOfPreviousMatch = -1;
             return false;
         }
@@ -434,11 +597,18 @@ class MatcherImpl implements Matcher {
         this.hitEnd     = false;
         this.requireEnd = false;
 
-        Arrays.fill(this.groups, -1);
+        this.resetGroups();
         this.offset = start;
         this.end    = MatcherImpl.End.ANY;
 
-        int matchStart = this.pattern.sequence.find(this);
+        // Optimization: Let the DFA reject the subject in linear time, before the backtracking begins.
+        Dfa dfa = this.pattern.engines().dfa;
+        if (dfa != null && this.rejectedByDfa(dfa.find(this.subject, start, this.regionEnd))) {
+            this.endOfPreviousMatch = -1;
+            return false;
+        }
+
+        int matchStart = this.sequenceFind();
 
         if (matchStart < 0) {
             this.endOfPreviousMatch = -1;
@@ -451,6 +621,164 @@ class MatcherImpl implements Matcher {
         return true;
     }
 
+    /**
+     * Matches the pattern at the current offset, with the most efficient of the available evaluators.
+     *
+     * @see Sequence#matches(MatcherImpl)
+     */
+    private boolean
+    sequenceMatches() {
+
+        this.resetSteps();
+
+        PikeVm pikeVm = this.pattern.engines().pikeVm;
+        if (pikeVm != null) return pikeVm.matches(this);
+
+        CompiledNfa compiledNfa = this.compiledNfa();
+        if (compiledNfa != null) return compiledNfa.matches(this);
+
+        this.resetFailures();
+        return this.pattern.sequence.matches(this);
+    }
+
+    /**
+     * Finds the next match of the pattern, with the most efficient of the available evaluators.
+     *
+     * @see Sequence#find(MatcherImpl)
+     */
+    private int
+    sequenceFind() {
+
+        this.resetSteps();
+
+        PikeVm pikeVm = this.pattern.engines().pikeVm;
+        if (pikeVm != null) return pikeVm.find(this);
+
+        CompiledNfa compiledNfa = this.compiledNfa();
+        if (compiledNfa != null) return compiledNfa.find(this);
+
+        this.resetFailures();
+        return this.pattern.sequence.find(this);
+    }
+
+    /**
+     * Prepares the {@link #failures} bitmap for the next matching operation. (The memoized failures are only valid
+     * for the current region, subject and {@link #end}.)
+     */
+    void
+    resetFailures() {
+
+        int rows      = this.pattern.memoizedLoopCount;
+        int rowLength = this.regionEnd - this.regionStart + 1;
+
+        if (rows == 0 || rowLength > MatcherImpl.MAX_MEMOIZED_REGION_LENGTH) {
+            this.failuresRowLength = 0;
+            return;
+        }
+
+        int    words    = (rows * rowLength + 63) >> 6;
+        long[] failures = this.failures;
+        if (failures == null || failures.length < words) {
+            this.failures = new long[words];
+        } else
+        if (this.failuresDirty) {
+            Arrays.fill(failures, 0L);
+        }
+
+        this.failuresRowLength = rowLength;
+        this.failuresDirty     = false;
+    }
+
+    /**
+     * @return Whether the given loop has already failed at the <var>offset</var>; always {@code false} if the loop is
+     *         not memoized
+     * @see    Pattern#loopRows
+     */
+    boolean
+    hasFailed(int loopNumber, int offset) {
+
+        int bit = this.failureBit(loopNumber, offset);
+        if (bit == -1) return false;
+
+        long[] failures = this.failures;
+        assert failures != null;
+
+        return (failures[bit >> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Records that the given loop failed at the <var>offset</var>; a no-op if the loop is not memoized.
+     *
+     * @see Pattern#loopRows
+     */
+    void
+    setFailed(int loopNumber, int offset) {
+
+        int bit = this.failureBit(loopNumber, offset);
+        if (bit == -1) return;
+
+        long[] failures = this.failures;
+        assert failures != null;
+
+        failures[bit >> 6] |= 1L << bit;
+        this.failuresDirty = true;
+    }
+
+    private int
+    failureBit(int loopNumber, int offset) {
+
+        int rowLength = this.failuresRowLength;
+        if (rowLength == 0) return -1;
+
+        int row = this.pattern.loopRows[loopNumber];
+        if (row == -1) return -1;
+
+        int column = offset - this.regionStart;
+        if (column < 0 || column >= rowLength) return -1;
+
+        return row * rowLength + column;
+    }
+
+    @Nullable private CompiledNfa
+    compiledNfa() {
+
+        CompiledNfa result = this.compiledNfa;
+        if (result == null) {
+            CompiledNfa prototype = this.pattern.engines().compiledNfa;
+            if (prototype == null) return null;
+            this.compiledNfa = (result = prototype.newInstance());
+        }
+
+        return result;
+    }
+
+    /**
+     * A DFA cannot tell the bounds and groups of a match, so a {@link Dfa.Result#MATCH} does not save the evaluation
+     * with the matching engine; only the negative results are conclusive.
+     *
+     * @return Whether the <var>dfaResult</var> proves that there is no match; if so, {@link #hitEnd} is updated
+     */
+    private boolean
+    rejectedByDfa(Dfa.Result dfaResult) {
+
+        switch (dfaResult) {
+
+        case NO_MATCH:
+            return true;
+
+        case NO_MATCH_HIT_END:
+            this.hitEnd = true;
+            return true;
+
+        case MATCH:
+        case UNDECIDED:
+            return false;
+
+        default:
+            throw new AssertionError(dfaResult);
+        }
+    }
+
     // REGION GETTERS
 
     @Override public int regionStart() { return this.regionStart; }
@@ -894,6 +1222,73 @@ class MatcherImpl implements Matcher {
     @Override public int
     count(int number) { return this.counters[number]; }
 
+    @Override public Matcher
+    setMaxSteps(long maxSteps) {
+        if (maxSteps < 0) throw new IllegalArgumentException(Long.toString(maxSteps));
+        this.maxSteps = maxSteps;
+        return this;
+    }
+
+    @Override public Matcher
+    setDeadline(long deadline) {
+        this.hasDeadline = true;
+        this.deadline    = deadline;
+        return this;
+    }
+
+    @Override public Matcher
+    clearDeadline() {
+        this.hasDeadline = false;
+        return this;
+    }
+
+    /**
+     * Must be called at each backtracking point (and, by the {@link PikeVm}, for each character); enforces the {@link
+     * #setMaxSteps(long) step limit} and the {@link #setDeadline(long) deadline}.
+     *
+     * @throws MatchLimitExceededException
+     */
+    void
+    step() {
+        if (--this.stepCountdown < 0) this.checkLimits();
+    }
+
+    /**
+     * Prepares the {@link #step()} counting for the next matching operation.
+     */
+    private void
+    resetSteps() {
+        this.stepsDone          = 0;
+        this.stepCountdown      = (this.stepBatch = this.nextStepBatch());
+        this.backtrackStackSize = 0;
+    }
+
+    /**
+     * Is invoked by {@link #step()} when the current "batch" of steps is exhausted.
+     */
+    private void
+    checkLimits() {
+
+        this.stepsDone += this.stepBatch;
+
+        if (this.stepsDone >= this.maxSteps) {
+            throw new MatchLimitExceededException("More than " + this.maxSteps + " steps");
+        }
+
+        if (this.hasDeadline && System.nanoTime() - this.deadline >= 0) {
+            throw new MatchLimitExceededException("Deadline exceeded");
+        }
+
+        // The current step is the first of the next batch.
+        this.stepCountdown = (this.stepBatch = this.nextStepBatch()) - 1;
+    }
+
+    private long
+    nextStepBatch() {
+        long remaining = this.maxSteps - this.stepsDone;
+        return this.hasDeadline ? Math.min(remaining, MatcherImpl.DEADLINE_CHECK_INTERVAL) : remaining;
+    }
+
     // =====================================
 
     /**
@@ -1040,34 +1435,19 @@ class MatcherImpl implements Matcher {
                     int cp1 = Character.toCodePoint((char) c1, ls);
                     int cp2 = Character.toCodePoint(cs.charAt(i++), cs.charAt(i++));
 
-                    if (!MatcherImpl.equalsIgnoreCase(cp1, cp2)) return false;
+                    if (!CaseFolding.equalsIgnoreCase(cp1, cp2)) return false;
                     continue;
                 }
             }
 
             // We're in the basic plane... everything is very simple now.
-            if (!MatcherImpl.equalsIgnoreCase(c1, cs.charAt(i++))) return false;
+            if (!CaseFolding.equalsIgnoreCase(c1, cs.charAt(i++))) return false;
         }
 
         this.offset = o;
         return true;
     }
 
-    private static boolean
-    equalsIgnoreCase(int c1, int c2) {
-
-        if (c1 == c2) return true;
-
-        c1 = Character.toUpperCase(c1);
-        c2 = Character.toUpperCase(c2);
-        if (c1 == c2) return true;
-
-        // Also have to do THIS, see source code of "String.regionMatches()".
-        if (Character.toLowerCase(c1) == Character.toLowerCase(c2)) return true;
-
-        return false;
-    }
-
     /**
      * @param predicate Notably the type argument is {@link Character}, so this method cannot be used to process
      *                  supplementary code points
@@ -1125,6 +1505,19 @@ class MatcherImpl implements Matcher {
         return pos;
     }
 
+    /**
+     * Pushes the <var>value</var> onto the {@link #backtrackStack}, which grows as necessary.
+     */
+    void
+    pushBacktrack(int value) {
+
+        if (this.backtrackStackSize == this.backtrackStack.length) {
+            this.backtrackStack = Arrays.copyOf(this.backtrackStack, 2 * this.backtrackStackSize);
+        }
+
+        this.backtrackStack[this.backtrackStackSize++] = value;
+    }
+
     public int
     positionMinus1(int pos) {
 
@@ -97,6 +97,18 @@ class MultivalentCharClass extends MultivalentCharacterClass implements Multival
         return -1;
     }
 
+    @Override int
+    toNfaWithoutNext(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+
+        // Because "matches(MatcherImpl)" does not decode surrogate pairs, surrogates would match differently in the
+        // NFA.
+        for (int cp : this.codePoints) {
+            if (Character.isSurrogate((char) cp)) throw new Nfa.UnsupportedSequenceException();
+        }
+
+        return super.toNfaWithoutNext(b, next);
+    }
+
     @Override public int sizeBound()  { return 1; }
 
     @Override protected String
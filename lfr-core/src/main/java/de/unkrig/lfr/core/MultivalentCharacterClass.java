@@ -27,11 +27,13 @@
 package de.unkrig.lfr.core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
 import de.unkrig.commons.lang.protocol.Consumer;
 import de.unkrig.commons.util.ArrayUtil;
+import de.unkrig.commons.util.collections.CollectionUtil;
 
 /**
  * A specialization of {@link CharacterClass} that matches a (typically relatively small) set of code points.
@@ -41,6 +43,11 @@ class MultivalentCharacterClass extends CharacterClass {
     protected final Set<Integer> codePoints;
     protected final int          lowerBound, upperBound, sizeBound;
 
+    /**
+     * The {@link #codePoints}, for probing without boxing.
+     */
+    private final int[] sortedCodePoints;
+
     /**
      * @param codePoints The set of code points that designate a positive match e.g. "<code>{ 'a', 'A' }</code>"
      */
@@ -54,15 +61,21 @@ class MultivalentCharacterClass extends CharacterClass {
         this.lowerBound = MultivalentCharacterClass.min(codePoints);
         this.upperBound = MultivalentCharacterClass.max(codePoints) + 1;
         this.sizeBound  = codePoints.size();
+
+        this.sortedCodePoints = CollectionUtil.toIntArray(codePoints);
+        Arrays.sort(this.sortedCodePoints);
     }
 
     @Override public boolean
-    matches(int cp) { return this.codePoints.contains(cp); }
+    matches(int cp) { return Arrays.binarySearch(this.sortedCodePoints, cp) >= 0; }
 
     @Override public int lowerBound() { return this.lowerBound; }
     @Override public int upperBound() { return this.upperBound; }
     @Override public int sizeBound()  { return this.sizeBound;  }
 
+    @Override int[]
+    ranges() { return CodePointRanges.of(this.sortedCodePoints); }
+
     @Override public Sequence
     concat(Sequence that) {
 
@@ -0,0 +1,488 @@
+
+/*
+ * de.unkrig.lfr - A super-fast regular expression evaluator
+ *
+ * Copyright (c) 2017, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.lfr.core;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * A "Thompson NFA", i.e. a program of instructions that each either consume one character (code point) of the
+ * subject, or are "epsilon" transitions. An NFA is built from a {@link Sequence} through {@link Sequence#toNfa(Nfa.Builder, int)},
+ * and is the basis for the automaton-based (non-backtracking) evaluation of a pattern.
+ * <p>
+ *   Only "regular" sequences can be represented, i.e. character classes, literal strings, alternatives, capturing
+ *   groups and greedy or reluctant quantifiers. All other sequences (back references, lookarounds, anchors,
+ *   possessive quantifiers, ...) throw an {@link UnsupportedSequenceException}.
+ * </p>
+ *
+ * @see Dfa
+ * @see PikeVm
+ */
+final
+class Nfa {
+
+    /**
+     * Instruction kind: The subject has matched.
+     */
+    static final int MATCH = 0;
+
+    /**
+     * Instruction kind: Consumes one code point iff it matches the {@link #classes character class}, and continues
+     * with {@link #next1}.
+     */
+    static final int CHAR = 1;
+
+    /**
+     * Instruction kind: Continues with {@link #next1} and, with lower priority, with {@link #next2}.
+     */
+    static final int SPLIT = 2;
+
+    /**
+     * Instruction kind: Records the current offset in {@link MatcherImpl#groups}{@code [}{@link #next2}{@code ]}, and
+     * continues with {@link #next1}.
+     */
+    static final int SAVE = 3;
+
+    /**
+     * Instruction kind: The head of a greedy loop, i.e. continues with {@link #next1} (the loop body) and, with lower
+     * priority, with {@link #next2} (the loop exit). Behaves like {@link #SPLIT}, except for the PikeVM: when the same
+     * loop head is reached again without consuming a character (i.e. after an "empty iteration"), then the loop is
+     * exited, which is the semantic of the backtracking engine.
+     */
+    static final int GREEDY_LOOP = 4;
+
+    /**
+     * Instruction kind: Like {@link #GREEDY_LOOP}, but the loop exit ({@link #next2}) has higher priority than the loop
+     * body ({@link #next1}).
+     */
+    static final int RELUCTANT_LOOP = 5;
+
+    /**
+     * The maximum number of instructions of an NFA; more complex sequences (e.g. because of nested quantifiers with
+     * large counts) are regarded as unsupported.
+     */
+    private static final int MAX_SIZE = 10000;
+
+    /**
+     * The maximum nesting depth of loops within an NFA; the {@link PikeVm} needs memory proportional to the size of
+     * the NFA times that depth.
+     */
+    private static final int MAX_LOOP_DEPTH = 100;
+
+    /**
+     * The kinds of the instructions; {@link #MATCH}, {@link #CHAR}, {@link #SPLIT}, {@link #SAVE}, {@link
+     * #GREEDY_LOOP} or {@link #RELUCTANT_LOOP}.
+     */
+    final int[] kinds;
+
+    /**
+     * The (preferred) successor instruction of each instruction; for loop heads: The loop body.
+     */
+    final int[] next1;
+
+    /**
+     * For {@link #SPLIT} instructions: The alternative successor instruction; for {@link #SAVE} instructions: The
+     * index of the group offset to record; for loop heads: The loop exit.
+     */
+    final int[] next2;
+
+    /**
+     * For {@link #CHAR} instructions: The character class that the {@code char} must match.
+     */
+    final CharacterClass[] classes;
+
+    /**
+     * For loop heads: The index after the last instruction of the loop body; the loop body consists of the
+     * instructions that follow the loop head up to that index.
+     */
+    final int[] loopEnds;
+
+    /**
+     * The index of the first instruction.
+     */
+    final int start;
+
+    /**
+     * Whether this NFA contains at least one {@link #SPLIT} or loop head instruction, i.e. whether the backtracking engine could
+     * ever backtrack.
+     */
+    final boolean hasSplits;
+
+    /**
+     * Whether this NFA contains "ambiguous" repetitions, e.g. <code>"(a+)+"</code> or <code>"(a|aa)+"</code>, for
+     * which the backtracking engine can take exponential time.
+     */
+    final boolean isAmbiguous;
+
+    private
+    Nfa(
+        int[]            kinds,
+        int[]            next1,
+        int[]            next2,
+        CharacterClass[] classes,
+        int[]            loopEnds,
+        int              start,
+        boolean          hasSplits,
+        boolean          isAmbiguous
+    ) {
+        this.kinds       = kinds;
+        this.next1       = next1;
+        this.next2       = next2;
+        this.classes     = classes;
+        this.loopEnds    = loopEnds;
+        this.start       = start;
+        this.hasSplits   = hasSplits;
+        this.isAmbiguous = isAmbiguous;
+    }
+
+    /**
+     * @return The number of instructions of this NFA
+     */
+    int
+    size() { return this.kinds.length; }
+
+    /**
+     * @return An NFA that is equivalent with the <var>sequence</var>, or {@code null} iff the sequence (or one of its
+     *         elements) cannot be represented by an NFA
+     */
+    @Nullable static Nfa
+    compile(Sequence sequence) {
+
+        Builder b = new Builder();
+        try {
+            int start = sequence.toNfa(b, b.match());
+            return new Nfa(
+                Arrays.copyOf(b.kinds, b.size),
+                Arrays.copyOf(b.next1, b.size),
+                Arrays.copyOf(b.next2, b.size),
+                Arrays.copyOf(b.classes, b.size),
+                Arrays.copyOf(b.loopEnds, b.size),
+                start,
+                b.hasSplits,
+                b.ambiguous
+            );
+        } catch (UnsupportedSequenceException use) {
+            return null;
+        }
+    }
+
+    /**
+     * Indicates that a {@link Sequence} cannot be represented by an NFA.
+     */
+    static
+    class UnsupportedSequenceException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedSequenceException() {
+
+            // Omit the (expensive) stack trace, because this exception is only for control flow.
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Collects the instructions of an NFA; see {@link Sequence#toNfa(Builder, int)}.
+     */
+    static final
+    class Builder {
+
+        /**
+         * The maximum number of {@link #CHAR} instructions that {@link #overlap(int[], int)} examines.
+         */
+        private static final int MAX_FIRST_CHARS = 100;
+
+        int[]            kinds    = new int[16];
+        int[]            next1    = new int[16];
+        int[]            next2    = new int[16];
+        CharacterClass[] classes  = new CharacterClass[16];
+        int[]            loopEnds = new int[16];
+        int              size;
+        boolean          hasSplits;
+
+        /**
+         * Must be set by {@link Sequence#toNfa(Builder, int)} iff it detects an ambiguity within a repetition.
+         *
+         * @see #inRepetition()
+         * @see Nfa#isAmbiguous
+         */
+        boolean ambiguous;
+
+        private int repetitionDepth;
+        private int loopDepth;
+
+        /**
+         * @return Whether the sequence currently being translated is the operand of a quantifier with a maximum
+         *         count greater than one
+         */
+        boolean
+        inRepetition() { return this.repetitionDepth > 0; }
+
+        /**
+         * @return The index of a new {@link #MATCH} instruction
+         */
+        int
+        match() throws UnsupportedSequenceException { return this.add(Nfa.MATCH, -1, -1, null); }
+
+        /**
+         * @return The index of a new {@link #CHAR} instruction
+         */
+        int
+        consume(CharacterClass cc, int next) throws UnsupportedSequenceException {
+            return this.add(Nfa.CHAR, next, -1, cc);
+        }
+
+        /**
+         * @return The index of a new {@link #SPLIT} instruction
+         */
+        int
+        split(int preferred, int other) throws UnsupportedSequenceException {
+            this.hasSplits = true;
+            return this.add(Nfa.SPLIT, preferred, other, null);
+        }
+
+        /**
+         * @return The index of a new {@link #GREEDY_LOOP} or {@link #RELUCTANT_LOOP} instruction
+         */
+        int
+        loop(int body, int exit, boolean greedy) throws UnsupportedSequenceException {
+            this.hasSplits = true;
+            return this.add(greedy ? Nfa.GREEDY_LOOP : Nfa.RELUCTANT_LOOP, body, exit, null);
+        }
+
+        /**
+         * @param groupIndex The index into {@link MatcherImpl#groups}
+         * @return           The index of a new {@link #SAVE} instruction
+         */
+        int
+        save(int groupIndex, int next) throws UnsupportedSequenceException {
+            return this.add(Nfa.SAVE, next, groupIndex, null);
+        }
+
+        /**
+         * Adds instructions that match the <var>needle</var>, i.e. one {@code char} out of {@code needle[0]}, then one
+         * {@code char} out of {@code needle[1]}, and so forth.
+         *
+         * @return The index of the first of these instructions
+         */
+        int
+        needle(char[][] needle, int next) throws UnsupportedSequenceException {
+
+            for (int i = needle.length - 1; i >= 0; i--) {
+                char[] chars = needle[i];
+
+                CharacterClass cc;
+                if (chars.length == 1 && !Character.isSurrogate(chars[0])) {
+                    cc = CharacterClasses.literalCharacter(chars[0]);
+                } else
+                if (
+                    chars.length == 1
+                    && Character.isLowSurrogate(chars[0])
+                    && i > 0
+                    && needle[i - 1].length == 1
+                    && Character.isHighSurrogate(needle[i - 1][0])
+                ) {
+
+                    // Surrogate pair; since NFA instructions consume code points, join the two chars.
+                    cc = CharacterClasses.literalCharacter(Character.toCodePoint(needle[--i][0], chars[0]));
+                } else
+                {
+                    Set<Integer> s = new HashSet<Integer>(chars.length);
+                    for (char c : chars) {
+                        if (Character.isSurrogate(c)) throw new UnsupportedSequenceException();
+                        s.add((int) c);
+                    }
+                    cc = CharacterClasses.oneOfManyChars(s);
+                }
+
+                next = this.consume(cc, next);
+            }
+
+            return next;
+        }
+
+        /**
+         * Adds instructions that implement a greedy or reluctant quantifier.
+         *
+         * @param operand A sequence that is terminated by {@link Sequences#TERMINAL} or by a "loop-back" sequence,
+         *                i.e. a sequence that translates to the <var>next</var> instruction that is passed to it
+         * @param max     May be {@link Integer#MAX_VALUE}
+         * @return        The index of the first of the instructions
+         */
+        int
+        quantifier(Sequence operand, int min, int max, boolean greedy, int next)
+        throws UnsupportedSequenceException {
+
+            if (min > max) return this.consume(CharacterClasses.FAIL, next);
+
+            // A repetition within a repetition, e.g. "(a+)+" is regarded as ambiguous.
+            boolean repeats = max > 1;
+            if (repeats) {
+                if (this.repetitionDepth > 0) this.ambiguous = true;
+                this.repetitionDepth++;
+            }
+            try {
+                return this.quantifier2(operand, min, max, greedy, next);
+            } finally {
+                if (repeats) this.repetitionDepth--;
+            }
+        }
+
+        private int
+        quantifier2(Sequence operand, int min, int max, boolean greedy, int next) throws UnsupportedSequenceException {
+
+            int result;
+            if (max == Integer.MAX_VALUE) {
+
+                // "x*" => "L: LOOP(x -> L, next)".
+                if (this.loopDepth == Nfa.MAX_LOOP_DEPTH) throw new UnsupportedSequenceException();
+                int loop = this.loop(-1, next, greedy);
+                int body;
+                this.loopDepth++;
+                try {
+                    body = operand.toNfa(this, loop);
+                } finally {
+                    this.loopDepth--;
+                }
+                this.next1[loop]    = body;
+                this.loopEnds[loop] = this.size;
+                result              = loop;
+            } else {
+
+                // "x{0,2}" => "SPLIT(x -> SPLIT(x -> next, next), next)".
+                result = next;
+                for (int i = min; i < max; i++) {
+                    int body = operand.toNfa(this, result);
+                    result = greedy ? this.split(body, next) : this.split(next, body);
+                }
+            }
+
+            // "x{2,...}" => "x -> x -> ...".
+            for (int i = 0; i < min; i++) result = operand.toNfa(this, result);
+
+            return result;
+        }
+
+        /**
+         * @param alternatives The first instructions of alternative paths that all lead to <var>next</var>
+         * @return             Whether two of the <var>alternatives</var> could consume the same character (as far as
+         *                     {@link CharacterClass#lowerBound()} and {@link CharacterClass#upperBound()} tell), or
+         *                     one of them could reach <var>next</var> without consuming any character
+         */
+        boolean
+        overlap(int[] alternatives, int next) {
+
+            int[] lowerBounds = new int[Builder.MAX_FIRST_CHARS];
+            int[] upperBounds = new int[Builder.MAX_FIRST_CHARS];
+            int[] owners      = new int[Builder.MAX_FIRST_CHARS];
+            int   n           = 0;
+
+            int[]     stack = new int[2 * this.size + 1];
+            boolean[] seen  = new boolean[this.size];
+            for (int i = 0; i < alternatives.length; i++) {
+
+                Arrays.fill(seen, false);
+                int sp = 0;
+                stack[sp++] = alternatives[i];
+                while (sp > 0) {
+                    int pc = stack[--sp];
+
+                    if (pc == next) return true;
+
+                    if (seen[pc]) continue;
+                    seen[pc] = true;
+
+                    switch (this.kinds[pc]) {
+
+                    case Nfa.MATCH:
+                        return true;
+
+                    case Nfa.CHAR:
+
+                        // Too complex to tell; assume the worst.
+                        if (n == Builder.MAX_FIRST_CHARS) return true;
+
+                        CharacterClass cc = this.classes[pc];
+                        assert cc != null;
+                        lowerBounds[n] = cc.lowerBound();
+                        upperBounds[n] = cc.upperBound();
+                        owners[n++]    = i;
+                        break;
+
+                    case Nfa.SPLIT:
+                    case Nfa.GREEDY_LOOP:
+                    case Nfa.RELUCTANT_LOOP:
+                        stack[sp++] = this.next1[pc];
+                        stack[sp++] = this.next2[pc];
+                        break;
+
+                    case Nfa.SAVE:
+                        stack[sp++] = this.next1[pc];
+                        break;
+                    }
+                }
+            }
+
+            for (int j = 0; j < n; j++) {
+                for (int k = j + 1; k < n; k++) {
+                    if (
+                        owners[j] != owners[k]
+                        && lowerBounds[j] < upperBounds[k]
+                        && lowerBounds[k] < upperBounds[j]
+                    ) return true;
+                }
+            }
+
+            return false;
+        }
+
+        private int
+        add(int kind, int next1, int next2, @Nullable CharacterClass cc) throws UnsupportedSequenceException {
+
+            if (this.size == Nfa.MAX_SIZE) throw new UnsupportedSequenceException();
+
+            if (this.size == this.kinds.length) {
+                int newLength = 2 * this.size;
+                this.kinds    = Arrays.copyOf(this.kinds,    newLength);
+                this.next1    = Arrays.copyOf(this.next1,    newLength);
+                this.next2    = Arrays.copyOf(this.next2,    newLength);
+                this.classes  = Arrays.copyOf(this.classes,  newLength);
+                this.loopEnds = Arrays.copyOf(this.loopEnds, newLength);
+            }
+
+            this.kinds[this.size]   = kind;
+            this.next1[this.size]   = next1;
+            this.next2[this.size]   = next2;
+            this.classes[this.size] = cc;
+
+            return this.size++;
+        }
+    }
+}
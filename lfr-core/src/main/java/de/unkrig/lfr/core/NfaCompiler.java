@@ -0,0 +1,1123 @@
+
+/*
+ * de.unkrig.lfr - A super-fast regular expression evaluator
+ *
+ * Copyright (c) 2017, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.lfr.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Translates an {@link Nfa} into JVM bytecode: Each NFA instruction becomes a short sequence of bytecode
+ * instructions, literal characters and character ranges are compared inline, and backtracking uses an explicit
+ * stack. Thus the entire evaluation happens in one method, which the JIT can optimize as a whole, instead of a
+ * chain of virtual {@link Sequence#matches(MatcherImpl)} invocations.
+ * <p>
+ *   The generated class files have version 49 (JRE 5), because these need no "stack map frames".
+ * </p>
+ *
+ * @see CompiledNfa
+ */
+final
+class NfaCompiler {
+
+    private NfaCompiler() {}
+
+    private static final AtomicInteger NEXT_CLASS_NUMBER = new AtomicInteger();
+
+    private static final String COMPILED_NFA    = "de/unkrig/lfr/core/CompiledNfa";
+    private static final String CHARACTER_CLASS = "de/unkrig/lfr/core/CharacterClass";
+    private static final String CHAR_SEQUENCE   = "java/lang/CharSequence";
+
+    // Local variables of the generated "run()" method.
+    private static final int THIS        = 0;
+    private static final int SUBJECT     = 1;
+    private static final int OFFSET      = 2;
+    private static final int END         = 3;
+    private static final int TO_END      = 4;
+    private static final int GROUPS      = 5;
+    private static final int STACK       = 6;
+    private static final int SP          = 7;
+    private static final int CP          = 8;
+    private static final int LOOP_STARTS = 9;
+    private static final int FROM        = 10;
+    private static final int SAVED       = 11;
+
+    // The "tags" of backtracking stack entries; tags 2, 3, ... designate resumption points.
+    private static final int UNDO_SAVE = 0;
+    private static final int UNDO_LOOP = 1;
+
+    /**
+     * @return An instance of a generated subclass of {@link CompiledNfa}, or {@code null} iff the <var>nfa</var> is too
+     *         large for a JVM method
+     */
+    @Nullable static CompiledNfa
+    compile(Nfa nfa) {
+
+        String className = "de.unkrig.lfr.core.GeneratedNfa" + NfaCompiler.NEXT_CLASS_NUMBER.incrementAndGet();
+
+        byte[] classFile;
+        try {
+            classFile = new NfaCompiler.ClassFileGenerator(nfa, className.replace('.', '/')).generate();
+        } catch (CodeTooLargeException ctle) {
+            return null;
+        }
+
+        Class<?> clasS = new NfaCompiler.Loader().define(className, classFile);
+        try {
+            return (CompiledNfa) clasS.getConstructor(CharacterClass[].class).newInstance((Object) nfa.classes);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Indicates that the bytecode exceeds the limits of the JVM, e.g. the maximum size of a method.
+     */
+    private static
+    class CodeTooLargeException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        CodeTooLargeException() { super(null, null, false, false); }
+    }
+
+    /**
+     * Every generated class gets its own class loader, so that it can be garbage-collected together with its
+     * {@link Pattern}.
+     */
+    private static
+    class Loader extends ClassLoader {
+
+        Loader() { super(CompiledNfa.class.getClassLoader()); }
+
+        Class<?>
+        define(String className, byte[] classFile) {
+            return this.defineClass(className, classFile, 0, classFile.length);
+        }
+    }
+
+    private static final
+    class ClassFileGenerator {
+
+        private final Nfa    nfa;
+        private final String className;
+
+        private final ConstantPool constantPool = new ConstantPool();
+        private final Code         code         = new Code();
+
+        /**
+         * The code label of each NFA instruction.
+         */
+        private final int[] labels;
+
+        /**
+         * For loop heads: The index into {@link CompiledNfa#loopStarts}, otherwise -1.
+         */
+        private final int[] loopIndexes;
+
+        /**
+         * For each NFA instruction: The tag of the stack entry that resumes the evaluation at that instruction, or
+         * -1.
+         */
+        private final int[] resumeTags;
+
+        /**
+         * For {@link Nfa#RELUCTANT_LOOP} instructions: The tag of the stack entry that enters the loop body, or -1.
+         */
+        private final int[] bodyTags;
+
+        /**
+         * For loops where the body is a single {@link Nfa#CHAR} instruction, e.g. <code>"[a-z]*"</code>: The tag of
+         * the stack entry that gives back one character (greedy) resp. consumes one more character (reluctant), or
+         * -1. These loops need no {@link CompiledNfa#loopStarts}, because their body cannot match the empty string.
+         */
+        private final int[] charLoopTags;
+
+        private int loopCount, tagCount = 2;
+
+        ClassFileGenerator(Nfa nfa, String className) {
+            this.nfa       = nfa;
+            this.className = className;
+
+            int n = nfa.size();
+            this.labels      = new int[n];
+            this.loopIndexes = new int[n];
+            this.resumeTags  = new int[n];
+            this.bodyTags     = new int[n];
+            this.charLoopTags = new int[n];
+            Arrays.fill(this.loopIndexes,  -1);
+            Arrays.fill(this.resumeTags,   -1);
+            Arrays.fill(this.bodyTags,     -1);
+            Arrays.fill(this.charLoopTags, -1);
+
+            for (int pc = 0; pc < n; pc++) {
+                this.labels[pc] = this.code.newLabel();
+
+                if (NfaCompiler.isCharLoop(nfa, pc)) {
+                    this.charLoopTags[pc] = this.tagCount++;
+                    continue;
+                }
+
+                switch (nfa.kinds[pc]) {
+
+                case Nfa.SPLIT:
+                    this.resumeTag(nfa.next2[pc]);
+                    break;
+
+                case Nfa.GREEDY_LOOP:
+                    this.loopIndexes[pc] = this.loopCount++;
+                    this.resumeTag(nfa.next2[pc]);
+                    break;
+
+                case Nfa.RELUCTANT_LOOP:
+                    this.loopIndexes[pc] = this.loopCount++;
+                    this.bodyTags[pc]    = this.tagCount++;
+                    break;
+                }
+            }
+        }
+
+        private void
+        resumeTag(int pc) {
+            if (this.resumeTags[pc] == -1) this.resumeTags[pc] = this.tagCount++;
+        }
+
+        byte[]
+        generate() throws CodeTooLargeException {
+
+            ConstantPool cp = this.constantPool;
+
+            int thisClass  = cp.classRef(this.className);
+            int superClass = cp.classRef(NfaCompiler.COMPILED_NFA);
+
+            byte[] constructorCode = this.constructor();
+            byte[] newInstanceCode = this.newInstance();
+            byte[] runCode         = this.run();
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream      dos  = new DataOutputStream(baos);
+            try {
+                dos.writeInt(0xcafebabe);
+                dos.writeShort(0);  // minor_version
+                dos.writeShort(49); // major_version
+                byte[] constants = cp.toByteArray();
+                dos.writeShort(cp.count);
+                dos.write(constants);
+                dos.writeShort(0x0031); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+                dos.writeShort(thisClass);
+                dos.writeShort(superClass);
+                dos.writeShort(0);      // interfaces_count
+                dos.writeShort(0);      // fields_count
+                dos.writeShort(3);      // methods_count
+                dos.write(constructorCode);
+                dos.write(newInstanceCode);
+                dos.write(runCode);
+                dos.writeShort(0);      // attributes_count
+            } catch (IOException ioe) {
+                throw new AssertionError(ioe);
+            }
+
+            return baos.toByteArray();
+        }
+
+        /**
+         * {@code public GeneratedNfaN(CharacterClass[] classes) { super(classes, LOOP_COUNT); }}
+         */
+        private byte[]
+        constructor() throws CodeTooLargeException {
+
+            ConstantPool cp = this.constantPool;
+            Code         c  = new Code();
+
+            c.u1(Code.ALOAD_0);
+            c.u1(Code.ALOAD_1);
+            c.pushInt(cp, this.loopCount);
+            c.u1(Code.INVOKESPECIAL);
+            c.u2(cp.methodRef(NfaCompiler.COMPILED_NFA, "<init>", "([L" + NfaCompiler.CHARACTER_CLASS + ";I)V"));
+            c.u1(Code.RETURN);
+
+            return this.method(0x0001, "<init>", "([L" + NfaCompiler.CHARACTER_CLASS + ";)V", c, 3, 2);
+        }
+
+        /**
+         * {@code protected CompiledNfa newInstance() { return new GeneratedNfaN(this.classes); }}
+         */
+        private byte[]
+        newInstance() throws CodeTooLargeException {
+
+            ConstantPool cp = this.constantPool;
+            Code         c  = new Code();
+
+            c.u1(Code.NEW);
+            c.u2(cp.classRef(this.className));
+            c.u1(Code.DUP);
+            c.u1(Code.ALOAD_0);
+            c.u1(Code.GETFIELD);
+            c.u2(cp.fieldRef(NfaCompiler.COMPILED_NFA, "classes", "[L" + NfaCompiler.CHARACTER_CLASS + ";"));
+            c.u1(Code.INVOKESPECIAL);
+            c.u2(cp.methodRef(this.className, "<init>", "([L" + NfaCompiler.CHARACTER_CLASS + ";)V"));
+            c.u1(Code.ARETURN);
+
+            return this.method(0x0004, "newInstance", "()L" + NfaCompiler.COMPILED_NFA + ";", c, 3, 1);
+        }
+
+        /**
+         * {@code protected int run(CharSequence subject, int offset, int end, boolean toEnd, int[] groups)}
+         */
+        private byte[]
+        run() throws CodeTooLargeException {
+
+            Nfa          nfa = this.nfa;
+            ConstantPool cp  = this.constantPool;
+            Code         c   = this.code;
+
+            int fail = c.newLabel();
+
+            // int[] stack = this.stack;
+            c.u1(Code.ALOAD_0);
+            c.u1(Code.GETFIELD);
+            c.u2(cp.fieldRef(NfaCompiler.COMPILED_NFA, "stack", "[I"));
+            c.astore(NfaCompiler.STACK);
+
+            // int sp = 0;
+            c.u1(Code.ICONST_0);
+            c.istore(NfaCompiler.SP);
+
+            // int[] loopStarts = this.loopStarts;
+            c.u1(Code.ALOAD_0);
+            c.u1(Code.GETFIELD);
+            c.u2(cp.fieldRef(NfaCompiler.COMPILED_NFA, "loopStarts", "[I"));
+            c.astore(NfaCompiler.LOOP_STARTS);
+
+            c.branch(Code.GOTO, this.labels[nfa.start]);
+
+            for (int pc = 0; pc < nfa.size(); pc++) {
+                c.setLabel(this.labels[pc]);
+
+                int next1 = nfa.next1[pc], next2 = nfa.next2[pc];
+                switch (nfa.kinds[pc]) {
+
+                case Nfa.MATCH:
+                    {
+                        // if (toEnd && offset != end) goto fail;
+                        int success = c.newLabel();
+                        c.iload(NfaCompiler.TO_END);
+                        c.branch(Code.IFEQ, success);
+                        c.iload(NfaCompiler.OFFSET);
+                        c.iload(NfaCompiler.END);
+                        c.branch(Code.IF_ICMPNE, fail);
+
+                        // return offset;
+                        c.setLabel(success);
+                        c.iload(NfaCompiler.OFFSET);
+                        c.u1(Code.IRETURN);
+                    }
+                    break;
+
+                case Nfa.CHAR:
+                    this.consume(pc, fail);
+                    c.branch(Code.GOTO, this.labels[next1]);
+                    break;
+
+                case Nfa.SPLIT:
+                    this.push(3, this.resumeTags[next2]);
+                    c.branch(Code.GOTO, this.labels[next1]);
+                    break;
+
+                case Nfa.GREEDY_LOOP:
+
+                    if (this.charLoopTags[pc] != -1) {
+                        this.greedyCharLoop(pc);
+                        break;
+                    }
+
+                    // An empty iteration exits the loop.
+                    this.loadLoopStart(pc);
+                    c.iload(NfaCompiler.OFFSET);
+                    c.branch(Code.IF_ICMPEQ, this.labels[next2]);
+
+                    this.enterLoopBody(pc, 6);
+                    this.push(3, this.resumeTags[next2]);
+                    c.branch(Code.GOTO, this.labels[next1]);
+                    break;
+
+                case Nfa.RELUCTANT_LOOP:
+
+                    // Consume nothing for now, but remember to consume one more character when backtracking.
+                    if (this.charLoopTags[pc] != -1) {
+                        this.push(3, this.charLoopTags[pc]);
+                        c.branch(Code.GOTO, this.labels[next2]);
+                        break;
+                    }
+
+                    // An empty iteration exits the loop.
+                    this.loadLoopStart(pc);
+                    c.iload(NfaCompiler.OFFSET);
+                    c.branch(Code.IF_ICMPEQ, this.labels[next2]);
+
+                    this.push(3, this.bodyTags[pc]);
+                    c.branch(Code.GOTO, this.labels[next2]);
+                    break;
+
+                case Nfa.SAVE:
+
+                    // Remember the previous group offset, so that it can be restored when backtracking.
+                    this.ensureStackCapacity(3);
+                    this.store(new Runnable() { @Override public void run() { c.pushInt(cp, NfaCompiler.UNDO_SAVE); } });
+                    this.store(new Runnable() { @Override public void run() { c.pushInt(cp, next2); } });
+                    this.store(new Runnable() {
+
+                        @Override public void
+                        run() {
+                            c.aload(NfaCompiler.GROUPS);
+                            c.pushInt(cp, next2);
+                            c.u1(Code.IALOAD);
+                        }
+                    });
+
+                    // groups[next2] = offset;
+                    c.aload(NfaCompiler.GROUPS);
+                    c.pushInt(cp, next2);
+                    c.iload(NfaCompiler.OFFSET);
+                    c.u1(Code.IASTORE);
+
+                    c.branch(Code.GOTO, this.labels[next1]);
+                    break;
+
+                default:
+                    throw new AssertionError(nfa.kinds[pc]);
+                }
+            }
+
+            // Backtracking: Pop the next entry from the stack, and process it.
+            c.setLabel(fail);
+            {
+                int pop = c.newLabel();
+                c.iload(NfaCompiler.SP);
+                c.branch(Code.IFNE, pop);
+                c.u1(Code.ICONST_M1);
+                c.u1(Code.IRETURN);
+
+                c.setLabel(pop);
+
+                // this.step();
+                c.u1(Code.ALOAD_0);
+                c.u1(Code.INVOKEVIRTUAL);
+                c.u2(cp.methodRef(NfaCompiler.COMPILED_NFA, "step", "()V"));
+
+                c.iinc(NfaCompiler.SP, -3);
+                this.loadStackEntry(0);
+
+                int[] handlers = new int[this.tagCount];
+                for (int i = 0; i < handlers.length; i++) handlers[i] = c.newLabel();
+                c.tableswitch(fail, handlers);
+
+                // Restore a group offset.
+                c.setLabel(handlers[NfaCompiler.UNDO_SAVE]);
+                c.aload(NfaCompiler.GROUPS);
+                this.loadStackEntry(1);
+                this.loadStackEntry(2);
+                c.u1(Code.IASTORE);
+                c.branch(Code.GOTO, fail);
+
+                // Restore a loop start offset.
+                c.setLabel(handlers[NfaCompiler.UNDO_LOOP]);
+                c.aload(NfaCompiler.LOOP_STARTS);
+                this.loadStackEntry(1);
+                this.loadStackEntry(2);
+                c.u1(Code.IASTORE);
+                c.branch(Code.GOTO, fail);
+
+                for (int pc = 0; pc < nfa.size(); pc++) {
+
+                    // Resume at an NFA instruction.
+                    if (this.resumeTags[pc] != -1) {
+                        c.setLabel(handlers[this.resumeTags[pc]]);
+                        this.loadStackEntry(1);
+                        c.istore(NfaCompiler.OFFSET);
+                        c.branch(Code.GOTO, this.labels[pc]);
+                    }
+
+                    // Enter the body of a reluctant loop.
+                    if (this.bodyTags[pc] != -1) {
+                        c.setLabel(handlers[this.bodyTags[pc]]);
+                        this.loadStackEntry(1);
+                        c.istore(NfaCompiler.OFFSET);
+                        this.enterLoopBody(pc, 3);
+                        c.branch(Code.GOTO, this.labels[nfa.next1[pc]]);
+                    }
+
+                    // Give back one character (greedy), or consume one more character (reluctant).
+                    if (this.charLoopTags[pc] != -1) {
+                        c.setLabel(handlers[this.charLoopTags[pc]]);
+                        if (nfa.kinds[pc] == Nfa.GREEDY_LOOP) {
+                            this.giveBackChar(pc);
+                        } else {
+                            this.loadStackEntry(1);
+                            c.istore(NfaCompiler.OFFSET);
+                            this.consume(nfa.next1[pc], fail);
+                            this.push(3, this.charLoopTags[pc]);
+                            c.branch(Code.GOTO, this.labels[nfa.next2[pc]]);
+                        }
+                    }
+                }
+            }
+
+            return this.method(
+                0x0004, // ACC_PROTECTED
+                "run",
+                "(L" + NfaCompiler.CHAR_SEQUENCE + ";IIZ[I)I",
+                c,
+                8,
+                12
+            );
+        }
+
+        /**
+         * Generates code for a greedy loop over a single character class: Consumes as many characters as possible,
+         * and then pushes a stack entry for giving back characters.
+         */
+        private void
+        greedyCharLoop(int pc) {
+
+            final ConstantPool cp   = this.constantPool;
+            final Code         c    = this.code;
+            int                exit = this.labels[this.nfa.next2[pc]];
+
+            // from = offset;
+            c.iload(NfaCompiler.OFFSET);
+            c.istore(NfaCompiler.FROM);
+
+            // do { saved = offset; } while (<consume>);
+            int loop = c.newLabel(), mismatch = c.newLabel();
+            c.setLabel(loop);
+            c.iload(NfaCompiler.OFFSET);
+            c.istore(NfaCompiler.SAVED);
+            this.consume(this.nfa.next1[pc], mismatch);
+            c.branch(Code.GOTO, loop);
+
+            // offset = saved;
+            c.setLabel(mismatch);
+            c.iload(NfaCompiler.SAVED);
+            c.istore(NfaCompiler.OFFSET);
+
+            // if (offset > from) push(tag, from, offset);
+            c.iload(NfaCompiler.OFFSET);
+            c.iload(NfaCompiler.FROM);
+            c.branch(Code.IF_ICMPLE, exit);
+            this.ensureStackCapacity(3);
+            final int tag = this.charLoopTags[pc];
+            this.store(new Runnable() { @Override public void run() { c.pushInt(cp, tag); } });
+            this.store(new Runnable() { @Override public void run() { c.iload(NfaCompiler.FROM); } });
+            this.store(new Runnable() { @Override public void run() { c.iload(NfaCompiler.OFFSET); } });
+
+            c.branch(Code.GOTO, exit);
+        }
+
+        /**
+         * Generates code that processes the stack entry of a {@link #greedyCharLoop(int)}: Gives back one character,
+         * and keeps the entry on the stack iff more characters can be given back.
+         */
+        private void
+        giveBackChar(int pc) {
+
+            ConstantPool cp   = this.constantPool;
+            Code         c    = this.code;
+            int          exit = this.labels[this.nfa.next2[pc]];
+
+            // offset = positionMinus1(subject, stack[sp + 2], stack[sp + 1]);
+            c.aload(NfaCompiler.SUBJECT);
+            this.loadStackEntry(2);
+            this.loadStackEntry(1);
+            c.u1(Code.INVOKESTATIC);
+            c.u2(cp.methodRef(
+                NfaCompiler.COMPILED_NFA,
+                "positionMinus1",
+                "(L" + NfaCompiler.CHAR_SEQUENCE + ";II)I"
+            ));
+            c.istore(NfaCompiler.OFFSET);
+
+            // if (offset > stack[sp + 1]) { stack[sp + 2] = offset; sp += 3; }
+            c.iload(NfaCompiler.OFFSET);
+            this.loadStackEntry(1);
+            c.branch(Code.IF_ICMPLE, exit);
+            c.aload(NfaCompiler.STACK);
+            c.iload(NfaCompiler.SP);
+            c.pushInt(cp, 2);
+            c.u1(Code.IADD);
+            c.iload(NfaCompiler.OFFSET);
+            c.u1(Code.IASTORE);
+            c.iinc(NfaCompiler.SP, 3);
+
+            c.branch(Code.GOTO, exit);
+        }
+
+        /**
+         * Generates code that reads one code point and checks it against the character class of the {@link Nfa#CHAR}
+         * instruction <var>pc</var>.
+         */
+        private void
+        consume(int pc, int fail) {
+
+            ConstantPool   cp = this.constantPool;
+            Code           c  = this.code;
+            CharacterClass cc = this.nfa.classes[pc];
+
+            int lowerBound = cc.lowerBound(), upperBound = cc.upperBound();
+
+            // if (offset >= end) { this.hitEnd = true; goto fail; }
+            int notAtEnd = c.newLabel();
+            c.iload(NfaCompiler.OFFSET);
+            c.iload(NfaCompiler.END);
+            c.branch(Code.IF_ICMPLT, notAtEnd);
+            c.u1(Code.ALOAD_0);
+            c.u1(Code.ICONST_1);
+            c.u1(Code.PUTFIELD);
+            c.u2(cp.fieldRef(NfaCompiler.COMPILED_NFA, "hitEnd", "Z"));
+            c.branch(Code.GOTO, fail);
+            c.setLabel(notAtEnd);
+
+            // int cp = subject.charAt(offset++);
+            c.aload(NfaCompiler.SUBJECT);
+            c.iload(NfaCompiler.OFFSET);
+            c.u1(Code.INVOKEINTERFACE);
+            c.u2(cp.interfaceMethodRef(NfaCompiler.CHAR_SEQUENCE, "charAt", "(I)C"));
+            c.u1(2);
+            c.u1(0);
+            c.istore(NfaCompiler.CP);
+            c.iinc(NfaCompiler.OFFSET, 1);
+
+            // Surrogates need to be decoded only if the character class could match them.
+            if (upperBound > Character.MIN_SURROGATE) {
+                int decoded = c.newLabel();
+                c.iload(NfaCompiler.CP);
+                c.pushInt(cp, Character.MIN_SURROGATE);
+                c.branch(Code.IF_ICMPLT, decoded);
+
+                // cp = codePointAt(subject, offset - 1, end);
+                c.aload(NfaCompiler.SUBJECT);
+                c.iload(NfaCompiler.OFFSET);
+                c.u1(Code.ICONST_1);
+                c.u1(Code.ISUB);
+                c.iload(NfaCompiler.END);
+                c.u1(Code.INVOKESTATIC);
+                c.u2(cp.methodRef(
+                    NfaCompiler.COMPILED_NFA,
+                    "codePointAt",
+                    "(L" + NfaCompiler.CHAR_SEQUENCE + ";II)I"
+                ));
+                c.istore(NfaCompiler.CP);
+
+                // if (cp >= 0x10000) offset++;
+                c.iload(NfaCompiler.CP);
+                c.pushInt(cp, Character.MIN_SUPPLEMENTARY_CODE_POINT);
+                c.branch(Code.IF_ICMPLT, decoded);
+                c.iinc(NfaCompiler.OFFSET, 1);
+
+                c.setLabel(decoded);
+            }
+
+            if (upperBound - lowerBound == 1 && cc.matches(lowerBound)) {
+
+                // Literal character.
+                c.iload(NfaCompiler.CP);
+                c.pushInt(cp, lowerBound);
+                c.branch(Code.IF_ICMPNE, fail);
+            } else
+            if (upperBound - lowerBound <= 256 && NfaCompiler.matchesAll(cc, lowerBound, upperBound)) {
+
+                // Character range, e.g. "[a-z]".
+                c.iload(NfaCompiler.CP);
+                c.pushInt(cp, lowerBound);
+                c.branch(Code.IF_ICMPLT, fail);
+                c.iload(NfaCompiler.CP);
+                c.pushInt(cp, upperBound);
+                c.branch(Code.IF_ICMPGE, fail);
+            } else
+            {
+
+                // if (!this.classes[pc].matches(cp)) goto fail;
+                c.u1(Code.ALOAD_0);
+                c.u1(Code.GETFIELD);
+                c.u2(cp.fieldRef(NfaCompiler.COMPILED_NFA, "classes", "[L" + NfaCompiler.CHARACTER_CLASS + ";"));
+                c.pushInt(cp, pc);
+                c.u1(Code.AALOAD);
+                c.iload(NfaCompiler.CP);
+                c.u1(Code.INVOKEVIRTUAL);
+                c.u2(cp.methodRef(NfaCompiler.CHARACTER_CLASS, "matches", "(I)Z"));
+                c.branch(Code.IFEQ, fail);
+            }
+        }
+
+        /**
+         * Generates code that records the current offset as the start of an iteration of the loop with head
+         * <var>pc</var> (and pushes an "undo" entry for that).
+         */
+        private void
+        enterLoopBody(final int pc, int stackCapacity) {
+
+            final ConstantPool cp = this.constantPool;
+            final Code         c  = this.code;
+
+            this.ensureStackCapacity(stackCapacity);
+            this.store(new Runnable() { @Override public void run() { c.pushInt(cp, NfaCompiler.UNDO_LOOP); } });
+            this.store(new Runnable() {
+                @Override public void run() { c.pushInt(cp, ClassFileGenerator.this.loopIndexes[pc]); }
+            });
+            this.store(new Runnable() { @Override public void run() { ClassFileGenerator.this.loadLoopStart(pc); } });
+
+            // loopStarts[loopIndex] = offset;
+            c.aload(NfaCompiler.LOOP_STARTS);
+            c.pushInt(cp, this.loopIndexes[pc]);
+            c.iload(NfaCompiler.OFFSET);
+            c.u1(Code.IASTORE);
+        }
+
+        private void
+        loadLoopStart(int pc) {
+            this.code.aload(NfaCompiler.LOOP_STARTS);
+            this.code.pushInt(this.constantPool, this.loopIndexes[pc]);
+            this.code.u1(Code.IALOAD);
+        }
+
+        /**
+         * Generates code that pushes a stack entry with the given <var>tag</var> and the current offset.
+         */
+        private void
+        push(int stackCapacity, final int tag) {
+
+            final ConstantPool cp = this.constantPool;
+            final Code         c  = this.code;
+
+            this.ensureStackCapacity(stackCapacity);
+            this.store(new Runnable() { @Override public void run() { c.pushInt(cp, tag); } });
+            this.store(new Runnable() { @Override public void run() { c.iload(NfaCompiler.OFFSET); } });
+            c.iinc(NfaCompiler.SP, 1);
+        }
+
+        /**
+         * Generates code that grows the stack iff less than <var>n</var> elements are available.
+         */
+        private void
+        ensureStackCapacity(int n) {
+
+            Code c = this.code;
+
+            // if (sp + n > stack.length) stack = this.grow(stack);
+            int ok = c.newLabel();
+            c.iload(NfaCompiler.SP);
+            c.pushInt(this.constantPool, n);
+            c.u1(Code.IADD);
+            c.aload(NfaCompiler.STACK);
+            c.u1(Code.ARRAYLENGTH);
+            c.branch(Code.IF_ICMPLE, ok);
+            c.u1(Code.ALOAD_0);
+            c.aload(NfaCompiler.STACK);
+            c.u1(Code.INVOKEVIRTUAL);
+            c.u2(this.constantPool.methodRef(NfaCompiler.COMPILED_NFA, "grow", "([I)[I"));
+            c.astore(NfaCompiler.STACK);
+            c.setLabel(ok);
+        }
+
+        /**
+         * Generates code that stores the value produced by the <var>value</var> code at {@code stack[sp++]}.
+         */
+        private void
+        store(Runnable value) {
+            Code c = this.code;
+            c.aload(NfaCompiler.STACK);
+            c.iload(NfaCompiler.SP);
+            value.run();
+            c.u1(Code.IASTORE);
+            c.iinc(NfaCompiler.SP, 1);
+        }
+
+        /**
+         * Generates code that loads {@code stack[sp + index]}.
+         */
+        private void
+        loadStackEntry(int index) {
+            Code c = this.code;
+            c.aload(NfaCompiler.STACK);
+            c.iload(NfaCompiler.SP);
+            if (index != 0) {
+                c.pushInt(this.constantPool, index);
+                c.u1(Code.IADD);
+            }
+            c.u1(Code.IALOAD);
+        }
+
+        private byte[]
+        method(int accessFlags, String name, String descriptor, Code c, int maxStack, int maxLocals)
+        throws CodeTooLargeException {
+
+            byte[] bytecode = c.toByteArray();
+            if (bytecode.length > 65535) throw new CodeTooLargeException();
+
+            ConstantPool          cp   = this.constantPool;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream      dos  = new DataOutputStream(baos);
+            try {
+                dos.writeShort(accessFlags);
+                dos.writeShort(cp.utf8(name));
+                dos.writeShort(cp.utf8(descriptor));
+                dos.writeShort(1); // attributes_count
+                dos.writeShort(cp.utf8("Code"));
+                dos.writeInt(12 + bytecode.length);
+                dos.writeShort(maxStack);
+                dos.writeShort(maxLocals);
+                dos.writeInt(bytecode.length);
+                dos.write(bytecode);
+                dos.writeShort(0); // exception_table_length
+                dos.writeShort(0); // attributes_count
+            } catch (IOException ioe) {
+                throw new AssertionError(ioe);
+            }
+
+            return baos.toByteArray();
+        }
+    }
+
+    /**
+     * @return Whether the instruction <var>pc</var> is the head of a loop whose body is one single {@link Nfa#CHAR}
+     *         instruction
+     */
+    private static boolean
+    isCharLoop(Nfa nfa, int pc) {
+
+        int kind = nfa.kinds[pc];
+        if (kind != Nfa.GREEDY_LOOP && kind != Nfa.RELUCTANT_LOOP) return false;
+
+        int body = nfa.next1[pc];
+        return nfa.kinds[body] == Nfa.CHAR && nfa.next1[body] == pc;
+    }
+
+    private static boolean
+    matchesAll(CharacterClass cc, int from, int to) {
+        for (int cp = from; cp < to; cp++) {
+            if (!cc.matches(cp)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The constant pool of a class file under construction.
+     */
+    private static final
+    class ConstantPool {
+
+        private final ByteArrayOutputStream baos    = new ByteArrayOutputStream();
+        private final DataOutputStream      dos     = new DataOutputStream(this.baos);
+        private final Map<String, Integer>  indexes = new HashMap<String, Integer>();
+
+        /**
+         * The "constant_pool_count", i.e. the number of entries plus one.
+         */
+        int count = 1;
+
+        int
+        utf8(String s) {
+
+            Integer result = this.indexes.get("U" + s);
+            if (result != null) return result;
+
+            try {
+                this.dos.writeByte(1); // CONSTANT_Utf8
+                this.dos.writeUTF(s);
+            } catch (IOException ioe) {
+                throw new AssertionError(ioe);
+            }
+
+            return this.add("U" + s);
+        }
+
+        int
+        classRef(String internalName) { return this.entry(7, "C" + internalName, this.utf8(internalName), -1); }
+
+        int
+        fieldRef(String clasS, String name, String descriptor) {
+            return this.memberRef(9, clasS, name, descriptor);
+        }
+
+        int
+        methodRef(String clasS, String name, String descriptor) {
+            return this.memberRef(10, clasS, name, descriptor);
+        }
+
+        int
+        interfaceMethodRef(String clasS, String name, String descriptor) {
+            return this.memberRef(11, clasS, name, descriptor);
+        }
+
+        int
+        integer(int value) {
+
+            Integer result = this.indexes.get("I" + value);
+            if (result != null) return result;
+
+            try {
+                this.dos.writeByte(3); // CONSTANT_Integer
+                this.dos.writeInt(value);
+            } catch (IOException ioe) {
+                throw new AssertionError(ioe);
+            }
+
+            return this.add("I" + value);
+        }
+
+        byte[]
+        toByteArray() { return this.baos.toByteArray(); }
+
+        private int
+        memberRef(int tag, String clasS, String name, String descriptor) {
+            int nameAndType = this.entry(12, "N" + name + ' ' + descriptor, this.utf8(name), this.utf8(descriptor));
+            return this.entry(tag, tag + clasS + '.' + name + ' ' + descriptor, this.classRef(clasS), nameAndType);
+        }
+
+        /**
+         * Adds a constant pool entry that consists of the <var>tag</var> and one or two indexes.
+         */
+        private int
+        entry(int tag, String key, int index1, int index2) {
+
+            Integer result = this.indexes.get(key);
+            if (result != null) return result;
+
+            try {
+                this.dos.writeByte(tag);
+                this.dos.writeShort(index1);
+                if (index2 != -1) this.dos.writeShort(index2);
+            } catch (IOException ioe) {
+                throw new AssertionError(ioe);
+            }
+
+            return this.add(key);
+        }
+
+        private int
+        add(String key) {
+            this.indexes.put(key, this.count);
+            return this.count++;
+        }
+    }
+
+    /**
+     * The bytecode of a method under construction, with support for forward and backward branches.
+     */
+    private static final
+    class Code {
+
+        static final int ICONST_M1       = 0x02;
+        static final int ICONST_0        = 0x03;
+        static final int ICONST_1        = 0x04;
+        static final int BIPUSH          = 0x10;
+        static final int SIPUSH          = 0x11;
+        static final int LDC_W           = 0x13;
+        static final int ILOAD           = 0x15;
+        static final int ALOAD           = 0x19;
+        static final int ALOAD_0         = 0x2a;
+        static final int ALOAD_1         = 0x2b;
+        static final int IALOAD          = 0x2e;
+        static final int AALOAD          = 0x32;
+        static final int ISTORE          = 0x36;
+        static final int ASTORE          = 0x3a;
+        static final int IASTORE         = 0x4f;
+        static final int DUP             = 0x59;
+        static final int IADD            = 0x60;
+        static final int ISUB            = 0x64;
+        static final int IINC            = 0x84;
+        static final int IFEQ            = 0x99;
+        static final int IFNE            = 0x9a;
+        static final int IF_ICMPEQ       = 0x9f;
+        static final int IF_ICMPNE       = 0xa0;
+        static final int IF_ICMPLT       = 0xa1;
+        static final int IF_ICMPGE       = 0xa2;
+        static final int IF_ICMPLE       = 0xa4;
+        static final int GOTO            = 0xa7;
+        static final int TABLESWITCH     = 0xaa;
+        static final int IRETURN         = 0xac;
+        static final int ARETURN         = 0xb0;
+        static final int RETURN          = 0xb1;
+        static final int GETFIELD        = 0xb4;
+        static final int PUTFIELD        = 0xb5;
+        static final int INVOKEVIRTUAL   = 0xb6;
+        static final int INVOKESPECIAL   = 0xb7;
+        static final int INVOKESTATIC    = 0xb8;
+        static final int INVOKEINTERFACE = 0xb9;
+        static final int NEW             = 0xbb;
+        static final int ARRAYLENGTH     = 0xbe;
+
+        private byte[] bytes = new byte[256];
+        private int    size;
+
+        /**
+         * The offset of each label, or -1 iff the label is not yet set.
+         */
+        private int[] labelOffsets = new int[16];
+        private int   labelCount;
+
+        /**
+         * The branch offsets to patch; each "fixup" consists of three {@code int}s: The offset of the branch offset,
+         * the offset of the branch instruction, and the label.
+         */
+        private int[] fixups = new int[48];
+        private int   fixupCount;
+
+        int
+        newLabel() {
+            if (this.labelCount == this.labelOffsets.length) {
+                this.labelOffsets = Arrays.copyOf(this.labelOffsets, 2 * this.labelCount);
+            }
+            this.labelOffsets[this.labelCount] = -1;
+            return this.labelCount++;
+        }
+
+        void
+        setLabel(int label) { this.labelOffsets[label] = this.size; }
+
+        void
+        u1(int value) {
+            if (this.size == this.bytes.length) this.bytes = Arrays.copyOf(this.bytes, 2 * this.size);
+            this.bytes[this.size++] = (byte) value;
+        }
+
+        void
+        u2(int value) {
+            this.u1(value >> 8);
+            this.u1(value);
+        }
+
+        void
+        u4(int value) {
+            this.u2(value >> 16);
+            this.u2(value);
+        }
+
+        void
+        pushInt(ConstantPool cp, int value) {
+            if (value >= -1 && value <= 5) {
+                this.u1(Code.ICONST_0 + value);
+            } else
+            if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                this.u1(Code.BIPUSH);
+                this.u1(value);
+            } else
+            if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                this.u1(Code.SIPUSH);
+                this.u2(value);
+            } else
+            {
+                this.u1(Code.LDC_W);
+                this.u2(cp.integer(value));
+            }
+        }
+
+        void iload(int index)  { this.u1(Code.ILOAD);  this.u1(index); }
+        void istore(int index) { this.u1(Code.ISTORE); this.u1(index); }
+        void aload(int index)  { this.u1(Code.ALOAD);  this.u1(index); }
+        void astore(int index) { this.u1(Code.ASTORE); this.u1(index); }
+
+        void
+        iinc(int index, int increment) {
+            this.u1(Code.IINC);
+            this.u1(index);
+            this.u1(increment);
+        }
+
+        /**
+         * Generates a branch instruction with a 16-bit branch offset.
+         */
+        void
+        branch(int opcode, int label) {
+            int instructionOffset = this.size;
+            this.u1(opcode);
+            this.fixup(instructionOffset, label);
+            this.u2(0);
+        }
+
+        void
+        tableswitch(int defaultLabel, int[] labels) {
+
+            int instructionOffset = this.size;
+            this.u1(Code.TABLESWITCH);
+            while (this.size % 4 != 0) this.u1(0);
+
+            this.fixup(instructionOffset, defaultLabel);
+            this.u4(0);
+            this.u4(0);
+            this.u4(labels.length - 1);
+            for (int label : labels) {
+                this.fixup(instructionOffset, label);
+                this.u4(0);
+            }
+        }
+
+        /**
+         * @return The bytecode, with all branch offsets patched
+         */
+        byte[]
+        toByteArray() throws CodeTooLargeException {
+
+            for (int i = 0; i < this.fixupCount; i += 3) {
+                int at                = this.fixups[i];
+                int instructionOffset = this.fixups[i + 1];
+                int labelOffset       = this.labelOffsets[this.fixups[i + 2]];
+                assert labelOffset != -1;
+
+                int branchOffset = labelOffset - instructionOffset;
+                if ((this.bytes[instructionOffset] & 0xff) == Code.TABLESWITCH) {
+                    this.bytes[at]     = (byte) (branchOffset >> 24);
+                    this.bytes[at + 1] = (byte) (branchOffset >> 16);
+                    this.bytes[at + 2] = (byte) (branchOffset >> 8);
+                    this.bytes[at + 3] = (byte) branchOffset;
+                } else {
+                    if (branchOffset < Short.MIN_VALUE || branchOffset > Short.MAX_VALUE) {
+                        throw new CodeTooLargeException();
+                    }
+                    this.bytes[at]     = (byte) (branchOffset >> 8);
+                    this.bytes[at + 1] = (byte) branchOffset;
+                }
+            }
+
+            return Arrays.copyOf(this.bytes, this.size);
+        }
+
+        private void
+        fixup(int instructionOffset, int label) {
+            if (this.fixupCount == this.fixups.length) this.fixups = Arrays.copyOf(this.fixups, 2 * this.fixupCount);
+            this.fixups[this.fixupCount++] = this.size;
+            this.fixups[this.fixupCount++] = instructionOffset;
+            this.fixups[this.fixupCount++] = label;
+        }
+    }
+}
@@ -80,6 +80,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -104,6 +105,36 @@ class Pattern implements de.unkrig.ref4j.Pattern, Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Enables matching in guaranteed linear time, i.e. O(<var>n</var>·<var>m</var>) for a subject of length
+     * <var>n</var> and a pattern of size <var>m</var>, instead of the default backtracking, which may take exponential
+     * time for patterns like <code>"(x+x+)+y"</code>.
+     * <p>
+     *   Only "regular" patterns are supported, i.e. no back references, lookarounds, boundary matchers or possessive
+     *   quantifiers; for all other patterns, {@link PatternFactory#compile(String, int)} throws a {@link
+     *   java.util.regex.PatternSyntaxException}. Also, {@link Matcher#count(int)} is not supported.
+     * </p>
+     * <p>
+     *   Even without this flag, the linear-time evaluation is chosen automatically for patterns with ambiguous nested
+     *   quantifiers.
+     * </p>
+     * <p>
+     *   Patterns with alternatives or quantifiers are additionally pre-checked with a lazy DFA. That DFA decides
+     *   {@link #matches(CharSequence)} on its own, but for a {@link Matcher} it only <em>rejects</em> subjects; when
+     *   it reports a match, the matching engine evaluates the subject once more to determine the bounds and groups of
+     *   the match. Thus, the DFA speeds up failing matches, but slightly slows down successful ones.
+     * </p>
+     */
+    public static final int LINEAR_TIME = 0x10000;
+
+    /**
+     * Enables the translation of the pattern into JVM bytecode, which typically evaluates faster than the default
+     * interpretation, at the cost of a significantly more expensive compilation. Is silently ignored for patterns that
+     * cannot be represented as an NFA (e.g. with back references, lookarounds or boundary matchers), that have
+     * capturing quantifiers, or that are evaluated in {@link #LINEAR_TIME}.
+     */
+    public static final int BYTECODE = 0x20000;
+
     static final int SUPPORTED_FLAGS = (
         0
 //        | Pattern.CANON_EQ   <= currently not implemented
@@ -115,6 +146,8 @@ class Pattern implements de.unkrig.ref4j.Pattern, Serializable {
         | Pattern.UNICODE_CASE
         | Pattern.UNIX_LINES
         | Pattern.UNICODE_CHARACTER_CLASS
+        | Pattern.LINEAR_TIME
+        | Pattern.BYTECODE
     );
 
     private static final EnumSet<ScannerState>
@@ -149,6 +182,13 @@ class Pattern implements de.unkrig.ref4j.Pattern, Serializable {
      */
     final String pattern;
 
+    /**
+     * The char frequencies of the subjects, for choosing the search strategy.
+     *
+     * @see PatternFactory#withCharFrequencies(CharFrequencies)
+     */
+    CharFrequencies charFrequencies; // Cannot be FINAL because of "readObject()".
+
     /**
      * Internal representation of the parsed regular expression.
      */
@@ -170,6 +210,23 @@ class Pattern implements de.unkrig.ref4j.Pattern, Serializable {
      */
     transient int capturingQuantifierCount;
 
+    /**
+     * The evaluators that are derived from the {@link Nfa} of the {@link #sequence}; created lazily by {@link
+     * #engines()}, because translating the {@link #sequence} costs about as much as parsing the pattern.
+     */
+    @Nullable private transient volatile Engines engines;
+
+    /**
+     * For each loop (i.e. <code>"X*"</code> and <code>"X+"</code>), its row in the {@link MatcherImpl} "failures"
+     * bitmap, or -1 iff that loop is not memoized.
+     */
+    transient int[] loopRows;
+
+    /**
+     * The number of memoized loops, i.e. the number of rows of the {@link MatcherImpl} "failures" bitmap.
+     */
+    transient int memoizedLoopCount;
+
     // SUPPRESS CHECKSTYLE JavadocVariable:59
     enum TokenType {
 
@@ -337,10 +394,11 @@ class Pattern implements de.unkrig.ref4j.Pattern, Serializable {
      * Notice that when this constructor is used, the pattern object is <em>not</em> completely initialized - you must
      * call {@link #init(Sequence, int, Map, int)} first!
      */
-    Pattern(String pattern, int flags) {
+    Pattern(String pattern, int flags, CharFrequencies charFrequencies) {
 
-        this.flags   = flags;
-        this.pattern = pattern;
+        this.flags           = flags;
+        this.pattern         = pattern;
+        this.charFrequencies = charFrequencies;
 
         // The following are only initialized by "init()", but we don't want to add any NULL checks.
         this.sequence    = ObjectUtil.almostNull();
@@ -352,12 +410,86 @@ class Pattern implements de.unkrig.ref4j.Pattern, Serializable {
         Sequence             sequence,
         int                  groupCount,
         Map<String, Integer> namedGroups,
-        int                  capturingQuantifierCount
+        int                  capturingQuantifierCount,
+        int[]                loopRows
     ) {
         this.sequence                 = sequence;
         this.groupCount               = groupCount;
         this.namedGroups              = namedGroups;
         this.capturingQuantifierCount = capturingQuantifierCount;
+        this.loopRows                 = loopRows;
+
+        int memoizedLoopCount = 0;
+        for (int row : loopRows) {
+            if (row != -1) memoizedLoopCount++;
+        }
+        this.memoizedLoopCount = memoizedLoopCount;
+    }
+
+    /**
+     * @return The evaluators that are derived from the {@link Nfa} of the {@link #sequence}; created on first use
+     */
+    Engines
+    engines() {
+
+        Engines result = this.engines;
+        if (result == null) {
+
+            Nfa nfa = Nfa.compile(this.sequence);
+
+            Dfa dfa = nfa != null && nfa.hasSplits ? new Dfa(nfa) : null;
+
+            PikeVm pikeVm = nfa != null && (
+                (this.flags & Pattern.LINEAR_TIME) != 0
+                || (nfa.isAmbiguous && this.capturingQuantifierCount == 0)
+            ) ? new PikeVm(nfa) : null;
+
+            CompiledNfa compiledNfa = (
+                nfa != null
+                && pikeVm == null
+                && (this.flags & Pattern.BYTECODE) != 0
+                && this.capturingQuantifierCount == 0
+            ) ? NfaCompiler.compile(nfa) : null;
+
+            this.engines = (result = new Engines(dfa, pikeVm, compiledNfa));
+        }
+
+        return result;
+    }
+
+    /**
+     * The evaluators that are derived from the {@link Nfa} of a pattern's {@link Pattern#sequence}.
+     */
+    static final
+    class Engines {
+
+        /**
+         * The automaton that is used to quickly reject non-matching subjects, or {@code null} iff the {@link
+         * Pattern#sequence} cannot be represented as an {@link Nfa}, or if it would not pay off because the {@link
+         * Pattern#sequence} never backtracks.
+         */
+        @Nullable final Dfa dfa;
+
+        /**
+         * The linear-time evaluator that replaces the backtracking engine, or {@code null}. Is non-null iff the {@link
+         * Pattern#LINEAR_TIME} flag is configured, or the {@link Pattern#sequence} is "ambiguous" (and has no capturing
+         * quantifiers).
+         */
+        @Nullable final PikeVm pikeVm;
+
+        /**
+         * The bytecode translation of the {@link Pattern#sequence}, or {@code null}. Is only a "prototype" for the
+         * instances that the matchers use, because it is not thread-safe.
+         *
+         * @see Pattern#BYTECODE
+         */
+        @Nullable final CompiledNfa compiledNfa;
+
+        Engines(@Nullable Dfa dfa, @Nullable PikeVm pikeVm, @Nullable CompiledNfa compiledNfa) {
+            this.dfa         = dfa;
+            this.pikeVm      = pikeVm;
+            this.compiledNfa = compiledNfa;
+        }
     }
 
     static
@@ -367,6 +499,19 @@ class Pattern implements de.unkrig.ref4j.Pattern, Serializable {
         final Map<String, Integer> namedGroups = new HashMap<String, Integer>();
         int                        capturingQuantifierCount;
 
+        /**
+         * The number of loops parsed so far; see {@link Sequences#quantifierInfinity(Sequence, boolean,
+         * QuantifierNature, int)}.
+         */
+        int loopCount;
+
+        /**
+         * The loops that are nested in quantifiers or lookarounds.
+         */
+        final BitSet nestedLoops = new BitSet();
+
+        boolean hasBackReferences;
+
         RegexScanner() { super(ScannerState.class); }
 
         RegexScanner(RegexScanner that) {
@@ -375,6 +520,25 @@ class Pattern implements de.unkrig.ref4j.Pattern, Serializable {
             // We don't use the "default state" feature, but only EXPLICIT states.
             this.setCurrentState(ScannerState.DEFAULT);
         }
+
+        /**
+         * A loop can be memoized iff its continuation depends only on the offset, i.e. iff it is not nested, and the
+         * pattern has no back references and no capturing quantifiers.
+         *
+         * @return For each loop, its row in the {@link MatcherImpl} "failures" bitmap, or -1
+         */
+        int[]
+        loopRows() {
+
+            boolean memoize = !this.hasBackReferences && this.capturingQuantifierCount == 0;
+
+            int[] result = new int[this.loopCount];
+            for (int i = 0, row = 0; i < result.length; i++) {
+                result[i] = memoize && !this.nestedLoops.get(i) ? row++ : -1;
+            }
+
+            return result;
+        }
     }
 
     /**
@@ -763,12 +927,30 @@ class Pattern implements de.unkrig.ref4j.Pattern, Serializable {
         // Optimization: Test whether the sequence can possibly match all remaining chars.
         if (this.sequence.maxMatchLength < regionLength) return false;
 
+        // Optimization: Let the DFA reject the subject in linear time.
+        Engines engines = this.engines();
+        Dfa     dfa     = engines.dfa;
+        if (dfa != null) {
+            Dfa.Result r = dfa.matches(subject, regionStart, regionEnd);
+            if (r == Dfa.Result.NO_MATCH || r == Dfa.Result.NO_MATCH_HIT_END) return false;
+
+            // No groups are needed, so the DFA's verdict is final.
+            if (r == Dfa.Result.MATCH) return true;
+        }
+
         MatcherImpl mi = new MatcherImpl(this, subject);
         mi.regionStart = regionStart;
         mi.regionEnd   = regionEnd;
         mi.offset      = regionStart;
         mi.end         = MatcherImpl.End.END_OF_REGION;
 
+        PikeVm pikeVm = engines.pikeVm;
+        if (pikeVm != null) return pikeVm.matches(mi);
+
+        CompiledNfa compiledNfa = engines.compiledNfa;
+        if (compiledNfa != null) return compiledNfa.newInstance().matches(mi);
+
+        mi.resetFailures();
         return this.sequence.matches(mi);
     }
 
@@ -852,6 +1034,9 @@ class Pattern implements de.unkrig.ref4j.Pattern, Serializable {
 
         ois.defaultReadObject();
 
+        // Patterns that were serialized by older versions have no char frequencies.
+        if (this.charFrequencies == null) this.charFrequencies = CharFrequencies.ENGLISH;
+
         PatternFactory.compile2(this);
     }
 }
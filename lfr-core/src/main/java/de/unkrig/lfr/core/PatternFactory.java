@@ -64,7 +64,12 @@ import de.unkrig.lfr.core.Sequences.QuantifierNature;
 public final
 class PatternFactory extends de.unkrig.ref4j.PatternFactory {
 
-    private PatternFactory() {}
+    /**
+     * @see #withCharFrequencies(CharFrequencies)
+     */
+    private final CharFrequencies charFrequencies;
+
+    private PatternFactory(CharFrequencies charFrequencies) { this.charFrequencies = charFrequencies; }
 
     private static final MethodWrapper1<Character, Integer, String, RuntimeException>
     CHARACTER__CODE_POINT_OF = OptionalMethods.get1(
@@ -76,9 +81,18 @@ class PatternFactory extends de.unkrig.ref4j.PatternFactory {
     );
 
     /**
-     * The singleton {@link de.unkrig.ref4j.PatternFactory} that implements the LFR regex engine.
+     * The {@link de.unkrig.ref4j.PatternFactory} that implements the LFR regex engine.
+     *
+     * @see #withCharFrequencies(CharFrequencies)
+     */
+    public static final PatternFactory INSTANCE = new PatternFactory(CharFrequencies.ENGLISH);
+
+    /**
+     * @return A {@link PatternFactory} that compiles patterns which optimize their search strategy for subjects with
+     *         the given <var>charFrequencies</var> (instead of {@link CharFrequencies#ENGLISH})
      */
-    public static final PatternFactory INSTANCE = new PatternFactory();
+    public PatternFactory
+    withCharFrequencies(CharFrequencies charFrequencies) { return new PatternFactory(charFrequencies); }
 
     @Override public String
     getId() { return "de.unkrig.lfr"; }
@@ -105,7 +119,7 @@ class PatternFactory extends de.unkrig.ref4j.PatternFactory {
     @Override public Pattern
     compile(String regex, int flags) throws PatternSyntaxException {
 
-        Pattern result = new Pattern(regex, flags);
+        Pattern result = new Pattern(regex, flags, this.charFrequencies);
 
         PatternFactory.compile2(result);
 
@@ -147,7 +161,17 @@ class PatternFactory extends de.unkrig.ref4j.PatternFactory {
             throw pse;
         }
 
-        result.init(sequence, rs.groupCount, rs.namedGroups, rs.capturingQuantifierCount);
+        result.init(sequence, rs.groupCount, rs.namedGroups, rs.capturingQuantifierCount, rs.loopRows());
+
+        // Any back reference (even to a non-existent group, which translates to a FAIL) prevents linear time.
+        // Notice: With LINEAR_TIME, this creates the evaluators eagerly.
+        if ((result.flags & Pattern.LINEAR_TIME) != 0 && (rs.hasBackReferences || result.engines().pikeVm == null)) {
+            throw new PatternSyntaxException(
+                "Pattern cannot be evaluated in linear time",
+                result.pattern,
+                -1
+            );
+        }
     }
 
     /**
@@ -254,7 +278,8 @@ class PatternFactory extends de.unkrig.ref4j.PatternFactory {
             private Sequence
             parseQuantified() throws ParseException {
 
-                final Sequence op = this.parsePrimary();
+                final int      loopsBefore = rs.loopCount;
+                final Sequence op          = this.parsePrimary();
 
                 Token<TokenType> t = this.peekRead(
                     TokenType.QUESTION,
@@ -264,11 +289,19 @@ class PatternFactory extends de.unkrig.ref4j.PatternFactory {
                 );
                 if (t == null) return op;
 
+                // The loops within the operand must not be memoized, because their continuations depend on the state
+                // of this quantifier.
+                rs.nestedLoops.set(loopsBefore, rs.loopCount);
+
                 switch (t.type) {
 
                 case QUESTION: return Sequences.quantifierZeroOne(op, this.parseQuantifierNature());
-                case ASTERISK: return Sequences.quantifierInfinity(op, true, this.parseQuantifierNature());
-                case PLUS:     return Sequences.quantifierInfinity(op, false, this.parseQuantifierNature());
+
+                case ASTERISK:
+                    return Sequences.quantifierInfinity(op, true, this.parseQuantifierNature(), rs.loopCount++);
+
+                case PLUS:
+                    return Sequences.quantifierInfinity(op, false, this.parseQuantifierNature(), rs.loopCount++);
 
                 case CAPTURING_QUANTIFIER:
                     try {
@@ -388,7 +421,10 @@ class PatternFactory extends de.unkrig.ref4j.PatternFactory {
 
                         // An invalid group number 1...9 results in a match failure (this fact is missing from the JUR
                         // documentation).
-                        if (groupNumber <= 9) return CharacterClasses.FAIL;
+                        if (groupNumber <= 9) {
+                            rs.hasBackReferences = true;
+                            return CharacterClasses.FAIL;
+                        }
 
                         // Move the last character of the prefix to the beginning of the suffix and retry.
                         suffix = prefix.charAt(prefix.length() - 1) + suffix;
@@ -500,36 +536,48 @@ class PatternFactory extends de.unkrig.ref4j.PatternFactory {
                     if (groupNumber == null) {
                         throw new ParseException("Unknown group name \"" + groupName + "\"");
                     }
+                    rs.hasBackReferences = true;
                     return Sequences.capturingGroupBackReference(groupNumber);
                 }
 
                 if (this.peekRead(TokenType.POSITIVE_LOOKAHEAD) != null) {
-                    final Sequence op = this.parseAlternatives();
-                    this.read(TokenType.END_GROUP);
+                    final Sequence op = this.parseLookaroundOperand();
                     return Sequences.positiveLookahead(op);
                 }
 
                 if (this.peekRead(TokenType.NEGATIVE_LOOKAHEAD) != null) {
-                    final Sequence op = this.parseAlternatives();
-                    this.read(TokenType.END_GROUP);
+                    final Sequence op = this.parseLookaroundOperand();
                     return Sequences.negate(Sequences.positiveLookahead(op));
                 }
 
                 if (this.peekRead(TokenType.POSITIVE_LOOKBEHIND) != null) {
-                    final Sequence op = this.parseAlternatives();
-                    this.read(TokenType.END_GROUP);
+                    final Sequence op = this.parseLookaroundOperand();
                     return Sequences.positiveLookbehind(op);
                 }
 
                 if (this.peekRead(TokenType.NEGATIVE_LOOKBEHIND) != null) {
-                    final Sequence op = this.parseAlternatives();
-                    this.read(TokenType.END_GROUP);
+                    final Sequence op = this.parseLookaroundOperand();
                     return Sequences.negate(Sequences.positiveLookbehind(op));
                 }
 
                 throw new AssertionError("\"" + this.peek() + "\"");
             }
 
+            /**
+             * Parses the operand of a lookahead or lookbehind, and the closing parenthesis. The loops within the
+             * operand must not be memoized, because lookarounds modify the region.
+             */
+            private Sequence
+            parseLookaroundOperand() throws ParseException {
+
+                int      loopsBefore = rs.loopCount;
+                Sequence result      = this.parseAlternatives();
+                rs.nestedLoops.set(loopsBefore, rs.loopCount);
+
+                this.read(TokenType.END_GROUP);
+                return result;
+            }
+
             /**
              * @return Matches <em>any</em> character, based on the currently effective {@link
              *         de.unkrig.ref4j.Pattern#DOTALL} and {@link de.unkrig.ref4j.Pattern#UNIX_LINES} flags
@@ -551,6 +599,7 @@ class PatternFactory extends de.unkrig.ref4j.PatternFactory {
              */
             private Sequence
             capturingGroupBackReference(int groupNumber) {
+                rs.hasBackReferences = true;
                 return (this.currentFlags & de.unkrig.ref4j.Pattern.CASE_INSENSITIVE) == 0
                 ? Sequences.capturingGroupBackReference(groupNumber)
                 : (this.currentFlags & (de.unkrig.ref4j.Pattern.UNICODE_CASE | de.unkrig.ref4j.Pattern.UNICODE_CHARACTER_CLASS)) == 0 // UCC implies UC!
@@ -682,7 +731,7 @@ class PatternFactory extends de.unkrig.ref4j.PatternFactory {
                     CharacterClass cc     = this.parseCcIntersection();
                     this.read("]");
 
-                    if (negate) cc = CharacterClasses.negate(cc, '^' + cc.toString());
+                    cc = negate ? CharacterClasses.negate(cc, '^' + cc.toString()) : CharacterClasses.optimize(cc);
 
                     return cc;
                 }
@@ -717,7 +766,16 @@ class PatternFactory extends de.unkrig.ref4j.PatternFactory {
                         result = PredicateUtil.not(result);
                     }
 
-                    return CharacterClasses.characterClass(result);
+                    // Notice: With UNICODE_CHARACTER_CLASS, the POSIX character classes have different meanings.
+                    String key = (
+                        "\\"
+                        + token.captured[0]
+                        + '{'
+                        + token.captured[1]
+                        + ((this.currentFlags & de.unkrig.ref4j.Pattern.UNICODE_CHARACTER_CLASS) != 0 ? "}U" : "}")
+                    );
+
+                    return CharacterClasses.unicodeProperty(key, result);
                 }
 
                 return null;
@@ -814,7 +872,6 @@ class PatternFactory extends de.unkrig.ref4j.PatternFactory {
 
                 while (this.peekRead(CC_INTERSECTION) != null) {
                     result = CharacterClasses.intersection(result, this.parseCcUnion());
-                    result = CharacterClasses.optimize(result);
                 }
 
                 return result;
@@ -836,19 +893,14 @@ class PatternFactory extends de.unkrig.ref4j.PatternFactory {
                 elements.add(result);
                 while (this.peek(RIGHT_BRACKET, CC_INTERSECTION) == -1) elements.add(this.parseCcRange());
 
-                // Sort the list by ascending upper bound; this makes the following optimization more likely to
-                // be successful.
+                // Sort the list by ascending upper bound; this makes the union of elements with unknown code points
+                // (if any) test the narrower elements first.
                 Collections.sort(elements, PatternFactory.COMPARE_BY_UPPER_BOUND);
 
-                // Create a tree of "union" CharacterClass objects.
+                // Notice that "union()" normalizes the union into one flat character class, so the result is not a
+                // tree of union character classes.
                 result = elements.get(0);
-                for (int i = 1; i < elements.size(); i++) {
-                    result = CharacterClasses.union(result, elements.get(i));
-
-                    // In many cases, this will collapse a tree of union character classes into one, (bit)set-based
-                    // character class.
-                    result = CharacterClasses.optimize(result);
-                }
+                for (int i = 1; i < elements.size(); i++) result = CharacterClasses.union(result, elements.get(i));
 
                 return result;
             }
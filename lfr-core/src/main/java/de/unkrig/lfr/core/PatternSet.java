@@ -0,0 +1,216 @@
+
+/*
+ * de.unkrig.lfr - A super-fast regular expression evaluator
+ *
+ * Copyright (c) 2017, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.lfr.core;
+
+import java.util.Arrays;
+
+import de.unkrig.commons.lang.protocol.Consumer;
+import de.unkrig.commons.lang.protocol.NoException;
+
+/**
+ * A set of {@link Pattern}s that are searched for in one subject together, e.g. for classifying log lines against
+ * thousands of regular expressions.
+ * <p>
+ *   All patterns share a prefilter that maps each {@code char} to the patterns that can start with it (as
+ *   computed by {@code Sequence.check()}). {@link #find(CharSequence)} scans the subject once, and runs each
+ *   pattern at most once, namely from the first offset where it could possibly match. Thus the cost depends on the
+ *   number of <em>candidate</em> patterns rather than on the total number of patterns.
+ * </p>
+ * <p>
+ *   Instances are immutable and can be used by multiple threads concurrently.
+ * </p>
+ */
+public final
+class PatternSet {
+
+    private final Pattern[] patterns;
+
+    /**
+     * The patterns that have no usable first-char information, e.g. because they can match the empty string, or
+     * because they start with {@code "."}; these are always searched for.
+     */
+    private final int[] unconditional;
+
+    /**
+     * Indexed by the low byte of a {@code char}; the patterns that could start with that char.
+     */
+    private final int[][] candidates = new int[256][];
+
+    /**
+     * The number of patterns that are <em>not</em> {@link #unconditional}.
+     */
+    private final int conditionalCount;
+
+    /**
+     * Equivalent with {@link #compile(String[], int) compile}{@code (}<var>regexes</var>{@code , 0)}.
+     */
+    public static PatternSet
+    compile(String... regexes) { return PatternSet.compile(regexes, 0); }
+
+    /**
+     * Compiles each of the <var>regexes</var> with the given <var>flags</var>, and combines the results into one
+     * {@link PatternSet}.
+     *
+     * @see Pattern#compile(String, int)
+     */
+    public static PatternSet
+    compile(String[] regexes, int flags) {
+
+        Pattern[] patterns = new Pattern[regexes.length];
+        for (int i = 0; i < regexes.length; i++) patterns[i] = Pattern.compile(regexes[i], flags);
+
+        return new PatternSet(patterns);
+    }
+
+    public
+    PatternSet(Pattern... patterns) {
+
+        this.patterns = patterns.clone();
+
+        final int[] counts        = new int[256];
+        int[]       unconditional = new int[patterns.length];
+        int         uc            = 0;
+
+        // Determine the first chars of each pattern.
+        final boolean[][] firstChars = new boolean[patterns.length][];
+        for (int i = 0; i < patterns.length; i++) {
+
+            Sequence sequence = patterns[i].sequence;
+
+            if (sequence.minMatchLength == 0) {
+                unconditional[uc++] = i;
+                continue;
+            }
+
+            final boolean[] fc  = new boolean[256];
+            final boolean[] any = new boolean[1];
+            sequence.check(0, new Consumer<Integer>() {
+
+                @Override public void
+                consume(Integer subject) throws NoException {
+                    if (subject < 0) {
+                        any[0] = true;
+                    } else {
+                        fc[0xff & subject] = true;
+                    }
+                }
+            });
+
+            if (any[0]) {
+                unconditional[uc++] = i;
+                continue;
+            }
+
+            for (int c = 0; c < 256; c++) {
+                if (fc[c]) counts[c]++;
+            }
+            firstChars[i] = fc;
+        }
+        this.unconditional    = Arrays.copyOf(unconditional, uc);
+        this.conditionalCount = patterns.length - uc;
+
+        // Invert the mapping: For each (low byte of a) char, the patterns that could start with it.
+        for (int c = 0; c < 256; c++) this.candidates[c] = new int[counts[c]];
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < patterns.length; i++) {
+
+            boolean[] fc = firstChars[i];
+            if (fc == null) continue;
+
+            for (int c = 0; c < 256; c++) {
+                if (fc[c]) this.candidates[c][counts[c]++] = i;
+            }
+        }
+    }
+
+    /**
+     * @return The number of patterns in this set
+     */
+    public int
+    size() { return this.patterns.length; }
+
+    /**
+     * @return The <var>index</var>th pattern of this set
+     */
+    public Pattern
+    pattern(int index) { return this.patterns[index]; }
+
+    /**
+     * Determines which of the patterns of this set are found in the <var>subject</var>, i.e. for which patterns
+     * {@code pattern.matcher(subject).find()} would return {@code true}.
+     *
+     * @return The indices of the matching patterns, in ascending order
+     */
+    public int[]
+    find(CharSequence subject) {
+
+        boolean[] matched = new boolean[this.patterns.length];
+
+        for (int i : this.unconditional) matched[i] = this.patterns[i].matcher(subject).find();
+
+        boolean[] decided   = new boolean[this.patterns.length];
+        int       remaining = this.conditionalCount;
+
+        // Each (low byte of a) char needs to be processed only once: When it occurs for the first time, all its
+        // candidate patterns are run (from that offset on) and thus decided.
+        boolean[] seen = new boolean[256];
+
+        int limit = subject.length();
+        for (int o = 0; o < limit && remaining > 0; o++) {
+
+            char c = subject.charAt(o);
+
+            if (seen[0xff & c]) continue;
+
+            // Never start a match in the middle of a surrogate pair; "Matcher.find()" wouldn't either.
+            if (Character.isLowSurrogate(c) && o > 0 && Character.isHighSurrogate(subject.charAt(o - 1))) continue;
+
+            seen[0xff & c] = true;
+
+            // A candidate pattern cannot match at any earlier offset, so searching from here decides it.
+            for (int i : this.candidates[0xff & c]) {
+                if (decided[i]) continue;
+                decided[i] = true;
+                remaining--;
+                matched[i] = this.patterns[i].matcher(subject).find(o);
+            }
+        }
+
+        int n = 0;
+        for (boolean m : matched) {
+            if (m) n++;
+        }
+
+        int[] result = new int[n];
+        n = 0;
+        for (int i = 0; i < matched.length; i++) {
+            if (matched[i]) result[n++] = i;
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,387 @@
+
+/*
+ * de.unkrig.lfr - A super-fast regular expression evaluator
+ *
+ * Copyright (c) 2017, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.lfr.core;
+
+import java.util.Arrays;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * A "Pike VM", i.e. an evaluator that simulates all threads of an {@link Nfa} in lock-step. Its run time is
+ * O(<var>n</var>·<var>m</var>) for a subject of length <var>n</var> and an NFA of size <var>m</var>, independent of
+ * how "ambiguous" the pattern is, and, unlike a {@link Dfa}, it determines the groups of the match.
+ * <p>
+ *   Threads are kept in priority order, and lower-priority threads are discarded as soon as a thread matches; this
+ *   yields the same "leftmost-first" match as the backtracking engine.
+ * </p>
+ * <p>
+ *   Instances are thread-safe and are typically shared by all matchers of a {@link Pattern}.
+ * </p>
+ *
+ * @see Pattern#LINEAR_TIME
+ */
+final
+class PikeVm {
+
+    private final Nfa nfa;
+
+    /**
+     * For loop heads: The nesting depth of the loop, starting at 1 for an outermost loop.
+     */
+    private final int[] loopDepths;
+
+    /**
+     * One plus the maximum loop nesting depth of the {@link #nfa}.
+     */
+    private final int width;
+
+    PikeVm(Nfa nfa) {
+        this.nfa = nfa;
+
+        // Loop bodies are contiguous and properly nested; determine the nesting depth of each loop.
+        int   size       = nfa.size();
+        int[] loopDepths = new int[size];
+        int[] openLoops  = new int[size];
+        int   depth      = 0, maxDepth = 0;
+        for (int pc = 0; pc < size; pc++) {
+            while (depth > 0 && nfa.loopEnds[openLoops[depth - 1]] <= pc) depth--;
+
+            int kind = nfa.kinds[pc];
+            if (kind == Nfa.GREEDY_LOOP || kind == Nfa.RELUCTANT_LOOP) {
+                openLoops[depth++] = pc;
+                loopDepths[pc]     = depth;
+                if (depth > maxDepth) maxDepth = depth;
+            }
+        }
+        this.loopDepths = loopDepths;
+        this.width      = maxDepth + 1;
+    }
+
+    /**
+     * Attempts to match at the <var>matcher</var>'s current offset.
+     *
+     * @return Whether the match was successful; if so, the {@link MatcherImpl#offset} and the {@link
+     *         MatcherImpl#groups} (except 0 and 1) are updated
+     * @see    Sequence#matches(MatcherImpl)
+     */
+    boolean
+    matches(MatcherImpl matcher) { return this.run(matcher, true) != -1; }
+
+    /**
+     * Attempts to find the next match at or after the <var>matcher</var>'s current offset.
+     *
+     * @return The offset of the start of the match, or -1; on success, the {@link MatcherImpl#offset} and the {@link
+     *         MatcherImpl#groups} (except 0 and 1) are updated
+     * @see    Sequence#find(MatcherImpl)
+     */
+    int
+    find(MatcherImpl matcher) { return this.run(matcher, false); }
+
+    private int
+    run(MatcherImpl matcher, boolean anchored) {
+
+        final Nfa          nfa          = this.nfa;
+        final CharSequence subject      = matcher.subject;
+        final int          regionEnd    = matcher.regionEnd;
+        final boolean      toEnd        = matcher.end == MatcherImpl.End.END_OF_REGION;
+        final int          captureCount = matcher.groups.length;
+
+        ThreadList current = new ThreadList(nfa.size(), this.width);
+        ThreadList next    = new ThreadList(nfa.size(), this.width);
+
+        int[] initialCaptures = new int[captureCount];
+        Arrays.fill(initialCaptures, -1);
+
+        @Nullable int[] matchCaptures = null;
+        int             matchEnd      = -1;
+
+        int o = matcher.offset;
+        initialCaptures[0] = o;
+        this.addThread(current, nfa.start, -1, initialCaptures, o);
+
+        for (;;) {
+
+            // Advancing all threads by one character counts as one "step".
+            matcher.step();
+
+            // Decode the next code point, exactly like "MatcherImpl.readChar()".
+            int cp = -1, o2 = o;
+            if (o < regionEnd) {
+                cp = subject.charAt(o2++);
+                if (Character.isHighSurrogate((char) cp) && o2 < regionEnd) {
+                    char ls = subject.charAt(o2);
+                    if (Character.isLowSurrogate(ls)) {
+                        cp = Character.toCodePoint((char) cp, ls);
+                        o2++;
+                    }
+                }
+            }
+
+            next.clear();
+            for (int i = 0; i < current.size; i++) {
+                int   pc       = current.pcs[i];
+                int[] captures = current.captures[i];
+
+                if (nfa.kinds[pc] == Nfa.MATCH) {
+                    if (toEnd && o != regionEnd) continue;
+
+                    // All remaining threads have lower priority than this one.
+                    matchCaptures = captures;
+                    matchEnd      = o;
+                    break;
+                }
+
+                assert nfa.kinds[pc] == Nfa.CHAR;
+
+                if (o == regionEnd) {
+                    matcher.hitEnd = true;
+                } else
+                if (nfa.classes[pc].matches(cp)) {
+                    this.addThread(next, nfa.next1[pc], pc, captures, o2);
+                }
+            }
+
+            if (o == regionEnd) break;
+
+            // Start another thread at the next position, with the lowest priority.
+            if (!anchored && matchCaptures == null) {
+                int[] captures = new int[captureCount];
+                Arrays.fill(captures, -1);
+                captures[0] = o2;
+                this.addThread(next, nfa.start, -1, captures, o2);
+            }
+
+            if (next.size == 0) break;
+
+            ThreadList tmp = current;
+            current = next;
+            next    = tmp;
+            o       = o2;
+        }
+
+        if (matchCaptures == null) return -1;
+
+        System.arraycopy(matchCaptures, 2, matcher.groups, 2, captureCount - 2);
+        matcher.touchAllGroups();
+        matcher.offset = matchEnd;
+
+        return matchCaptures[0];
+    }
+
+    /**
+     * Adds the thread at instruction <var>pc</var> and all threads reachable from it through epsilon transitions, in
+     * priority order, to the <var>list</var>. Only {@link Nfa#CHAR} and {@link Nfa#MATCH} threads are added.
+     * <p>
+     *   Like the backtracking engine, a loop head that is reached again through the end of its body, <em>at the
+     *   offset where the current iteration started</em>, continues with the loop exit, with the groups captured by
+     *   that empty iteration. A loop that is entered from outside, however, always starts a new iteration.
+     * </p>
+     * <p>
+     *   To implement this, each path carries the nesting depth of the outermost loop whose current iteration started
+     *   at the current offset (or 0); instructions are only visited once per offset and depth.
+     * </p>
+     *
+     * @param from The instruction that precedes <var>pc</var>, or -1
+     */
+    private void
+    addThread(ThreadList list, int pc, int from, int[] captures, int offset) {
+
+        final Nfa   nfa        = this.nfa;
+        final int[] loopDepths = this.loopDepths;
+        final int   width      = this.width;
+        final int[] marks      = list.marks;
+        final int   generation = list.generation;
+
+        int     sp            = 0;
+        int[]   pcStack       = list.pcStack;
+        int[]   fromStack     = list.fromStack;
+        int[]   depthStack    = list.depthStack;
+        int[][] capturesStack = list.capturesStack;
+
+        pcStack[sp]       = pc;
+        fromStack[sp]     = from;
+        depthStack[sp]    = 0;
+        capturesStack[sp] = captures;
+        sp++;
+
+        while (sp > 0) {
+            pc       = pcStack[--sp];
+            from     = fromStack[sp];
+            captures = capturesStack[sp];
+
+            int depth = depthStack[sp];
+
+            if (sp + 2 > pcStack.length) {
+                int newLength = 2 * pcStack.length;
+                pcStack       = (list.pcStack       = Arrays.copyOf(pcStack,       newLength));
+                fromStack     = (list.fromStack     = Arrays.copyOf(fromStack,     newLength));
+                depthStack    = (list.depthStack    = Arrays.copyOf(depthStack,    newLength));
+                capturesStack = (list.capturesStack = Arrays.copyOf(capturesStack, newLength));
+            }
+
+            int kind = nfa.kinds[pc];
+            switch (kind) {
+
+            case Nfa.MATCH:
+            case Nfa.CHAR:
+
+                // The future of a CHAR or MATCH thread does not depend on the loop depth.
+                if (marks[pc * width] == generation) break;
+                marks[pc * width] = generation;
+
+                list.pcs[list.size]        = pc;
+                list.captures[list.size++] = captures;
+                break;
+
+            case Nfa.GREEDY_LOOP:
+            case Nfa.RELUCTANT_LOOP:
+                int loopDepth = loopDepths[pc];
+
+                if (
+                    from > pc
+                    && from < nfa.loopEnds[pc]
+                    && depth != 0
+                    && depth <= loopDepth
+                ) {
+
+                    // An empty iteration; continue with the loop exit.
+                    pcStack[sp]       = nfa.next2[pc];
+                    fromStack[sp]     = pc;
+                    depthStack[sp]    = depth == loopDepth ? 0 : depth;
+                    capturesStack[sp] = captures;
+                    sp++;
+                    break;
+                }
+
+                if (marks[pc * width + depth] == generation) break;
+                marks[pc * width + depth] = generation;
+
+                // Start another iteration, and/or exit the loop.
+                int bodyDepth = depth == 0 ? loopDepth : depth;
+                if (kind == Nfa.GREEDY_LOOP) {
+                    pcStack[sp]       = nfa.next2[pc];
+                    fromStack[sp]     = pc;
+                    depthStack[sp]    = depth;
+                    capturesStack[sp] = captures;
+                    sp++;
+                    pcStack[sp]       = nfa.next1[pc];
+                    fromStack[sp]     = pc;
+                    depthStack[sp]    = bodyDepth;
+                    capturesStack[sp] = captures;
+                    sp++;
+                } else {
+                    pcStack[sp]       = nfa.next1[pc];
+                    fromStack[sp]     = pc;
+                    depthStack[sp]    = bodyDepth;
+                    capturesStack[sp] = captures;
+                    sp++;
+                    pcStack[sp]       = nfa.next2[pc];
+                    fromStack[sp]     = pc;
+                    depthStack[sp]    = depth;
+                    capturesStack[sp] = captures;
+                    sp++;
+                }
+                break;
+
+            case Nfa.SPLIT:
+                if (marks[pc * width + depth] == generation) break;
+                marks[pc * width + depth] = generation;
+
+                pcStack[sp]       = nfa.next2[pc];
+                fromStack[sp]     = pc;
+                depthStack[sp]    = depth;
+                capturesStack[sp] = captures;
+                sp++;
+                pcStack[sp]       = nfa.next1[pc];
+                fromStack[sp]     = pc;
+                depthStack[sp]    = depth;
+                capturesStack[sp] = captures;
+                sp++;
+                break;
+
+            case Nfa.SAVE:
+                if (marks[pc * width + depth] == generation) break;
+                marks[pc * width + depth] = generation;
+
+                captures = captures.clone();
+                captures[nfa.next2[pc]] = offset;
+                pcStack[sp]       = nfa.next1[pc];
+                fromStack[sp]     = pc;
+                depthStack[sp]    = depth;
+                capturesStack[sp] = captures;
+                sp++;
+                break;
+
+            default:
+                throw new AssertionError(kind);
+            }
+        }
+    }
+
+    /**
+     * The threads at one subject position, in priority order.
+     */
+    private static final
+    class ThreadList {
+
+        final int[]   pcs;
+        final int[][] captures;
+        int           size;
+
+        /**
+         * {@code marks[pc * width + depth] == generation} means that instruction <var>pc</var> was already visited at
+         * the current offset with that loop depth.
+         */
+        final int[] marks;
+
+        int generation = 1;
+
+        /**
+         * Work space for {@link PikeVm#addThread(ThreadList, int, int, int[], int)}; grows on demand.
+         */
+        int[]   pcStack;
+        int[]   fromStack;
+        int[]   depthStack;
+        int[][] capturesStack;
+
+        ThreadList(int nfaSize, int width) {
+            this.pcs           = new int[nfaSize];
+            this.captures      = new int[nfaSize][];
+            this.marks         = new int[nfaSize * width];
+            this.pcStack       = new int[2 * nfaSize + 1];
+            this.fromStack     = new int[2 * nfaSize + 1];
+            this.depthStack    = new int[2 * nfaSize + 1];
+            this.capturesStack = new int[2 * nfaSize + 1][];
+        }
+
+        void
+        clear() {
+            this.size = 0;
+            this.generation++;
+        }
+    }
+}
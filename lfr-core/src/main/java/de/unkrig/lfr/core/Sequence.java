@@ -26,9 +26,14 @@
 
 package de.unkrig.lfr.core;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import de.unkrig.commons.lang.ObjectUtil;
+import de.unkrig.commons.lang.StringUtil;
 import de.unkrig.commons.lang.protocol.Consumer;
 import de.unkrig.commons.lang.protocol.NoException;
 import de.unkrig.commons.nullanalysis.Nullable;
@@ -108,7 +113,7 @@ class Sequence {
      */
     public int
     find(MatcherImpl matcher) {
-        return this.getFind().find(matcher);
+        return this.getFind(matcher.pattern().charFrequencies).find(matcher);
     }
 
     /**
@@ -143,20 +148,34 @@ class Sequence {
     @SuppressWarnings("static-method") void
     check(int offset, Consumer<Integer> result) { result.consume(-1); }
 
+    /**
+     * Translates this sequence (including its successors) into instructions of an {@link Nfa}.
+     *
+     * @param next The index of the instruction to continue with after this sequence (including its successors) has
+     *             matched
+     * @return     The index of the first instruction of this sequence
+     * @throws Nfa.UnsupportedSequenceException This sequence cannot be represented by an NFA, e.g. because it is a
+     *                                          back reference or a lookaround
+     */
+    int
+    toNfa(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+        throw new Nfa.UnsupportedSequenceException();
+    }
+
     interface Find { int find(MatcherImpl matcherImpl); }
 
     @Nullable private Find find;
 
     Find
-    getFind() {
+    getFind(CharFrequencies charFrequencies) {
 
         if (this.find != null) return this.find;
 
-        return (this.find = this.find());
+        return (this.find = this.find(charFrequencies));
     }
 
     private Find
-    find() {
+    find(CharFrequencies charFrequencies) {
 
         // Analyse this sequence with the "check(offset, Consumer<Integer>)" method to find out
         // whether an optimization with the BMH algorithm is possible.
@@ -164,16 +183,22 @@ class Sequence {
         final int[] ct = new int[256];
         Arrays.fill(ct, -1);
 
+        // The chars that can appear at each offset (-1 meaning "any char"); the other find strategies use these, too,
+        // because "check()" is expensive for complex sequences.
+        List<Set<Integer>> charsAt = new ArrayList<Set<Integer>>();
+
         int[] bestCt   = ObjectUtil.almostNull();
         int   bestNl   = -1;
-        int   bestSkip = -1;
+        long  bestSkip = -1;
         for (int i = 0; i < bestNl + 20; i++) {
 
-            final int finalNl = i;
+            final int          finalNl = i;
+            final Set<Integer> chars   = new HashSet<Integer>();
             this.check(i, new Consumer<Integer>() {
 
                 @Override public void
                 consume(Integer subject) throws NoException {
+                    chars.add(subject);
                     if (subject < 0) {
                         Arrays.fill(ct, finalNl);
                     } else {
@@ -181,9 +206,20 @@ class Sequence {
                     }
                 }
             });
+            charsAt.add(chars);
+
+            // No char can appear at this offset, e.g. for "(\d\d)\2" (which can never match); a longer needle
+            // would not skip any further.
+            if (chars.isEmpty()) {
+                bestCt = Arrays.copyOf(ct, ct.length);
+                bestNl = i + 1;
+                break;
+            }
 
-            int skip = 0;
-            for (int j = 0; j < ct.length; j++) skip += i - ct[j];
+            // Weight the skip distances with the char frequencies, because skipping over a common char matters
+            // more than skipping over a rare one.
+            long skip = 0;
+            for (int j = 0; j < ct.length; j++) skip += (long) (i - ct[j]) * charFrequencies.of(j);
 
             if (skip > bestSkip) {
                 bestCt   = Arrays.copyOf(ct, ct.length);
@@ -192,6 +228,20 @@ class Sequence {
             }
         }
 
+        // If there is a required literal string that is at least as long as the BMH needle, then locating that
+        // literal is typically faster.
+        Find literalFind = this.requiredLiteralFind(bestNl);
+        if (literalFind != null) return literalFind;
+
+        // If there are alternatives that all start with a literal, then locate these with the Aho-Corasick algorithm.
+        Find alternativesFind = this.alternativesFind();
+        if (alternativesFind != null) return alternativesFind;
+
+        // If the pattern requires a rare char at a fixed offset, then scanning for that char is typically faster than
+        // BMH (which would often stop at common chars).
+        Find rareCharFind = this.rareCharFind(bestNl, bestCt, charsAt, charFrequencies);
+        if (rareCharFind != null) return rareCharFind;
+
         if (bestNl == 1) {
 
             // This matcher cannot be optimized with BMH; fall back to naive implementation.
@@ -219,6 +269,35 @@ class Sequence {
         final int[] charTable    = bestCt;
         final int   needleLength = bestNl;
 
+        final int shift = Sequence.skipTableShift(charsAt, needleLength);
+        if (shift != 0) {
+
+            // The needle contains non-Latin-1 chars; index the skip table with a hash of the full char.
+            final int[] hashTable = Sequence.skipTable(charsAt, needleLength, shift);
+
+            return new Find() {
+
+                @Override public int
+                find(MatcherImpl matcher) {
+
+                    for (int o = matcher.offset + needleLength - 1; o < matcher.regionEnd;) {
+                        char c  = matcher.subject.charAt(o);
+                        int  ss = needleLength - 1 - hashTable[0xff & (c ^ (c >>> shift))];
+                        if (ss == 0) {
+                            int matchPosition = (matcher.offset = o - needleLength + 1);
+                            if (Sequence.this.matches(matcher)) return matchPosition;
+                            o++;
+                        } else {
+                            o += ss;
+                        }
+                    }
+
+                    matcher.hitEnd = true;
+                    return -1;
+                }
+            };
+        }
+
         return new Find() {
 
             @Override public int
@@ -241,6 +320,337 @@ class Sequence {
         };
     }
 
+    /**
+     * Determines the fixed offset where this sequence requires the rarest chars (according to the {@link
+     * CharFrequencies}), e.g. offset 2 for {@code "[a-z]{2}q[a-z]"}, and estimates whether scanning the subject for
+     * these chars is faster than the BMH search with the given <var>charTable</var>.
+     *
+     * @param charTable The BMH skip table, see {@link #find(CharFrequencies)}
+     * @param charsAt   The chars that can appear at each offset to consider, see {@link #find(CharFrequencies)}
+     * @return          {@code null} iff anchoring on a rare char is not faster than BMH
+     */
+    @Nullable private Find
+    rareCharFind(int needleLength, int[] charTable, List<Set<Integer>> charsAt, CharFrequencies charFrequencies) {
+
+        // The cost (in subject char reads) of verifying a match candidate with "matches()".
+        final int verificationCost = 4;
+
+        long total = 0;
+        for (int c = 0; c < 256; c++) total += charFrequencies.of(c);
+
+        // Estimate the BMH cost per subject char; notice that a char that matches the last needle position triggers
+        // a verification, and a skip by only one char.
+        double bmhCost;
+        if (needleLength == 1) {
+            bmhCost = verificationCost;
+        } else {
+            long skips = 0, verifications = 0;
+            for (int c = 0; c < 256; c++) {
+                int skip = needleLength - 1 - charTable[c];
+                if (skip == 0) verifications += charFrequencies.of(c);
+                skips += (long) Math.max(1, skip) * charFrequencies.of(c);
+            }
+            bmhCost = (1 + verificationCost * (double) verifications / total) * total / skips;
+        }
+
+        // Find the offset with the rarest chars.
+        boolean[] anchor          = null;
+        int       anchorOffset    = -1;
+        long      anchorFrequency = Long.MAX_VALUE;
+        for (int i = 0; i < charsAt.size(); i++) {
+
+            // Notice: The scan checks only the low byte of each char, so the Latin-1 char with the same low byte
+            // counts, too.
+            boolean[] slots     = new boolean[256];
+            long      frequency = 0;
+            for (int c : charsAt.get(i)) {
+                if (c < 0 || c > 0xffff) {
+                    frequency = Long.MAX_VALUE;
+                    break;
+                }
+                if (c > 0xff) frequency += charFrequencies.of(c);
+                if (!slots[0xff & c]) frequency += charFrequencies.of(0xff & c);
+                slots[0xff & c] = true;
+            }
+
+            if (frequency < anchorFrequency) {
+                anchor          = slots;
+                anchorOffset    = i;
+                anchorFrequency = frequency;
+            }
+        }
+
+        if (anchor == null || 1 + verificationCost * (double) anchorFrequency / total >= bmhCost) return null;
+
+        final boolean[] anchorSlots = anchor;
+        final int       offset      = anchorOffset;
+
+        return new Find() {
+
+            @Override public int
+            find(MatcherImpl matcher) {
+
+                CharSequence subject = matcher.subject;
+                int          from    = matcher.offset;
+                for (int o = from + offset; o < matcher.regionEnd; o++) {
+                    if (!anchorSlots[0xff & subject.charAt(o)]) continue;
+
+                    // A match cannot start in the middle of a surrogate pair.
+                    int matchPosition = o - offset;
+                    if (
+                        matchPosition > from
+                        && Character.isLowSurrogate(subject.charAt(matchPosition))
+                        && Character.isHighSurrogate(subject.charAt(matchPosition - 1))
+                    ) continue;
+
+                    matcher.offset = matchPosition;
+                    if (Sequence.this.matches(matcher)) return matchPosition;
+                }
+
+                matcher.hitEnd = true;
+                return -1;
+            }
+        };
+    }
+
+    /**
+     * The BMH skip table of {@link #find(CharFrequencies)} is indexed with the low byte of the char, which is perfect
+     * for Latin-1 text. However, if the needle contains chars from other scripts, then these collide with Latin-1
+     * chars, e.g. U+0432 ("CYRILLIC SMALL LETTER VE") with U+0032 ("DIGIT TWO"), so that the skip distance collapses
+     * in mixed text (e.g. Russian words in log files). In that case, the skip table is indexed with the hash {@code
+     * (c ^ (c >>> shift)) & 0xff} instead, which is hardly more expensive to compute.
+     *
+     * @return 0 iff all the chars of the needle are Latin-1 chars, otherwise the shift (1 through 8) for which the
+     *         fewest non-Latin-1 needle chars collide with printable ASCII chars
+     */
+    private static int
+    skipTableShift(List<Set<Integer>> charsAt, int needleLength) {
+
+        Set<Integer> chars = new HashSet<Integer>();
+        for (int i = 0; i < needleLength; i++) {
+            for (int c : charsAt.get(i)) {
+                if (c >= 256 && c <= 0xffff) chars.add(c);
+            }
+        }
+
+        if (chars.isEmpty()) return 0;
+
+        // Notice: The hash function maps the printable ASCII chars to other slots, too.
+        boolean[] asciiSlots = new boolean[256];
+
+        int bestShift = 8, bestCollisions = Integer.MAX_VALUE;
+        for (int shift = 1; shift <= 8 && bestCollisions > 0; shift++) {
+
+            Arrays.fill(asciiSlots, false);
+            for (int c = 0x20; c < 0x7f; c++) asciiSlots[0xff & (c ^ (c >>> shift))] = true;
+
+            int collisions = 0;
+            for (int c : chars) {
+                if (asciiSlots[0xff & (c ^ (c >>> shift))]) collisions++;
+            }
+
+            if (collisions < bestCollisions) {
+                bestShift      = shift;
+                bestCollisions = collisions;
+            }
+        }
+
+        return bestShift;
+    }
+
+    /**
+     * @return The BMH skip table for the given <var>needleLength</var>, indexed with {@code (c ^ (c >>> shift)) &
+     *         0xff}
+     * @see    #skipTableShift(List, int)
+     */
+    private static int[]
+    skipTable(List<Set<Integer>> charsAt, int needleLength, int shift) {
+
+        int[] result = new int[256];
+        Arrays.fill(result, -1);
+
+        for (int i = 0; i < needleLength; i++) {
+            for (int c : charsAt.get(i)) {
+                if (c < 0 || c > 0xffff) {
+                    Arrays.fill(result, i);
+                } else {
+                    result[0xff & (c ^ (c >>> shift))] = i;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Looks for a {@link Sequences.LiteralString} on the "top level" of this sequence (i.e. not within a group, an
+     * alternative or a quantifier), which every match must therefore contain. E.g. {@code "\s[a-z]{0,12}ing\s"}
+     * requires the literal {@code "ing"} at a distance of 1 through 13 chars from the start of the match.
+     * <p>
+     *   If there is such a literal (and if it is at least <var>minLength</var> chars long), then the returned {@link
+     *   Find} locates the literal with {@link StringUtil#indexOf(CharSequence)}, and then verifies only the start
+     *   offsets within that distance in front of it.
+     * </p>
+     *
+     * @return {@code null} iff there is no suitable literal string
+     */
+    @Nullable private Find
+    requiredLiteralFind(int minLength) {
+
+        // Determine the longest literal string on the top level, and its minimum and maximum distance from the start
+        // of the match.
+        Sequences.LiteralString literal = null;
+        int                     minDistance = 0, maxDistance = 0;
+        int                     min         = 0, max         = 0;
+        for (Sequence s = this; s instanceof CompositeSequence; s = ((CompositeSequence) s).next) {
+            CompositeSequence cs = (CompositeSequence) s;
+
+            if (
+                cs instanceof Sequences.LiteralString
+                && ((Sequences.LiteralString) cs).cs.length() >= minLength
+                && (literal == null || ((Sequences.LiteralString) cs).cs.length() > literal.cs.length())
+            ) {
+                literal     = (Sequences.LiteralString) cs;
+                minDistance = min;
+                maxDistance = max;
+            }
+
+            min = Sequences.add(min, cs.minMatchLengthWithoutNext);
+            max = Sequences.add(max, cs.maxMatchLengthWithoutNext);
+        }
+
+        if (literal == null || minDistance == Integer.MAX_VALUE) return null;
+
+        final StringUtil.IndexOf indexOf       = literal.indexOf;
+        final int                literalLength = literal.cs.length();
+        final int                minD          = minDistance;
+        final int                maxD          = maxDistance;
+
+        return new Find() {
+
+            @Override public int
+            find(MatcherImpl matcher) {
+
+                int from  = matcher.offset;
+                int start = from; // All start offsets before this have already been tried.
+
+                for (int o = from + minD;; o++) {
+
+                    // Find the next occurrence of the literal string.
+                    o = indexOf.indexOf(matcher.subject, o, matcher.regionEnd - literalLength);
+                    if (o == -1) break;
+
+                    // Try all start offsets from which this occurrence is within reach.
+                    if (o - maxD > start) start = o - maxD;
+                    for (; start <= o - minD; start++) {
+
+                        if (
+                            start > from
+                            && Character.isLowSurrogate(matcher.subject.charAt(start))
+                            && Character.isHighSurrogate(matcher.subject.charAt(start - 1))
+                        ) continue;
+
+                        matcher.offset = start;
+                        if (Sequence.this.matches(matcher)) return start;
+                    }
+                }
+
+                matcher.hitEnd = true;
+                return -1;
+            }
+        };
+    }
+
+    /**
+     * Looks for {@link Sequences.AlternativesSequence alternatives} on the "top level" of this sequence, which all
+     * start with a literal string or char, and which have a fixed distance from the start of the match (e.g. {@code
+     * "\b(?:Tom|Sawyer|Huckleberry|Finn)"}). If there are such alternatives, then the returned {@link Find} locates
+     * the occurrences of all the literals in one pass with an {@link AhoCorasick} automaton, and verifies the
+     * respective start offsets in ascending order. (A start offset can be verified as soon as no undiscovered
+     * occurrence can precede it, i.e. when the scan is far enough ahead.)
+     *
+     * @return {@code null} iff there are no suitable alternatives
+     */
+    @Nullable private Find
+    alternativesFind() {
+
+        int distance = 0;
+        for (Sequence s = this; s instanceof CompositeSequence; s = ((CompositeSequence) s).next) {
+            CompositeSequence cs = (CompositeSequence) s;
+
+            if (cs instanceof Sequences.AlternativesSequence) {
+                AhoCorasick ac = ((Sequences.AlternativesSequence) cs).prefixes;
+                if (ac != null) return this.alternativesFind(ac, distance);
+            }
+
+            if (cs.minMatchLengthWithoutNext != cs.maxMatchLengthWithoutNext) return null;
+            distance = Sequences.add(distance, cs.minMatchLengthWithoutNext);
+            if (distance == Integer.MAX_VALUE) return null;
+        }
+
+        return null;
+    }
+
+    private Find
+    alternativesFind(final AhoCorasick ac, final int distance) {
+
+        // Undiscovered occurrences can only start less than "lookBehind" chars before the current scan position.
+        final int lookBehind = ac.maxLength + distance;
+
+        return new Find() {
+
+            @Override public int
+            find(MatcherImpl matcher) {
+
+                CharSequence subject   = matcher.subject;
+                int          regionEnd = matcher.regionEnd;
+
+                // The pending candidate start offsets, in a ring buffer.
+                boolean[] candidates = new boolean[Integer.highestOneBit(lookBehind) << 1];
+                int       mask       = candidates.length - 1;
+                int       pending    = 0;
+
+                int state = 0;
+                int start = matcher.offset; // All start offsets before this have already been verified.
+                for (int o = start + distance;; o++) {
+
+                    if (pending > 0) {
+                        int limit = o >= regionEnd ? regionEnd : o - lookBehind;
+                        for (; start <= limit; start++) {
+                            if (!candidates[start & mask]) continue;
+                            candidates[start & mask] = false;
+                            pending--;
+
+                            matcher.offset = start;
+                            if (Sequence.this.matches(matcher)) return start;
+                        }
+                    }
+
+                    if (o >= regionEnd) break;
+
+                    state = ac.next(state, subject.charAt(o));
+
+                    int[] outputs = ac.outputs(state);
+                    if (outputs.length == 0) continue;
+
+                    // No candidates are pending, so the start offsets up to here need not be verified.
+                    if (pending == 0 && start < o + 1 - lookBehind) start = o + 1 - lookBehind;
+
+                    for (int length : outputs) {
+                        int idx = (o + 1 - length - distance) & mask;
+                        if (!candidates[idx]) {
+                            candidates[idx] = true;
+                            pending++;
+                        }
+                    }
+                }
+
+                matcher.hitEnd = true;
+                return -1;
+            }
+        };
+    }
+
     /**
      * Returns an unambiguous string form of {@code this} sequence; practical for verifying a compiled sequence e.g.
      * for correctness, efficiency, etc. The syntax resembles Java.
@@ -26,7 +26,10 @@
 
 package de.unkrig.lfr.core;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import de.unkrig.commons.lang.CharSequences;
@@ -61,6 +64,9 @@ class Sequences {
         @Override public Sequence
         concat(Sequence that) { return that; }
 
+        @Override int
+        toNfa(Nfa.Builder b, int next) { return next; }
+
         @Override public String
         toString() { return "terminal"; }
     };
@@ -83,6 +89,11 @@ class Sequences {
         checkWithoutNext(int offset, Consumer<Integer> result) {
             for (char c : this.getNeedle()[offset]) result.consume((int) c);
         }
+
+        @Override int
+        toNfaWithoutNext(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+            return b.needle(this.getNeedle(), next);
+        }
     }
 
     /**
@@ -112,6 +123,16 @@ class Sequences {
             return new LiteralString(new String(ArrayUtil.mirror(needle)[0]));
         }
 
+        // Optimize the (very common) special case where each "needle[n]" is either one char or a pair of chars that
+        // differ in only one bit, e.g. "(?i)abc".
+        MASKABLE: {
+            for (char[] n : needle) {
+                if (n.length > 2 || (n.length == 2 && Integer.bitCount(n[0] ^ n[1]) > 1)) break MASKABLE;
+            }
+
+            return new CaseInsensitiveLiteralString(needle);
+        }
+
         // Now we have the general case where "needle[n]" have ANY length.
 
         class MyMultivalentSequence extends CompositeSequence implements MultivalentSequence {
@@ -161,30 +182,43 @@ class Sequences {
                 for (char c : needle[offset]) result.consume((int) c);
             }
 
-            @Override protected String
-            toStringWithoutNext() {
-
-                if (needle.length == 0) return "{zero-length-needle}";
-
-                StringBuilder sb = new StringBuilder();
-                for (int i = 0;;) {
-                    sb.append('[').append(needle[i]).append(']');
-                    if (++i >= needle.length) break;
-                    sb.append('|');
-                }
-                return sb.toString();
+            @Override int
+            toNfaWithoutNext(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+                return b.needle(needle, next);
             }
+
+            @Override protected String
+            toStringWithoutNext() { return Sequences.needleToString(needle); }
         }
 
         return new MyMultivalentSequence();
     }
 
+    /**
+     * @return E.g. {@code "[Aa]|[Bb]|[c]"}
+     */
+    static String
+    needleToString(char[][] needle) {
+
+        if (needle.length == 0) return "{zero-length-needle}";
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0;;) {
+            sb.append('[').append(needle[i]).append(']');
+            if (++i >= needle.length) break;
+            sb.append('|');
+        }
+        return sb.toString();
+    }
+
     /**
      * Implements quantifiers (greedy, reluctant and possessive) with minimum quantity zero or one, and infinite
      * maximum quantity.
+     *
+     * @param loopNumber Identifies the loop in the {@link Pattern#loopRows}
      */
     public static Sequence
-    quantifierInfinity(Sequence operand, boolean minIsZero, QuantifierNature nature) {
+    quantifierInfinity(Sequence operand, boolean minIsZero, QuantifierNature nature, int loopNumber) {
 
         switch (nature) {
 
@@ -195,7 +229,7 @@ class Sequences {
                     return Sequences.greedyQuantifierOnCharacterClass(cc, minIsZero ? 0 : 1, Integer.MAX_VALUE, -1);
                 }
             }
-            return Sequences.greedyOrReluctantQuantifierInfinity(operand, minIsZero, true);
+            return Sequences.greedyOrReluctantQuantifierInfinity(operand, minIsZero, true, loopNumber);
 
         case RELUCTANT:
             if (operand instanceof CharacterClass) {
@@ -204,7 +238,7 @@ class Sequences {
                     return Sequences.reluctantQuantifierOnCharacterClass(cc, minIsZero ? 0 : 1, Integer.MAX_VALUE, -1);
                 }
             }
-            return Sequences.greedyOrReluctantQuantifierInfinity(operand, minIsZero, false);
+            return Sequences.greedyOrReluctantQuantifierInfinity(operand, minIsZero, false, loopNumber);
 
         case POSSESSIVE:
             return Sequences.possessiveQuantifier(operand, minIsZero ? 0 : 1, Integer.MAX_VALUE);
@@ -308,14 +342,24 @@ class Sequences {
     /**
      * Implements greedy and reluctant (but <em>not</em> possessive) quantifiers for minimum quantity zero or one, and
      * infinite maximum quantity, i.e. "{@code *}" and "{@code +}".
+     * <p>
+     *   If the loop is memoized (see {@link Pattern#loopRows}), then a failure at a given offset is recorded in the
+     *   matcher, and later attempts at the same offset fail immediately. That bounds the effort for patterns like
+     *   <code>"^(a|aa)+$"</code>, which would otherwise take exponential time.
+     * </p>
      */
     private static Sequence
     greedyOrReluctantQuantifierInfinity(
         final Sequence operand,
         final boolean  minIsZero,
-        final boolean  greedy
+        final boolean  greedy,
+        final int      loopNumber
     ) {
 
+        if (Sequences.isDeterministic(operand)) {
+            return Sequences.iterativeQuantifier(operand, minIsZero ? 0 : 1, Integer.MAX_VALUE, -1, greedy);
+        }
+
         final int minml = minIsZero ? 0 : operand.minMatchLength;
 
         //         +-----------+
@@ -333,7 +377,8 @@ class Sequences {
         final Sequence[] operand2   = { operand };
         final String     opToString = operand.toString();
 
-        final ThreadLocal<Integer> beforeOperandMatch = new ThreadLocal<Integer>();
+        final ThreadLocal<Integer>        beforeOperandMatch = new ThreadLocal<Integer>();
+        final ThreadLocal<CheckedOffsets> checked            = new ThreadLocal<CheckedOffsets>();
 
         final CompositeSequence cs = new CompositeSequence(0, Integer.MAX_VALUE) {
 
@@ -347,6 +392,11 @@ class Sequences {
 
                 if (savedOffset == matcher.regionEnd) matcher.hitEnd = true;
 
+                // Iff the loop has failed before at this offset, then it will fail again.
+                if (matcher.hasFailed(loopNumber, savedOffset)) return false;
+
+                matcher.step();
+
                 if (greedy) {
 
                     if (matcher.offset > beforeOperandMatch.get()) {
@@ -357,6 +407,13 @@ class Sequences {
                             }
                             return true;
                         }
+
+                        matcher.offset = savedOffset;
+                        if (this.next.matches(matcher)) return true;
+
+                        // Only a failure after trying *both* paths is worth memoizing.
+                        matcher.setFailed(loopNumber, savedOffset);
+                        return false;
                     }
 
                     matcher.offset = savedOffset;
@@ -371,16 +428,24 @@ class Sequences {
                     if (matcher.offset == beforeOperandMatch.get()) return false;
                     beforeOperandMatch.set(matcher.offset);
 
-                    return operand2[0].matches(matcher);
+                    if (operand2[0].matches(matcher)) return true;
+
+                    matcher.setFailed(loopNumber, savedOffset);
+                    return false;
                 }
             }
 
             @Override void
             check(int offset, Consumer<Integer> result) {
+                if (!Sequences.firstCheck(checked, offset, result)) return;
                 operand2[0].check(offset, result);
                 this.next.check(offset, result);
             }
 
+            // Loop back to the quantifier.
+            @Override int
+            toNfa(Nfa.Builder b, int next) { return next; }
+
             @Override protected String
             toStringWithoutNext() { return "???cs"; }
         };
@@ -416,6 +481,11 @@ class Sequences {
                 }
             }
 
+            @Override int
+            toNfa(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+                return b.quantifier(operand2[0], minIsZero ? 0 : 1, Integer.MAX_VALUE, greedy, cs.next.toNfa(b, next));
+            }
+
             @Override public String
             toString() {
                 return (
@@ -449,13 +519,21 @@ class Sequences {
         //   | operand |-->|   cs   |-->|  next  |
         //   +---------+   +--------+   +--------+
 
+        final ThreadLocal<CheckedOffsets> checked = new ThreadLocal<CheckedOffsets>();
+
         final CompositeSequence cs = new CompositeSequence(0, opmaxml) {
 
             @Override public boolean
             matches(MatcherImpl matcher) { return this.next.matches(matcher); }
 
             @Override void
-            check(int offset, Consumer<Integer> result) { this.next.check(offset, result); }
+            check(int offset, Consumer<Integer> result) {
+                if (Sequences.firstCheck(checked, offset, result)) this.next.check(offset, result);
+            }
+
+            // Return to the quantifier.
+            @Override int
+            toNfa(Nfa.Builder b, int next) { return next; }
 
             @Override protected String
             toStringWithoutNext() { return "???cs"; }
@@ -513,6 +591,11 @@ class Sequences {
                 cs.check(offset, result);
             }
 
+            @Override int
+            toNfa(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+                return b.quantifier(operand2, 0, 1, greedy, cs.next.toNfa(b, next));
+            }
+
             @Override public String
             toString() {
                 return (
@@ -525,6 +608,194 @@ class Sequences {
         };
     }
 
+    /**
+     * @return Whether the <var>operand</var> is a chain of {@link CharacterClass}es and {@link LiteralString}s,
+     *         which can match in only one way, and never matches the empty string
+     */
+    private static boolean
+    isDeterministic(Sequence operand) {
+
+        if (operand.minMatchLength == 0) return false;
+
+        for (Sequence s = operand; s != Sequences.TERMINAL; s = ((CompositeSequence) s).next) {
+            if (!(s instanceof CharacterClass) && !(s instanceof LiteralString)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * The offsets at which a quantifier loop (or continuation) was already checked for the given <var>result</var>,
+     * i.e. during the current top-level {@link Sequence#check(int, Consumer)}.
+     *
+     * @see #firstCheck(ThreadLocal, int, Consumer)
+     */
+    private static final
+    class CheckedOffsets {
+        @Nullable Consumer<Integer> result;
+        final Set<Integer>          offsets = new HashSet<Integer>();
+    }
+
+    /**
+     * An operand that can match the empty string (e.g. <code>"(?:(?=k)*a*)+"</code>) leads back to its quantifier
+     * loop at the same offset, so checking the loop would recurse endlessly, or, with nested loops, take exponential
+     * time. Likewise, the continuation of {@code "x?"} is reached both with and without the operand, so checking a
+     * chain of such quantifiers takes exponential time. However, checking a loop or a continuation again at the same
+     * offset cannot report any other chars.
+     *
+     * @return Whether the loop has not yet been checked at the <var>offset</var> for the <var>result</var>
+     * @see    Sequence#check(int, Consumer)
+     */
+    private static boolean
+    firstCheck(ThreadLocal<CheckedOffsets> checked, int offset, Consumer<Integer> result) {
+
+        CheckedOffsets co = checked.get();
+        if (co == null) checked.set((co = new CheckedOffsets()));
+
+        if (co.result != result) {
+            co.result = result;
+            co.offsets.clear();
+        }
+
+        return co.offsets.add(offset);
+    }
+
+    /**
+     * Implements greedy and reluctant quantifiers on a {@link #isDeterministic(Sequence) deterministic} operand,
+     * e.g. <code>"(?:ab)*"</code>. Other than the general implementations, it iterates instead of recursing, so the
+     * Java stack depth does not depend on the number of iterations. Greedy backtracking gives back one iteration at
+     * a time; if the operand has a variable length (e.g. because of supplementary characters), the offsets of the
+     * iterations are kept on the {@link MatcherImpl#backtrackStack}.
+     */
+    private static Sequence
+    iterativeQuantifier(
+        final Sequence operand,
+        final int      min,
+        final int      max,
+        final int      counterNumber,
+        final boolean  greedy
+    ) {
+
+        final List<CompositeSequence> tmp = new ArrayList<CompositeSequence>();
+        for (Sequence s = operand; s != Sequences.TERMINAL; s = ((CompositeSequence) s).next) {
+            tmp.add((CompositeSequence) s);
+        }
+        final CompositeSequence[] elements = tmp.toArray(new CompositeSequence[tmp.size()]);
+
+        final int     opminml     = operand.minMatchLength;
+        final boolean fixedLength = opminml == operand.maxMatchLength;
+
+        return new CompositeSequence(Sequences.mul(min, opminml), Sequences.mul(max, operand.maxMatchLength)) {
+
+            @Override public boolean
+            matches(MatcherImpl matcher) {
+
+                // The operand MUST match (min) times.
+                int i;
+                for (i = 0; i < min; i++) {
+                    if (!Sequences.matchesOnce(elements, matcher)) return false;
+                }
+
+                if (greedy) {
+
+                    // Now try to match the operand (max-min) more times.
+                    int base = matcher.backtrackStackSize;
+                    for (; i < max; i++) {
+                        int savedOffset = matcher.offset;
+                        if (!Sequences.matchesOnce(elements, matcher)) {
+                            matcher.offset = savedOffset;
+                            break;
+                        }
+                        if (!fixedLength) matcher.pushBacktrack(savedOffset);
+                    }
+
+                    // Now track back to the longest possible match.
+                    for (;; i--) {
+                        matcher.step();
+
+                        int savedOffset = matcher.offset;
+                        if (this.next.matches(matcher)) {
+                            matcher.backtrackStackSize = base;
+                            if (counterNumber != -1) matcher.counters[counterNumber] = i;
+                            return true;
+                        }
+
+                        if (i <= min) {
+                            matcher.backtrackStackSize = base;
+                            return false;
+                        }
+
+                        matcher.offset = (
+                            fixedLength
+                            ? savedOffset - opminml
+                            : matcher.backtrackStack[--matcher.backtrackStackSize]
+                        );
+                    }
+                } else {
+
+                    // Now match the operand one more time, until the rest of the pattern matches.
+                    for (;; i++) {
+                        matcher.step();
+
+                        int savedOffset = matcher.offset;
+                        if (this.next.matches(matcher)) {
+                            if (counterNumber != -1) matcher.counters[counterNumber] = i;
+                            return true;
+                        }
+                        matcher.offset = savedOffset;
+
+                        if (i >= max || !Sequences.matchesOnce(elements, matcher)) return false;
+                    }
+                }
+            }
+
+            @Override int
+            toNfaWithoutNext(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+                return b.quantifier(operand, min, max, greedy, next);
+            }
+
+            @Override public String
+            toStringWithoutNext() {
+                return (
+                    (greedy ? "greedyQuantifier(operand=" : "reluctantQuantifier(operand=")
+                    + operand
+                    + ", min="
+                    + min
+                    + ", max="
+                    + Sequences.maxToString(max)
+                    + ")"
+                );
+            }
+        };
+    }
+
+    /**
+     * Matches the <var>elements</var> of a {@link #isDeterministic(Sequence) deterministic} sequence, without their
+     * successors.
+     *
+     * @return Whether the elements matched; if so, the {@link MatcherImpl#offset} was advanced
+     */
+    private static boolean
+    matchesOnce(CompositeSequence[] elements, MatcherImpl matcher) {
+
+        for (CompositeSequence e : elements) {
+
+            if (e instanceof LiteralString) {
+                if (!matcher.peekRead(((LiteralString) e).cs)) return false;
+                continue;
+            }
+
+            if (matcher.offset >= matcher.regionEnd) {
+                matcher.hitEnd = true;
+                return false;
+            }
+
+            if (!((CharacterClass) e).matches(matcher.readChar())) return false;
+        }
+
+        return true;
+    }
+
     /**
      * Implements greedy and reluctant (but <em>not</em> possessive) quantifiers.
      */
@@ -537,6 +808,10 @@ class Sequences {
         final boolean  greedy
     ) {
 
+        if (Sequences.isDeterministic(operand)) {
+            return Sequences.iterativeQuantifier(operand, min, max, counterNumber, greedy);
+        }
+
         final int opminml = operand.minMatchLength;
         final int opmaxml = operand.maxMatchLength;
 
@@ -560,6 +835,8 @@ class Sequences {
         final Sequence[] operand2   = { operand };
         final String     opToString = operand.toString();
 
+        final ThreadLocal<CheckedOffsets> checked = new ThreadLocal<CheckedOffsets>();
+
         final CompositeSequence cs = new CompositeSequence(
             Sequences.mul(opminml, min == 0 ? 0   : min - 1), // minMatchLength
             Sequences.mul(opmaxml, min == 0 ? max : max - 1)  // maxMatchLength
@@ -568,6 +845,8 @@ class Sequences {
             @Override public boolean
             matches(MatcherImpl matcher) {
 
+                matcher.step();
+
                 if (greedy) {
 
 //                    // Optimize: TODO: Probably not correct
@@ -615,10 +894,15 @@ class Sequences {
 
             @Override void
             check(int offset, Consumer<Integer> result) {
+                if (!Sequences.firstCheck(checked, offset, result)) return;
                 operand2[0].check(offset, result);
                 this.next.check(offset, result);
             }
 
+            // Loop back to the quantifier.
+            @Override int
+            toNfa(Nfa.Builder b, int next) { return next; }
+
             @Override protected String
             toStringWithoutNext() { return "???cs"; }
         };
@@ -674,6 +958,11 @@ class Sequences {
                 }
             }
 
+            @Override int
+            toNfa(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+                return b.quantifier(operand2[0], min, max, greedy, cs.next.toNfa(b, next));
+            }
+
             @Override public String
             toString() {
                 return (
@@ -740,7 +1029,7 @@ class Sequences {
             @Override public Sequence
             concat(Sequence that) {
 
-                Sequence result = super.concat(that);
+                super.concat(that);
 
                 // Optimize for "." operand.
                 if (
@@ -748,21 +1037,27 @@ class Sequences {
                     && ((CompositeSequence) operand).next == Sequences.TERMINAL
                 ) {
 
-                    // Replace the possessive quantifier element.
-                    return new CompositeSequence(
-                        Sequences.add(Sequences.mul(min, 1), result.minMatchLength),
-                        Sequences.add(Sequences.mul(max, 2), result.maxMatchLength)
-                    ) {
+                    // Replace the possessive quantifier element. (Notice that each code point is one or two chars.)
+                    return new CompositeSequence(min, Sequences.mul(max, 2)) {
 
                         @Override public boolean
                         matches(MatcherImpl matcher) {
 
-                            int o = matcher.offset;
+                            int o   = matcher.offset;
+                            int end = matcher.regionEnd;
+
+                            if (max == Integer.MAX_VALUE && end - o >= 2L * min) {
 
-                            if (max > matcher.regionEnd - o) {
-                                o = matcher.regionEnd;
+                                // There are at least "min" code points left, even if they are all surrogate pairs.
+                                o              = end;
+                                matcher.hitEnd = true;
                             } else {
-                                o += max;
+                                int n = 0;
+                                for (; n < max && o < end; n++) o = matcher.positionPlus1(o);
+
+                                if (n < max) matcher.hitEnd = true;
+
+                                if (n < min) return false;
                             }
 
                             matcher.offset = o;
@@ -844,8 +1139,8 @@ class Sequences {
     public static
     class LiteralString extends AbstractMultivalentSequence {
 
-        final CharSequence               cs;
-        private final StringUtil.IndexOf indexOf;
+        final CharSequence       cs;
+        final StringUtil.IndexOf indexOf;
 
         /**
          * @param cs The literal string that this sequence represents
@@ -854,7 +1149,7 @@ class Sequences {
             super(cs.length());
             this.cs = cs;
 
-            this.indexOf = StringUtil.indexOf(this.cs);
+            this.indexOf = TwoWay.newIndexOf(this.cs);
         }
 
         @Override public char[][]
@@ -895,6 +1190,117 @@ class Sequences {
         toStringWithoutNext() { return this.indexOf.toString(); }
     }
 
+    /**
+     * Representation of a sequence of literal characters, where each position matches either one char or a pair of
+     * chars that differ in exactly one bit. That is the case for most case-insensitive literals, e.g. {@code
+     * "(?i)abc"}, because the upper- and lower-case variants of the ASCII letters (and of many other letters) differ
+     * only in bit 5.
+     * <p>
+     *   Each position is checked with one OR and one compare (instead of iterating the needle's char sets), and
+     *   {@link #find(MatcherImpl)} implements a Horspool search with a skip table that holds both variants of each
+     *   char.
+     * </p>
+     */
+    static
+    class CaseInsensitiveLiteralString extends AbstractMultivalentSequence {
+
+        private final char[][] needle;
+
+        /**
+         * Position <var>i</var> matches char <var>c</var> iff {@code (c | masks[i]) == values[i]}.
+         */
+        private final char[] masks, values;
+
+        /**
+         * Indexed by the low byte of the char that is aligned with the end of the needle.
+         */
+        private final int[] skip = new int[256];
+
+        /**
+         * @param needle Each {@code needle[n]} must contain one char, or two chars that differ in exactly one bit
+         */
+        CaseInsensitiveLiteralString(char[][] needle) {
+            super(needle.length);
+
+            this.needle = needle;
+            this.masks  = new char[needle.length];
+            this.values = new char[needle.length];
+
+            for (int i = 0; i < needle.length; i++) {
+                char[] n = needle[i];
+                this.masks[i]  = n.length == 1 ? 0 : (char) (n[0] ^ n[1]);
+                this.values[i] = (char) (n[0] | this.masks[i]);
+            }
+
+            Arrays.fill(this.skip, needle.length);
+            for (int i = 0; i < needle.length - 1; i++) {
+                for (char c : needle[i]) this.skip[0xff & c] = needle.length - 1 - i;
+            }
+        }
+
+        @Override public char[][]
+        getNeedle() { return this.needle; }
+
+        @Override public boolean
+        matches(MatcherImpl matcher) {
+
+            int          o       = matcher.offset;
+            CharSequence subject = matcher.subject;
+
+            if (o + this.values.length > matcher.regionEnd) {
+
+                // There are not enough characters left in the region for a match; check whether there is a
+                // _partial_ match, and, if so, set "hitEnd" before returning FALSE.
+                for (int i = 0; o < matcher.regionEnd; o++, i++) {
+                    if ((subject.charAt(o) | this.masks[i]) != this.values[i]) return false;
+                }
+                matcher.hitEnd = true;
+                return false;
+            }
+
+            for (int i = 0; i < this.values.length; i++, o++) {
+                if ((subject.charAt(o) | this.masks[i]) != this.values[i]) return false;
+            }
+
+            matcher.offset = o;
+            return this.next.matches(matcher);
+        }
+
+        @Override public int
+        find(MatcherImpl matcher) {
+
+            final CharSequence subject = matcher.subject;
+            final char[]       masks   = this.masks, values = this.values;
+            final int          last    = values.length - 1;
+            final int          limit   = matcher.regionEnd - last;
+
+            for (int o = matcher.offset; o < limit;) {
+
+                // Check the char at the end of the needle first; it also determines the skip distance.
+                char c = subject.charAt(o + last);
+                if ((c | masks[last]) == values[last]) {
+                    VERIFY: {
+                        for (int i = 0; i < last; i++) {
+                            if ((subject.charAt(o + i) | masks[i]) != values[i]) break VERIFY;
+                        }
+
+                        // See if the rest of the pattern matches.
+                        matcher.offset = o + values.length;
+                        if (this.next.matches(matcher)) return o;
+                    }
+                }
+
+                o += this.skip[0xff & c];
+            }
+
+            matcher.hitEnd = true;
+            return -1;
+        }
+
+        @Override protected String
+        toStringWithoutNext() { return Sequences.needleToString(this.needle); }
+    }
+
     /**
      * Creates and returns {@link Sequence} that returns the <em>first</em> match of one <var>alternatives</var> plus
      * <em>this</em> sequence's successor.
@@ -918,12 +1324,18 @@ class Sequences {
      *
      * @see #alternatives
      */
-    private static
+    static
     class AlternativesSequence extends CompositeSequence {
 
         private final Sequence[]          alternatives;
         protected final Sequence joiner = Sequences.joinerSequence(this);
 
+        /**
+         * Locates the literal prefixes of all alternatives in one pass; {@code null} iff not all alternatives start
+         * with a literal string or char.
+         */
+        @Nullable final AhoCorasick prefixes;
+
         AlternativesSequence(Sequence[] alternatives) {
             super(
                 AlternativesSequence.minMinMatchLength(alternatives),
@@ -935,6 +1347,28 @@ class Sequences {
             for (int i = 0; i < alternatives.length; i++) {
                 alternatives[i] = alternatives[i].concat(this.joiner);
             }
+
+            this.prefixes = AlternativesSequence.prefixAutomaton(alternatives);
+        }
+
+        @Nullable private static AhoCorasick
+        prefixAutomaton(Sequence[] alternatives) {
+
+            CharSequence[] prefixes = new CharSequence[alternatives.length];
+            for (int i = 0; i < alternatives.length; i++) {
+                Sequence a = alternatives[i];
+                if (a instanceof LiteralString) {
+                    prefixes[i] = ((LiteralString) a).cs;
+                } else
+                if (a instanceof CharacterClasses.LiteralChar) {
+                    prefixes[i] = String.valueOf((char) ((CharacterClasses.LiteralChar) a).c);
+                } else
+                {
+                    return null;
+                }
+            }
+
+            return new AhoCorasick(prefixes);
         }
 
         private static int
@@ -961,6 +1395,7 @@ class Sequences {
             final int savedOffset = matcher.offset;
 
             for (Sequence a : this.alternatives) {
+                matcher.step();
                 matcher.offset = savedOffset;
                 if (a.matches(matcher)) return true;
             }
@@ -984,6 +1419,22 @@ class Sequences {
             for (Sequence a : this.alternatives) { a.check(offset, result); }
         }
 
+        @Override int
+        toNfaWithoutNext(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+
+            // Notice: The alternatives are terminated by the "joiner", which translates to "next".
+            int[] starts = new int[this.alternatives.length];
+            for (int i = 0; i < starts.length; i++) starts[i] = this.alternatives[i].toNfa(b, next);
+
+            // Repeated alternatives that can start with the same character are ambiguous, e.g. "(a|aa)+".
+            if (b.inRepetition() && b.overlap(starts, next)) b.ambiguous = true;
+
+            int result = starts[starts.length - 1];
+            for (int i = starts.length - 2; i >= 0; i--) result = b.split(starts[i], result);
+
+            return result;
+        }
+
         @Override public String
         toStringWithoutNext() {
             return "alternatives(" + Sequences.join(this.alternatives, ", ") + ")";
@@ -997,6 +1448,9 @@ class Sequences {
             @Override protected String toStringWithoutNext() { return "endOfAlternative"; }
             @Override public String    toString()            { return this.toStringWithoutNext(); }
 
+            @Override int
+            toNfaWithoutNext(Nfa.Builder b, int next) { return next; }
+
             @Override boolean
             matches(MatcherImpl matcher) { return wrapper.next.matches(matcher); }
 
@@ -1073,6 +1527,7 @@ class Sequences {
 
                 final int savedGroupStart = gs[idx];
                 final int savedGroupEnd   = gs[idx + 1];
+                matcher.touchGroup(groupNumber);
                 gs[idx] = matcher.offset;
 
                 // The following logic is (not only a bit...) strange, but that's how JUR's capturing groups
@@ -1105,6 +1560,11 @@ class Sequences {
                 this.next.check(offset, result);
             }
 
+            @Override int
+            toNfaWithoutNext(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+                return b.save(2 * groupNumber, next);
+            }
+
             @Override public String
             toStringWithoutNext() { return "capturingGroupStart(" + groupNumber + ")"; }
         };
@@ -1121,6 +1581,7 @@ class Sequences {
             @Override public boolean
             matches(MatcherImpl matcher) {
 
+                matcher.touchGroup(groupNumber);
                 matcher.groups[2 * groupNumber + 1] = matcher.offset;
 
                 if (this.next.matches(matcher)) return true;
@@ -1129,6 +1590,11 @@ class Sequences {
                 return false;
             }
 
+            @Override int
+            toNfaWithoutNext(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+                return b.save(2 * groupNumber + 1, next);
+            }
+
             @Override public String
             toStringWithoutNext() { return "capturingGroupEnd(" + groupNumber + ")"; }
         };
@@ -1158,6 +1624,7 @@ class Sequences {
                 int[] gs = matcher.groups;
 
                 // Record the group start and end in the matcher.
+                matcher.touchGroup(groupNumber);
                 gs[2 * groupNumber]     = start;
                 gs[2 * groupNumber + 1] = end;
 
@@ -1170,6 +1637,11 @@ class Sequences {
                 subsequence.check(offset, result);
             }
 
+            @Override int
+            toNfaWithoutNext(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+                return b.save(2 * groupNumber, subsequence.toNfa(b, b.save(2 * groupNumber + 1, next)));
+            }
+
             @Override public String
             toStringWithoutNext() { return "capturingGroup(" + subsequence + ")"; }
         };
@@ -1337,11 +1809,44 @@ class Sequences {
                 ) && this.next.matches(matcher);
             }
 
+            // Override "Sequence.find()" such that only the beginnings of lines are tried, and not every offset.
+            @Override public int
+            find(MatcherImpl matcher) {
+
+                CharSequence subject = matcher.subject;
+                for (int o = matcher.offset;;) {
+
+                    matcher.offset = o;
+                    if (this.matches(matcher)) return o;
+
+                    // Skip to the offset after the next line terminator.
+                    do {
+                        if (o >= matcher.regionEnd) {
+                            matcher.hitEnd = true;
+                            return -1;
+                        }
+                    } while (!Sequences.isLineTerminator(subject.charAt(o++)));
+                }
+            }
+
             @Override public String
             toStringWithoutNext() { return "beginningOfLine"; }
         };
     }
 
+    private static boolean
+    isLineTerminator(char c) {
+        return (
+            c == '\n'
+            || c == '\r'
+            || c == '\u000B'
+            || c == '\f'
+            || c == '\u0085'
+            || c == '\u2028'
+            || c == '\u2029'
+        );
+    }
+
     /**
      * Implements {@code "^"} with MULTILINE and UNIX_LINES.
      */
@@ -1370,6 +1875,26 @@ class Sequences {
                 return false;
             }
 
+            // Override "Sequence.find()" such that only the beginnings of lines are tried, and not every offset.
+            @Override public int
+            find(MatcherImpl matcher) {
+
+                CharSequence subject = matcher.subject;
+                for (int o = matcher.offset;;) {
+
+                    matcher.offset = o;
+                    if (this.matches(matcher)) return o;
+
+                    // Skip to the offset after the next line separator.
+                    do {
+                        if (o >= matcher.regionEnd) {
+                            matcher.hitEnd = true;
+                            return -1;
+                        }
+                    } while (subject.charAt(o++) != '\n');
+                }
+            }
+
             @Override public String
             toStringWithoutNext() { return "beginningOfUnixLine"; }
         };
@@ -1628,9 +2153,6 @@ class Sequences {
     public static Sequence
     unicodeExtendedGrapheme() {
 
-        // Verify that graphemes are available (JRE 9+):
-        Grapheme.isBoundary(65, 66);
-
         return new CompositeSequence(1, Integer.MAX_VALUE) {
 
             @Override public boolean
@@ -1641,33 +2163,11 @@ class Sequences {
                     return false;
                 }
 
-                int cp1 = matcher.readChar();
-
-                while (matcher.offset < matcher.regionEnd) {
-
-                    int beforeCp2 = matcher.offset;
-                    int cp2       = matcher.readChar();
-                    if (Grapheme.isBoundary(cp1,  cp2)) {
-                        matcher.offset = beforeCp2;
-                        break;
-                    }
-
-                    cp1 = cp2;
-                }
+                matcher.offset = Grapheme.nextBoundary(matcher.subject, matcher.offset, matcher.regionEnd);
 
                 return this.next.matches(matcher);
             }
 
-            @Override protected void
-            checkWithoutNext(int offset, Consumer<Integer> result) {
-                if (offset == 0) {
-                    for (int cp : CharacterClasses.LINE_BREAK_CHARACTERS) result.consume(cp);
-                } else
-                if (offset == 1) {
-                    result.consume((int) '\n');
-                }
-            }
-
             @Override public String
             toStringWithoutNext() { return "unicodeExtendedGrapheme"; }
         };
@@ -1679,9 +2179,6 @@ class Sequences {
     public static Sequence
     unicodeExtendedGraphemeClusterBoundary() {
 
-        // Verify that graphemes are available (JRE 9+):
-        Grapheme.isBoundary(65, 66);
-
         return new CompositeSequence(0) {
 
             @Override public boolean
@@ -1689,16 +2186,16 @@ class Sequences {
 
                 int o = matcher.offset;
 
+                int start;
                 if (matcher.hasTransparentBounds()) {
                     if (o == 0 || o == matcher.subject.length())              return this.next.matches(matcher);
+                    start = 0;
                 } else {
                     if (o == matcher.regionStart || o == matcher.regionEnd()) return this.next.matches(matcher);
+                    start = matcher.regionStart;
                 }
 
-                int cp1 = Character.codePointBefore(matcher.subject, matcher.offset);
-                int cp2 = Character.codePointAt(matcher.subject, matcher.offset);
-
-                if (Grapheme.isBoundary(cp1, cp2)) return this.next.matches(matcher);
+                if (Grapheme.isBoundary(matcher.subject, o, start)) return this.next.matches(matcher);
 
                 return false;
             }
@@ -1718,6 +2215,8 @@ class Sequences {
     public static Sequence
     wordBoundary() {
 
+        final CodePointTable isWord = CharacterClasses.unicodeWordTable();
+
         return new CompositeSequence(0) {
 
             @Override public boolean
@@ -1742,23 +2241,36 @@ class Sequences {
                     // At end of transparent region.
                     matcher.hitEnd     = true;
                     matcher.requireEnd = true;
-                    return (
-                        o != trs // Zero-length region.
-                        && Characters.isUnicodeWord(Character.codePointBefore(matcher.subject, o))
-                        && this.next.matches(matcher)
+                    if (o == trs) return false; // Zero-length region.
+                    char b = matcher.subject.charAt(o - 1);
+                    boolean wordBefore = (
+                        b < 128
+                        ? Sequences.ASCII_WORD[b]
+                        : isWord.evaluate(Character.codePointBefore(matcher.subject, o))
                     );
+                    return wordBefore && this.next.matches(matcher);
                 }
 
+                char c = matcher.subject.charAt(o);
+
                 if (o <= trs) {
 
                     // At start of transparent region.
-                    return (
-                        Characters.isUnicodeWord(Character.codePointAt(matcher.subject, o))
-                        && this.next.matches(matcher)
+                    boolean wordAt = (
+                        c < 128
+                        ? Sequences.ASCII_WORD[c]
+                        : isWord.evaluate(Character.codePointAt(matcher.subject, o))
                     );
+                    return wordAt && this.next.matches(matcher);
+                }
+
+                // Between two ASCII chars, the lookup table tells whether there is a word boundary.
+                char b = matcher.subject.charAt(o - 1);
+                if (b < 128 && c < 128) {
+                    return Sequences.ASCII_WORD[b] != Sequences.ASCII_WORD[c] && this.next.matches(matcher);
                 }
 
-                if (matcher.subject.charAt(o) == '\u030a') return false;
+                if (c == '\u030a') return false;
 
                 // IN transparent region (neither at its start nor at its end).
                 int cpBefore = Character.codePointBefore(matcher.subject, o);
@@ -1767,7 +2279,7 @@ class Sequences {
                 if (cpBefore == '\u030a') {
                     for (int i = o - 1;; i--) {
                         if (i <= trs) {
-                            if (!Characters.isUnicodeWord(cpAt)) return false;
+                            if (!isWord.evaluate(cpAt)) return false;
                             break;
                         }
 
@@ -1776,16 +2288,80 @@ class Sequences {
                     }
                 }
                 return (
-                    (Characters.isUnicodeWord(cpBefore) != Characters.isUnicodeWord(cpAt))
+                    (isWord.evaluate(cpBefore) != isWord.evaluate(cpAt))
                     && this.next.matches(matcher)
                 );
             }
 
+            // Override "Sequence.find()" such that the successor is located with ITS optimized "find()" (e.g. for
+            // "\b\w+nn\b" by the literal "nn"), and such that after a failed attempt the offsets without a
+            // word boundary are skipped.
+            @Override public int
+            find(MatcherImpl matcher) {
+
+                CharSequence subject = matcher.subject;
+                for (;;) {
+
+                    boolean requireEnd = matcher.requireEnd;
+
+                    int start = this.next.find(matcher);
+                    if (start == -1) break;
+
+                    if (
+                        start > matcher.regionStart
+                        && start < matcher.regionEnd
+                        && subject.charAt(start - 1) < 128
+                        && subject.charAt(start) < 128
+                    ) {
+
+                        // Between two ASCII chars, the lookup table tells whether there is a word boundary.
+                        if (
+                            Sequences.ASCII_WORD[subject.charAt(start - 1)]
+                            != Sequences.ASCII_WORD[subject.charAt(start)]
+                        ) return start;
+
+                        // The match of "this.next" does not count.
+                        matcher.requireEnd = requireEnd;
+                    } else {
+                        matcher.requireEnd = requireEnd;
+                        matcher.offset     = start;
+                        if (this.matches(matcher)) return start;
+                    }
+
+                    if (start >= matcher.regionEnd) break;
+
+                    // Skip the run of ASCII chars that are word chars iff the char at "start" is a word char; there
+                    // is no word boundary within that run. (Non-ASCII chars, e.g. non-spacing marks, are left to
+                    // "matches()".)
+                    int  o = start + 1;
+                    char c = subject.charAt(start);
+                    if (c < 128) {
+                        boolean word = Sequences.ASCII_WORD[c];
+                        for (; o < matcher.regionEnd; o++) {
+                            c = subject.charAt(o);
+                            if (c >= 128 || Sequences.ASCII_WORD[c] != word) break;
+                        }
+                    }
+                    matcher.offset = o;
+                }
+
+                matcher.hitEnd = true;
+                return -1;
+            }
+
             @Override public String
             toStringWithoutNext() { return "wordBoundary"; }
         };
     }
 
+    /**
+     * Whether each of the ASCII chars is a word char, as checked by {@link #wordBoundary()}.
+     */
+    private static final boolean[] ASCII_WORD = new boolean[128];
+    static {
+        for (int c = 0; c < 128; c++) Sequences.ASCII_WORD[c] = Characters.isUnicodeWord(c);
+    }
+
     /**
      * Implements {@code "\G"}.
      */
@@ -1805,6 +2381,22 @@ class Sequences {
                 return matcher.offset == matcher.endOfPreviousMatch && this.next.matches(matcher);
             }
 
+            // Override "Sequence.find()" such that the match is only tried at the end of the previous match.
+            @Override public int
+            find(MatcherImpl matcher) {
+
+                int o = matcher.endOfPreviousMatch;
+                if (o < 0) return super.find(matcher);
+
+                if (o >= matcher.offset && o <= matcher.regionEnd) {
+                    matcher.offset = o;
+                    if (this.next.matches(matcher)) return o;
+                }
+
+                matcher.hitEnd = true;
+                return -1;
+            }
+
             @Override public String
             toStringWithoutNext() { return "endOfPreviousMatch"; }
         };
@@ -1965,6 +2557,7 @@ class Sequences {
 
                 // Now track back to the longest possible match.
                 for (;; i--) {
+                    matcher.step();
 
                     int savedOffset = matcher.offset;
                     if (this.next.matches(matcher)) {
@@ -1990,11 +2583,20 @@ class Sequences {
             @Override
             public int find(MatcherImpl matcher) {
 
+                // "[a-z]+ing" => Find "ing" first, then scan backwards for the start of the match.
+                if (this.next instanceof LiteralString) return this.reverseSuffixFind(matcher, (LiteralString) this.next);
+
                 int limit = matcher.regionEnd; // TODO - this.next.minMatchLength;
 
                 // Find the next match.
                 NEXT_SOM: for (int startOfMatch = matcher.offset; startOfMatch < matcher.regionEnd;) {
 
+                    // Skip the chars that cannot start a match.
+                    if (min > 0) {
+                        startOfMatch = operand.skipNonMatching(matcher.subject, startOfMatch, matcher.regionEnd);
+                        if (startOfMatch == matcher.regionEnd) break;
+                    }
+
                     matcher.offset = startOfMatch;
 
                     // The operand MUST match (min) times;
@@ -2035,6 +2637,7 @@ class Sequences {
 
                     // Now track back to the longest possible match.
                     for (;; i--) {
+                        matcher.step();
 
                         int savedOffset = matcher.offset;
                         if (this.next.matches(matcher)) {
@@ -2093,6 +2696,62 @@ class Sequences {
                 return this.next.matches(matcher) ? matcher.regionEnd : -1;
             }
 
+            /**
+             * Locates the occurrences of the <var>literal</var> (which is much faster than running the quantifier on
+             * each start offset), and then scans backwards across the operand matches in front of it, which yields
+             * the leftmost possible start of a match. Only that start offset is then verified with a forward match.
+             */
+            private int
+            reverseSuffixFind(MatcherImpl matcher, LiteralString literal) {
+
+                final CharSequence subject       = matcher.subject;
+                final int          from          = matcher.offset;
+                final int          literalLength = literal.cs.length();
+
+                int start = from; // All start offsets before this have already been tried, or cannot match.
+
+                for (int o = from + min;; o++) {
+
+                    // Find the next occurrence of the literal string.
+                    o = literal.indexOf.indexOf(subject, o, matcher.regionEnd - literalLength);
+                    if (o == -1) break;
+
+                    // Scan backwards for the leftmost start offset from which the quantifier can reach the literal.
+                    // Notice: A surrogate pair that straddles the "start" must not be decoded.
+                    int som = o;
+                    for (int i = 0; som > start && i < max; i++) {
+                        int cp = subject.charAt(som - 1);
+                        if (Character.isLowSurrogate((char) cp) && som - 2 >= start) {
+                            char hs = subject.charAt(som - 2);
+                            if (Character.isHighSurrogate(hs)) cp = Character.toCodePoint(hs, (char) cp);
+                        }
+                        if (!operand.matches(cp)) break;
+                        som -= Character.charCount(cp);
+                    }
+
+                    // Verify the candidate start offsets, in ascending order.
+                    for (; som <= o - min; som++) {
+
+                        if (
+                            som > from
+                            && Character.isLowSurrogate(subject.charAt(som))
+                            && Character.isHighSurrogate(subject.charAt(som - 1))
+                        ) continue;
+
+                        matcher.offset = som;
+                        if (this.matches(matcher)) return som;
+
+                        // An unlimited quantifier reaches fewer end offsets from any later start offset, so these
+                        // cannot match either.
+                        if (max == Integer.MAX_VALUE) som = o - min;
+                    }
+                    if (som > start) start = som;
+                }
+
+                matcher.hitEnd = true;
+                return -1;
+            }
+
             @Override public Sequence
             concat(Sequence that) {
 
@@ -2109,6 +2768,11 @@ class Sequences {
                 return super.concat(that);
             }
 
+            @Override int
+            toNfaWithoutNext(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+                return b.quantifier(operand, min, max, true, next);
+            }
+
             @Override public String
             toStringWithoutNext() {
                 return (
@@ -2176,6 +2840,7 @@ class Sequences {
 
                 // Now track back to the longest possible match.
                 for (;; i--) {
+                    matcher.step();
 
                     matcher.offset = o;
                     if (this.next.matches(matcher)) {
@@ -2191,6 +2856,11 @@ class Sequences {
                 return false;
             }
 
+            @Override int
+            toNfaWithoutNext(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+                return b.quantifier(CharacterClasses.literalCharacter(operand), min, max, true, next);
+            }
+
             @Override public String
             toStringWithoutNext() {
                 return (
@@ -2245,6 +2915,7 @@ class Sequences {
 
                 // Now try to match the operand (max-min) more times.
                 for (;; i++) {
+                    matcher.step();
 
                     int savedOffset = matcher.offset;
                     if (this.next.matches(matcher)) {
@@ -2281,6 +2952,11 @@ class Sequences {
                 return super.concat(that);
             }
 
+            @Override int
+            toNfaWithoutNext(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+                return b.quantifier(operand, min, max, false, next);
+            }
+
             @Override public String
             toStringWithoutNext() {
                 return (
@@ -2335,6 +3011,7 @@ class Sequences {
 
                 // Now try to match the operand (max-min) more times.
                 for (;; i++) {
+                    matcher.step();
 
                     if (o >= limit) {
                         matcher.hitEnd = true;
@@ -2355,6 +3032,11 @@ class Sequences {
                 return false;
             }
 
+            @Override int
+            toNfaWithoutNext(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+                return b.quantifier(CharacterClasses.literalCharacter(operand), min, max, false, next);
+            }
+
             @Override public String
             toStringWithoutNext() {
                 return (
@@ -2384,7 +3066,7 @@ class Sequences {
 
         return new CompositeSequence(min * ls.length(), Sequences.mul(max, ls.length())) {
 
-            final IndexOf indexOf     = StringUtil.indexOf(ls);
+            final IndexOf indexOf     = TwoWay.newIndexOf(ls);
             final int     infixLength = ls.length();
 
             @Override public boolean
@@ -2406,6 +3088,7 @@ class Sequences {
                     if (maxIndex == -1) return false;
 
                     // See if the successor matches the rest of the subject.
+                    matcher.step();
                     matcher.offset = maxIndex + this.infixLength;
                     if (this.next.matches(matcher)) return true;
 
@@ -2416,6 +3099,17 @@ class Sequences {
                 return false;
             }
 
+            @Override int
+            toNfaWithoutNext(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+                return b.quantifier(
+                    new CharacterClasses.AnyCharacter(),
+                    min,
+                    max,
+                    true,
+                    b.needle(ArrayUtil.mirror(new char[][] { CharSequences.toCharArray(ls) }), next)
+                );
+            }
+
             @Override public String
             toStringWithoutNext() {
                 return (
@@ -2449,7 +3143,7 @@ class Sequences {
         ) {
 
             final int     len     = ls.length();
-            final IndexOf indexOf = StringUtil.indexOf(ls);
+            final IndexOf indexOf = TwoWay.newIndexOf(ls);
 
             @Override public boolean
             matches(MatcherImpl matcher) {
@@ -2468,6 +3162,7 @@ class Sequences {
                     if (o == -1) break;
 
                     // See if the successor matches the rest of the subject.
+                    matcher.step();
                     matcher.offset = o + this.len;
                     if (this.next.matches(matcher)) return true;
 
@@ -2479,6 +3174,17 @@ class Sequences {
                 return false;
             }
 
+            @Override int
+            toNfaWithoutNext(Nfa.Builder b, int next) throws Nfa.UnsupportedSequenceException {
+                return b.quantifier(
+                    new CharacterClasses.AnyCharacter(),
+                    min,
+                    max,
+                    false,
+                    b.needle(ArrayUtil.mirror(new char[][] { CharSequences.toCharArray(ls) }), next)
+                );
+            }
+
             @Override public String
             toStringWithoutNext() {
                 return (
@@ -0,0 +1,281 @@
+
+/*
+ * de.unkrig.lfr - A super-fast regular expression evaluator
+ *
+ * Copyright (c) 2017, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.lfr.core;
+
+import de.unkrig.commons.lang.CharSequences;
+import de.unkrig.commons.lang.PrettyPrinter;
+import de.unkrig.commons.lang.StringUtil;
+import de.unkrig.commons.lang.StringUtil.IndexOf;
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Implements the "Two-Way" string matching algorithm (Crochemore and Perrin, 1991), which finds a needle in O(n)
+ * time, even for adversarial haystacks and periodic needles like {@code "aaaaaaaaab"} (where {@link
+ * StringUtil#indexOf(CharSequence)} degrades to O(n * m)), and with O(1) extra space.
+ * <p>
+ *   Like the implementation in the GNU C library, this implementation additionally uses a Horspool skip table on
+ *   the haystack char that is aligned with the end of the needle, which makes it sublinear on typical haystacks.
+ * </p>
+ */
+final
+class TwoWay implements IndexOf {
+
+    /**
+     * Needles shorter than this are searched with {@link StringUtil#indexOf(CharSequence)}, because their worst case
+     * cost is bounded by their length.
+     */
+    private static final int MIN_NEEDLE_LENGTH = 32;
+
+    private final char[] needle;
+
+    /**
+     * The "critical position" of the needle, i.e. the start of its right half.
+     */
+    private final int suffix;
+
+    /**
+     * The period of the right half of the needle.
+     */
+    private final int period;
+
+    /**
+     * Whether {@link #period} is also the period of the <em>entire</em> needle.
+     */
+    private final boolean periodic;
+
+    /**
+     * Indexed by the low byte of the haystack char that is aligned with the end of the needle.
+     */
+    private final int[] shifts = new int[256];
+
+    /**
+     * Searches for the reversed needle; implements {@link #lastIndexOf(CharSequence, int, int)}.
+     */
+    @Nullable private TwoWay reverse;
+
+    /**
+     * @return A Two-Way search for long needles, and for needles that contain a repeated pattern; otherwise {@link
+     *         StringUtil#indexOf(CharSequence)}
+     */
+    static IndexOf
+    newIndexOf(CharSequence needle) {
+
+        if (needle.length() >= TwoWay.MIN_NEEDLE_LENGTH) return new TwoWay(needle);
+
+        if (needle.length() >= TwoWay.MIN_NEEDLE_LENGTH / 2) {
+            TwoWay tw = new TwoWay(needle);
+            if (tw.periodic && 2 * tw.period <= needle.length()) return tw;
+        }
+
+        return StringUtil.indexOf(needle);
+    }
+
+    TwoWay(CharSequence needle) {
+
+        char[] n = (this.needle = CharSequences.toCharArray(needle));
+        int    m = n.length;
+
+        // Compute the critical factorization from the maximal suffixes for both orderings of the alphabet.
+        int[] p1 = new int[1], p2 = new int[1];
+        int   s1 = TwoWay.maximalSuffix(n, false, p1), s2 = TwoWay.maximalSuffix(n, true, p2);
+        int   suffix, period;
+        if (s1 > s2) {
+            suffix = s1 + 1;
+            period = p1[0];
+        } else {
+            suffix = s2 + 1;
+            period = p2[0];
+        }
+
+        boolean periodic = suffix + period <= m;
+        for (int i = 0; periodic && i < suffix; i++) {
+            if (n[i] != n[i + period]) periodic = false;
+        }
+
+        this.suffix   = suffix;
+        this.periodic = periodic;
+        this.period   = periodic ? period : Math.max(suffix, m - suffix) + 1;
+
+        for (int i = 0; i < 256; i++) this.shifts[i] = m;
+        for (int i = 0; i < m; i++) this.shifts[0xff & n[i]] = m - 1 - i;
+    }
+
+    /**
+     * @param reversed    Whether to use the reversed ordering of the chars
+     * @param periodOut   Receives the period of the maximal suffix
+     * @return            The position <em>before</em> the maximal suffix (-1 iff the maximal suffix is the entire
+     *                    needle)
+     */
+    private static int
+    maximalSuffix(char[] needle, boolean reversed, int[] periodOut) {
+
+        int maxSuffix = -1, j = 0, k = 1, p = 1;
+        while (j + k < needle.length) {
+            char a = needle[j + k], b = needle[maxSuffix + k];
+            if (reversed ? b < a : a < b) {
+                j += k;
+                k = 1;
+                p = j - maxSuffix;
+            } else
+            if (a == b) {
+                if (k != p) {
+                    k++;
+                } else {
+                    j += p;
+                    k = 1;
+                }
+            } else
+            {
+                maxSuffix = j++;
+                k         = p = 1;
+            }
+        }
+
+        periodOut[0] = p;
+        return maxSuffix;
+    }
+
+    @Override public int
+    indexOf(CharSequence haystack) { return this.indexOf(haystack, 0, Integer.MAX_VALUE); }
+
+    @Override public int
+    indexOf(CharSequence haystack, int minIndex) { return this.indexOf(haystack, minIndex, Integer.MAX_VALUE); }
+
+    @Override public int
+    indexOf(CharSequence haystack, int minIndex, int maxIndex) {
+
+        final char[] n      = this.needle;
+        final int    m      = n.length;
+        final int    suffix = this.suffix, period = this.period;
+
+        if (minIndex < 0) minIndex = 0;
+        if (maxIndex > haystack.length() - m) maxIndex = haystack.length() - m;
+
+        // Notice: "memory" is the length of the needle prefix that is known to match at "j" (periodic needles only).
+        int memory = 0;
+        for (int j = minIndex; j <= maxIndex;) {
+
+            int shift = this.shifts[0xff & haystack.charAt(j + m - 1)];
+            if (shift > 0) {
+                j      += shift;
+                memory = 0;
+                continue;
+            }
+
+            // Match the right half of the needle (including its last char, because the shift table only checks
+            // the low byte).
+            int i = Math.max(suffix, memory);
+            while (i < m && n[i] == haystack.charAt(j + i)) i++;
+            if (i < m) {
+                j      += i - suffix + 1;
+                memory = 0;
+                continue;
+            }
+
+            // Match the left half of the needle.
+            i = suffix - 1;
+            while (i >= memory && n[i] == haystack.charAt(j + i)) i--;
+            if (i < memory) return j;
+
+            j += period;
+            if (this.periodic) memory = m - period;
+        }
+
+        return -1;
+    }
+
+    @Override public int
+    indexOf(CharSequence haystack, int minIndex, int maxIndex, int limit) {
+
+        final char[] n = this.needle;
+        final int    m = n.length;
+
+        if (limit > haystack.length()) limit = haystack.length();
+
+        // Search for a complete occurrence before the limit.
+        int result = this.indexOf(haystack, minIndex, Math.min(maxIndex, limit - m));
+        if (result != -1) return result;
+
+        // Search for a partial occurrence, i.e. a prefix of the needle that ends at the limit.
+        NEXT_J: for (int j = Math.max(minIndex, Math.max(0, limit - m + 1)); j <= maxIndex && j < limit; j++) {
+            for (int i = 0; j + i < limit; i++) {
+                if (n[i] != haystack.charAt(j + i)) continue NEXT_J;
+            }
+            return j;
+        }
+
+        return -1;
+    }
+
+    @Override public int
+    lastIndexOf(CharSequence haystack) { return this.lastIndexOf(haystack, 0, Integer.MAX_VALUE); }
+
+    @Override public int
+    lastIndexOf(CharSequence haystack, int maxIndex) { return this.lastIndexOf(haystack, 0, maxIndex); }
+
+    @Override public int
+    lastIndexOf(final CharSequence haystack, int minIndex, int maxIndex) {
+
+        final int m = this.needle.length;
+
+        if (minIndex < 0) minIndex = 0;
+        final int end = maxIndex > haystack.length() - m ? haystack.length() : maxIndex + m;
+        if (end - minIndex < m) return -1;
+
+        TwoWay reverse = this.reverse;
+        if (reverse == null) {
+
+            // Notice: Reverse all chars, including surrogate pairs, as the haystack view below does.
+            char[] rn = new char[m];
+            for (int i = 0; i < m; i++) rn[i] = this.needle[m - 1 - i];
+
+            reverse = (this.reverse = new TwoWay(new String(rn)));
+        }
+
+        // Search the reversed needle in the reversed range "minIndex ... end".
+        final int length = end - minIndex;
+        int r = reverse.indexOf(new CharSequence() {
+
+            @Override public int
+            length() { return length; }
+
+            @Override public char
+            charAt(int index) { return haystack.charAt(end - 1 - index); }
+
+            @Override public CharSequence
+            subSequence(int start, int end2) { return this.toString().subSequence(start, end2); }
+
+            @Override public String
+            toString() { return new StringBuilder(length).append(this, 0, length).toString(); }
+        });
+
+        return r == -1 ? -1 : end - m - r;
+    }
+
+    @Override public String
+    toString() { return "twoWay(" + PrettyPrinter.toJavaStringLiteral(new String(this.needle)) + ")"; }
+}
@@ -0,0 +1,75 @@
+
+/*
+ * de.unkrig.lfr - A super-fast regular expression evaluator
+ *
+ * Copyright (c) 2024, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.lfr.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the {@link TwoWay} class, which is package-private.
+ */
+public
+class TwoWayTest {
+
+    @Test public void
+    testIndexOfWithLimit() {
+
+        // A prefix of the needle that ends at the limit is a "partial match".
+        Assert.assertEquals(2,  new TwoWay("abc").indexOf("xxab", 0, 4, 4));
+        Assert.assertEquals(3,  new TwoWay("abaab").indexOf("xxxab", 0, 5, 5));
+        Assert.assertEquals(-1, new TwoWay("abaab").indexOf("xxxbabaab", 0, 9, 4));
+
+        String haystack = "abaabaabaab-abaab-abaabaa";
+
+        for (String needle : new String[] { "abaab", "abaabaab", "aab-a" }) {
+
+            TwoWay tw = new TwoWay(needle);
+
+            for (int minIndex = 0; minIndex <= haystack.length(); minIndex++) {
+                for (int maxIndex = minIndex; maxIndex <= haystack.length(); maxIndex++) {
+                    for (int limit = 0; limit <= haystack.length(); limit++) {
+                        Assert.assertEquals(
+                            needle + ", " + minIndex + ", " + maxIndex + ", " + limit,
+                            TwoWayTest.naiveIndexOf(needle, haystack, minIndex, maxIndex, limit),
+                            tw.indexOf(haystack, minIndex, maxIndex, limit)
+                        );
+                    }
+                }
+            }
+        }
+    }
+
+    private static int
+    naiveIndexOf(String needle, String haystack, int minIndex, int maxIndex, int limit) {
+
+        for (int j = minIndex; j <= maxIndex && j < limit; j++) {
+            if (haystack.regionMatches(j, needle, 0, Math.min(needle.length(), limit - j))) return j;
+        }
+
+        return -1;
+    }
+}
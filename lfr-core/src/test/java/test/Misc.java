@@ -81,6 +81,8 @@ class Misc extends ParameterizedWithPatternFactory {
     testUnicodeExtendedGraphemeClusterBoundary() {
         this.assertMatches(true,  ".\\b{g}.", "ab");
         this.assertMatches(false, ".\\b{g}.", "a\u0308");
+        this.assertMatches(true,  "\\X\\b{g}\\X", "\ud83c\uddea\ud83c\uddfa\ud83c\uddea\ud83c\uddfa");
+        this.assertMatches(false, "..\\b{g}..", "\ud83c\uddea\ud83c\uddfa");
         if (this.isLfr()) {
             this.assertMatches(false, ".\\B{g}.", "ab");
             this.assertMatches(true,  ".\\B{g}.", "a\u0308");
@@ -108,6 +110,17 @@ class Misc extends ParameterizedWithPatternFactory {
 
         // Hangeul-Jamo grapheme. See: https://en.wikipedia.org/wiki/Hangul_Jamo_(Unicode_block)
         this.assertMatches(true,  "\\X",    "\u1100\u1161\u11a8");
+
+        // Emoji ZWJ sequences and emoji modifiers are ONE grapheme, ...
+        this.assertMatches(true,  "\\X",    "\ud83d\udc68\u200d\ud83d\udc69\u200d\ud83d\udc66");
+        this.assertMatches(true,  "\\X",    "\ud83d\udc4d\ud83c\udffd");
+        // ... but a ZWJ does not join non-pictographics.
+        this.assertMatches(true,  "\\X\\X", "a\u200d\ud83d\ude00");
+
+        // Regional indicators pair up into flags.
+        this.assertMatches(true,  "\\X",      "\ud83c\uddea\ud83c\uddfa");
+        this.assertMatches(true,  "\\X\\X",   "\ud83c\uddea\ud83c\uddfa\ud83c\uddea");
+        this.assertMatches(true,  "\\X\\X\\X", "\ud83c\uddea\ud83c\uddfa\ud83c\uddea\ud83c\uddfa\u0041");
     }
 
     // -----------------------------
@@ -142,11 +155,6 @@ class Misc extends ParameterizedWithPatternFactory {
             if (pse.getMessage().matches("(?s)Illegal repetition near index .*\\.\\\\b\\{g\\}.*")) return;
 
             throw pse;
-        } catch (UnsupportedOperationException uoe) {
-
-            // LFR cannot implement graphemes in Pre-9 JREs.
-            if ("Graphemes only available in Java 9+".equals(uoe.getMessage())) return;
-            throw uoe;
         }
 
         boolean actual = matcher.matches();
@@ -38,8 +38,12 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.commons.lang.StringUtil;
 import de.unkrig.commons.lang.protocol.Producer;
 import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.lfr.core.CharFrequencies;
+import de.unkrig.lfr.core.MatchLimitExceededException;
+import de.unkrig.lfr.core.PatternSet;
 import de.unkrig.ref4j.Matcher;
 import de.unkrig.ref4j.Pattern;
 import de.unkrig.ref4j.PatternFactory;
@@ -116,6 +120,21 @@ class PatternTest extends ParameterizedWithPatternFactory {
         this.assertFind(3, regex, AssertionUtil.notNull(rsp.produce()));
     }
 
+    @Test public void
+    testPeriodicAndVeryLongStringLiterals() {
+
+        this.assertSequenceToString("twoWay(\"abababababababab\")", "abababababababab");
+        this.assertFind(2, "abababababababab", "ababababababababababababababababx abababababababa");
+        this.assertFind(125, "abababababababab", StringUtil.repeat(1000, "ab") + "x");
+
+        String needle = "b" + StringUtil.repeat(40, "a");
+        this.assertSequenceToString("twoWay(\"" + needle + "\")", needle);
+        this.assertFind(0, needle, StringUtil.repeat(5000, "a"));
+        this.assertFind(1, needle, StringUtil.repeat(5000, "a") + needle + "b");
+
+        this.assertFind(1, ".*" + needle, StringUtil.repeat(2, needle) + "x");
+    }
+
     private static Producer<String>
     randomSubjectProducer(final String infix) {
 
@@ -191,6 +210,10 @@ class PatternTest extends ParameterizedWithPatternFactory {
     @Test public void testUnicodeCaseInsensitive3() { this.assertFind(1, "(?ui)Ä", "xxxäxxx");    }
     @Test public void testUnicodeCaseInsensitive4() { this.assertMatches(true, "(?ui)Ä", "Ä"); }
     @Test public void testUnicodeCaseInsensitive5() { this.assertMatches(true, "(?ui)Ä", "ä"); }
+    @Test public void testUnicodeCaseInsensitive6() { this.assertFind(2, "(?ui)[j-l]+", "xJ\u212ak-L"); }
+    @Test public void testUnicodeCaseInsensitive7() { this.assertFind(1, "(?ui)[\u0430-\u044f]+", "\u0416\u0436 x \u0401"); }
+    @Test public void testUnicodeCaseInsensitive8() { this.assertFind(1, "(?ui)[\ud801\udc28-\ud801\udc4f]", "\ud801\udc00"); }
+    @Test public void testUnicodeCaseInsensitive9() { this.assertFind(1, "(?ui)(\u00e4\u0436)\\1", "\u00e4\u0436\u00c4\u0416"); }
 
     @Test public void testDotall1() { this.assertFind(3, ".",     0,              " \r  "); }
     @Test public void testDotall2() { this.assertFind(4, ".",     Pattern.DOTALL, " \r  "); }
@@ -253,6 +276,12 @@ class PatternTest extends ParameterizedWithPatternFactory {
     @Test public void testPredefinedCharacterClasses2() { this.assertFind(6, "(?U)\\w", " abc äöü "); }
     @Test public void testPredefinedCharacterClasses3() { this.assertFind(6, "\\W",     " abc äöü "); }
     @Test public void testPredefinedCharacterClasses4() { this.assertFind(3, "(?U)\\W", " abc äöü "); }
+    @Test public void testPredefinedCharacterClasses5() { this.assertFind(1, "\\d+",     "1\u0661\u0662 x\uff13"); }
+    @Test public void testPredefinedCharacterClasses6() { this.assertFind(2, "(?U)\\d+", "1\u0661\u0662 x\uff13"); }
+    @Test public void testPredefinedCharacterClasses7() { this.assertFind(1, "\\s",      "a\u00a0b\u2003c\td"); }
+    @Test public void testPredefinedCharacterClasses8() { this.assertFind(3, "(?U)\\s",  "a\u00a0b\u2003c\td"); }
+    @Test public void testPredefinedCharacterClasses9() { this.assertFind(3, "\\h",      "a\u00a0b\u2003c\td"); }
+    @Test public void testPredefinedCharacterClasses10() { this.assertFind(2, "(?U)\\w+", "\ud835\udc00b-\u0431"); }
 
     @Test public void testPosixCharacterClasses1() { this.assertFind(3, "\\p{Lower}",     " abc äöü "); }
     @Test public void testPosixCharacterClasses2() { this.assertFind(6, "(?U)\\p{Lower}", " abc äöü "); }
@@ -284,6 +313,9 @@ class PatternTest extends ParameterizedWithPatternFactory {
     // By "UNICODE property":
     @Test public void testUnicodeCharacterClasses9()  { this.assertFind(6, "\\p{IsLowerCASE}",  " abc äöü "); }
     @Test public void testUnicodeCharacterClasses10() { this.assertFind(6, "\\p{IsAlphabetic}", " abc äöü "); }
+    @Test public void testUnicodeCharacterClasses11() { this.assertFind(2, "\\p{IsCyrillic}+",  "ab \u0430\u0431 c\u0416"); }
+    @Test public void testUnicodeCharacterClasses12() { this.assertFind(3, "\\P{L}+",           "ab \u0430\u0431 c\ud83d\udca9"); }
+    @Test public void testUnicodeCharacterClasses13() { this.assertFind(2, "(?U)\\p{Lower}",    "aB\u0431\u0416"); }
 
     @Test public void
     testSupplementaryCharacterClasses() {
@@ -442,6 +474,92 @@ class PatternTest extends ParameterizedWithPatternFactory {
         }
     }
 
+    @Test public void testRequiredLiteral1() { this.assertFind(4, "(?<=\\s)[a-z]{0,12}ing\\s", " sing king bring  ing "); }
+    @Test public void testRequiredLiteral2() { this.assertFind(2, "\\b[0-9]{1,3}\\sdone",        "1 done 12345 done 99 done"); }
+    @Test public void testRequiredLiteral3() { this.assertFind(3, "(a|ab)(c|bcd)xy",              "abcdxyacxyabcxyabxy"); }
+    @Test public void testRequiredLiteral4() { this.assertFind(1, "(a)\\1.*xy",                  "aaxyaaxy"); }
+
+    @Test public void testLiteralAlternatives1() { this.assertFind(4, "Tom|Sawyer|Huckleberry|Finn",      "Tom Sawyer, TomSawyer, Fin"); }
+    @Test public void testLiteralAlternatives2() { this.assertFind(2, "\\b(?:ab|b|bab)\\b",           "abab bab b"); }
+    @Test public void testLiteralAlternatives3() { this.assertFind(3, "(?<=x)(?:a|ab|abc)(c|d)",        "xabcd xad xac xb"); }
+
+    @Test public void testNonLatin1Needle1() { this.assertFind(2, "\\b[\u043f\u041f]\u0440\u0438\u0432\u0435\u0442", "2024 \u043f\u0440\u0438\u0432\u0435\u0442 \u041f\u0440\u0438\u0432\u0435\u0442 2:28 \u0432\u0435\u0442"); }
+    @Test public void testNonLatin1Needle2() { this.assertFind(1, "\\b[\u6771\u897f]\u4eac\u90fd",                   "abc \u6771\u4eac \u897f\u4eac\u90fd xyz"); }
+
+    @Test public void testCaseInsensitiveLiteral1() { this.assertFind(3, "(?i)twain",                 "Mark Twain, MARK TWAIN, mark twain, twai"); }
+    @Test public void testCaseInsensitiveLiteral2() { this.assertFind(3, "(?i)huck\\b",               "Huck huckleberry HUCK hucK"); }
+    @Test public void testCaseInsensitiveLiteral3() { this.assertFind(2, "(?iu)\u043f\u0440\u0438", "\u041f\u0440\u0418 \u043f\u0420\u0438 \u043f\u0440"); }
+
+    @Test public void testReverseSuffix1() { this.assertFind(4, "[a-zA-Z]+ing",     "Sing singing going, ing ringing"); }
+    @Test public void testReverseSuffix2() { this.assertFind(3, "[a-z]{1,3}ing",    "singing tring bring ing"); }
+    @Test public void testReverseSuffix3() { this.assertFind(2, "[a-z]+ing(?:s|x)", "singings ringing kingx"); }
+
+    @Test public void
+    testReverseSuffix4() {
+
+        // A surrogate pair that straddles the search start or the region start must not be decoded.
+        Matcher m = this.patternFactory.compile("[^a]+ing").matcher("\ud83d\ude00ing");
+        Assert.assertTrue(m.find(1));
+        Assert.assertEquals(1, m.start());
+
+        m.region(1, 5);
+        Assert.assertTrue(m.find());
+        Assert.assertEquals(1, m.start());
+    }
+
+    @Test public void testRareChar1() { this.assertFind(2, "\\bq\\w",         "quiz Quit qi q"); }
+    @Test public void testRareChar2() { this.assertFind(2, "(?<=[a-z])x[a-z]", "exit xa boxer x"); }
+    @Test public void testRareChar3() { this.assertFind(0, "(?:\\uDE00|q)",    "a\ud83d\ude00x\ud83d\ude00x"); }
+
+    @Test public void testCharacterClassScan1() { this.assertFind(3, "[0-9]{2,}",      "a 12 b 3 \u0430456 7890x"); }
+    @Test public void testCharacterClassScan2() { this.assertFind(3, "[\u0430-\u044f]", "abc \u0430 x\u0431\u0432"); }
+
+    @Test public void testCharacterClassBitmap1() { this.assertFind(4, "[a-c\u0430-\u0434&&[^b\u0431]]+", "abc \u0430\u0431\u0432 x"); }
+    @Test public void testCharacterClassBitmap2() { this.assertFind(3, "[ab\uff00\u0430]",              "xa\u0430-\uff00-\uff01"); }
+
+    @Test public void testCharacterClassAlgebra1() { this.assertFind(3, "(?i)[a-f&&[^c]]+",             "abC ABc cc Fe"); }
+    @Test public void testCharacterClassAlgebra2() { this.assertFind(3, "[\\p{L}&&[^a-z]]+",            "abC \u0430x \u4e00\u4e01y"); }
+    @Test public void testCharacterClassAlgebra3() { this.assertFind(3, "[^\\w\\s&&[^\\d]][\\w&&\\W]?", "a-b.c 1"); }
+    @Test public void testCharacterClassAlgebra4() { this.assertFind(0, "[a-c]b(?:(?=k)*a*)+",          ""); }
+    @Test public void testCharacterClassAlgebra5() { this.assertFind(2, "[a-c]b(?:(?=k)*a*)+",          "cbaa abk xb"); }
+    @Test public void testCharacterClassAlgebra6() { this.assertFind(1, "[\\uDE00q]",                   "a\ud83d\ude00x\ud83d\ude00q"); }
+    @Test public void testCharacterClassAlgebra7() { this.assertFind(0, "[\\uDE00\\uDE01]x",            "a\ud83d\ude00x\ud83d\ude01x"); }
+
+    @Test public void testPossessiveAnyChar1() { this.assertMatches(true, "x?[\\s\\S]{2,}+", "ab"); }
+    @Test public void testPossessiveAnyChar2() { this.assertFind(1,       "x?[\\s\\S]{2,}+", "ab"); }
+    @Test public void testPossessiveAnyChar3() { this.assertFind(1,       "x?[\\s\\S]++",    "ab"); }
+    @Test public void testPossessiveAnyChar4() { this.assertFind(1,       "x?[\\w\\W]++",    "ab"); }
+    @Test public void testPossessiveAnyChar5() { this.assertFind(1,       "a[\\s\\S]{1,2}+", "a\ud83d\ude00b a"); }
+
+    @Test public void testAnchoredFind1() { this.assertFind(3, "(?m)^\\w+:",  "a: b:\nc:\r\nd e:\u2028f:"); }
+    @Test public void testAnchoredFind2() { this.assertFind(2, "(?md)^\\d",   "1\r2\n3\n"); }
+    @Test public void testAnchoredFind3() { this.assertFind(3, "\\G\\w",      "abc de"); }
+    @Test public void testAnchoredFind4() { this.assertFind(1, "(?m)^\\s*$",  "a\n  \nb"); }
+
+    @Test public void testWordBoundaryFind1() { this.assertFind(3, "\\b\\w+nn\\b", "Finn, Annn and Xanny; inn"); }
+    @Test public void testWordBoundaryFind2() { this.assertFind(2, "\\bthe\\b",    "the other the"); }
+    @Test public void testWordBoundaryFind3() { this.assertFind(4, "\\b\\d+",      "1 a2 33_4 5.6"); }
+    @Test public void testWordBoundaryFind4() { this.assertFind(2, "\\b\\w",       "ab c\u030ad \u00e4e"); }
+    @Test public void testWordBoundaryFind5() { this.assertFind(2, "\\B\\w",       "ab c\u00e4\u0430 d_"); }
+    @Test public void testWordBoundaryFind6() { this.assertFind(2, "\\w+\\b",      "foo bar\u00e4 baz. \u0430\u0431"); }
+    @Test public void testWordBoundaryFind7() { this.assertFind(4, "x\\b|\\bx",    "x ax xa x"); }
+
+    @Test public void
+    testRareCharWithLearnedFrequencies() {
+
+        // Class "CharFrequencies" is only available for LFR.
+        if (this.isLfr()) {
+            PatternFactory pf = de.unkrig.lfr.core.PatternFactory.INSTANCE.withCharFrequencies(
+                CharFrequencies.learn("zzzz zzzz qqq")
+            );
+
+            Matcher m     = pf.compile("\\bz\\w").matcher("zoo quiz zz zap z");
+            int     count = 0;
+            while (m.find()) count++;
+            Assert.assertEquals(3, count);
+        }
+    }
+
     @Test public void
     testGreedyQuantifierFollowedByLongLiteralString() {
 
@@ -661,8 +779,13 @@ class PatternTest extends ParameterizedWithPatternFactory {
     @Test public void testCharacterClassOptimizations3() { this.assertSequenceToString("oneOfTwoChars('A', 'K')",                        "[AK]");               }
     @Test public void testCharacterClassOptimizations4() { this.assertSequenceToString("bitSet('A', 'C', 'E', 'G', 'I', 'K')",           "[ACEGIK]");           }
     @Test public void testCharacterClassOptimizations5() { this.assertSequenceToString("charRange('A' - 'E')",                           "[A-E]");              }
-    @Test public void testCharacterClassOptimizations6() { this.assertSequenceToString("bitSet('D', 'E', 'F', 'G', 'H', 'I', 'J', 'K')", "[A-K&&D-Z]");         }
+    @Test public void testCharacterClassOptimizations6() { this.assertSequenceToString("charRange('D' - 'K')",                          "[A-K&&D-Z]");         }
     @Test public void testCharacterClassOptimizations7() { this.assertSequenceToString(PatternTest.jurpc("set\\('.'(?:, '.'){63}\\)"),   "[A-Za-z0-9_\u0400]"); }
+    @Test public void testCharacterClassOptimizations8() { this.assertSequenceToString("set('a', 'b', '\u0430', '\u0431')",             "[ab\u0430\u0431]"); }
+    @Test public void testCharacterClassOptimizations9() { this.assertSequenceToString("negate(oneOfThreeChars('a', 'b', 'c'))",        "[^abc]");             }
+    @Test public void testCharacterClassOptimizations10() { this.assertSequenceToString("anyCharacter",                                "[\\s\\S]");           }
+    @Test public void testCharacterClassOptimizations11() { this.assertSequenceToString("caseInsensitiveRange('a' - 'c')",            "(?i)[a-c]");          }
+    @Test public void testCharacterClassOptimizations12() { this.assertSequenceToString("negate(oneOfTwoChars('A', 'a'))",            "(?i)[^a]");           }
 
     @Test public void testQuantifierOptimizations1()  { this.assertSequenceToString("'A'",                                                                                                      "A");                      }
     @Test public void testQuantifierOptimizations2()  { this.assertSequenceToString("'A' . greedyQuantifierOnCharacterClass(operand=anyCharButLineBreak, min=0, max=infinite) . 'B'",           "A.*B");                   }
@@ -734,6 +857,245 @@ class PatternTest extends ParameterizedWithPatternFactory {
         System.out.printf(Locale.US, "Took %,d ms%n",  end - start);
     }
 
+    @Test public void
+    testCatastrophicBacktracking() {
+
+        // With JUR, these would take virtually forever; LFR's DFA rejects the subjects in linear time.
+        if (this.isLfr()) {
+            String subject = "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx";
+            Assert.assertFalse(this.patternFactory.compile("(x+x+)+y").matcher(subject).matches());
+            Assert.assertFalse(this.patternFactory.compile("(x+x+)+y").matcher(subject).lookingAt());
+            Assert.assertFalse(this.patternFactory.compile("(x+x+)+y").matcher(subject).find());
+            Assert.assertFalse(this.patternFactory.compile("(x|xx)+y").matcher(subject).find());
+            Assert.assertTrue(this.patternFactory.compile("(x|xx)+y").matcher(subject + "y").find());
+        }
+    }
+
+    @Test public void
+    testLinearTime() {
+
+        // The "LINEAR_TIME" flag is only available for LFR.
+        if (this.isLfr()) {
+            String subject = "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx xxy";
+
+            Matcher m = this.patternFactory.compile("(x+x+)+y").matcher(subject);
+            Assert.assertTrue(m.find());
+            Assert.assertEquals(51, m.start());
+            Assert.assertEquals("xxy", m.group());
+
+            m = this.patternFactory.compile("(a|ab)(c|bcd)(d*)", de.unkrig.lfr.core.Pattern.LINEAR_TIME).matcher("abcd");
+            Assert.assertTrue(m.lookingAt());
+            Assert.assertEquals("a",   m.group(1));
+            Assert.assertEquals("bcd", m.group(2));
+            Assert.assertEquals("",    m.group(3));
+
+            try {
+                this.patternFactory.compile("(a)\\1", de.unkrig.lfr.core.Pattern.LINEAR_TIME);
+                Assert.fail();
+            } catch (PatternSyntaxException pse) {
+                ;
+            }
+
+            // A back reference to a non-existent group must also be rejected.
+            this.assertPatternSyntaxException("s?\\1{0,2}", de.unkrig.lfr.core.Pattern.LINEAR_TIME);
+        }
+    }
+
+    @Test public void
+    testLinearTimeGroupsInLoops() {
+
+        // The "LINEAR_TIME" flag is only available for LFR.
+        if (this.isLfr()) {
+            this.assertFindLikeJur("(a*)*b",          0, "aab");
+            this.assertFindLikeJur("(a|)+b",          0, "aab");
+            this.assertFindLikeJur("(a*?)*?b",        0, "aab");
+            this.assertFindLikeJur("(a|)+?b",         0, "aab");
+            this.assertFindLikeJur("((a)*?)*b",       0, "aab");
+            this.assertFindLikeJur("(a+)+b",          0, "aab");
+            this.assertFindLikeJur("(a|b)*c",         0, "abc");
+            this.assertFindLikeJur("(a|b)*?c",        0, "abcabc");
+            this.assertFindLikeJur("((a|b)*)*c",      0, "abc");
+            this.assertFindLikeJur("(?:(a)|(b))*c",   0, "abbac");
+            this.assertFindLikeJur("((a*)b)*c",       0, "abaabc");
+            this.assertFindLikeJur("((a)|b)+b",       0, "abab");
+            this.assertFindLikeJur(
+                "(.{0,2}|\u0430+.)+[\\w&&[^a]]{2,}",
+                java.util.regex.Pattern.CASE_INSENSITIVE,
+                "xxxx\u0430\u0430b1"
+            );
+        }
+    }
+
+    @Test public void
+    testBytecode() {
+
+        // The "BYTECODE" flag is only available for LFR.
+        if (this.isLfr()) {
+            Matcher m = this.patternFactory.compile(
+                "(\\d+)-(\\w+?)-([a-z]*)c",
+                de.unkrig.lfr.core.Pattern.BYTECODE
+            ).matcher("x 12-ab-abcc \ud800\udc00");
+            Assert.assertTrue(m.find());
+            Assert.assertEquals(2,      m.start());
+            Assert.assertEquals("12",   m.group(1));
+            Assert.assertEquals("ab",   m.group(2));
+            Assert.assertEquals("abc",  m.group(3));
+            Assert.assertFalse(m.find());
+
+            m = this.patternFactory.compile("(?:a|ab)(?:c|bcd)(d*)", de.unkrig.lfr.core.Pattern.BYTECODE).matcher("abcd");
+            Assert.assertTrue(m.lookingAt());
+            Assert.assertEquals("", m.group(1));
+        }
+    }
+
+    @Test public void
+    testGroupReset() {
+        this.assertGroupReset(0);
+
+        // The "LINEAR_TIME" and "BYTECODE" flags are only available for LFR.
+        if (this.isLfr()) {
+            this.assertGroupReset(de.unkrig.lfr.core.Pattern.LINEAR_TIME);
+            this.assertGroupReset(de.unkrig.lfr.core.Pattern.BYTECODE);
+        }
+    }
+
+    private void
+    assertGroupReset(int flags) {
+
+        // Groups that were captured by the preceding match must not show up in the next one.
+        Matcher m = this.patternFactory.compile("(a)(b)?|(c)", flags).matcher("ab");
+        Assert.assertTrue(m.matches());
+        Assert.assertEquals("b", m.group(2));
+
+        m.reset("c");
+        Assert.assertTrue(m.find());
+        Assert.assertNull(m.group(1));
+        Assert.assertNull(m.group(2));
+        Assert.assertEquals("c", m.group(3));
+
+        m.reset("a");
+        Assert.assertTrue(m.lookingAt());
+        Assert.assertEquals("a", m.group(1));
+        Assert.assertNull(m.group(2));
+        Assert.assertNull(m.group(3));
+    }
+
+    @Test public void
+    testDeepRepetition() {
+
+        // JUR recurses once per iteration and would throw a StackOverflowError.
+        if (this.isLfr()) {
+            String subject = StringUtil.repeat(500000, "ab") + "c";
+
+            Matcher m = this.patternFactory.compile("(?:ab)*c").matcher(subject);
+            Assert.assertTrue(m.matches());
+
+            m = this.patternFactory.compile("x?(?:ab){3,}?c").matcher(subject);
+            Assert.assertTrue(m.lookingAt());
+            Assert.assertEquals(subject.length(), m.end());
+
+            m = this.patternFactory.compile("(?:ab)+b").matcher(subject);
+            Assert.assertFalse(m.lookingAt());
+        }
+    }
+
+    @Test public void
+    testMemoizedLoops() {
+
+        Matcher m = this.patternFactory.compile("(a|aa)+(?=b)").matcher("aaa-aab");
+        Assert.assertTrue(m.find());
+        Assert.assertEquals(4,   m.start());
+        Assert.assertEquals(6,   m.end());
+        Assert.assertEquals("a", m.group(1));
+
+        // Without memoization, each start position would re-explore the same failing states.
+        if (this.isLfr()) {
+            String subject = StringUtil.repeat(1000, "a") + "-";
+            Assert.assertFalse(this.patternFactory.compile("^(a|aa)+$").matcher(subject).find());
+            Assert.assertFalse(this.patternFactory.compile("(?:a|aa)+(?=b)").matcher(subject).find());
+        }
+    }
+
+    @Test public void
+    testMatchLimits() {
+
+        // Methods "Matcher.setMaxSteps()" and "Matcher.setDeadline()" are only available for LFR.
+        if (this.isLfr()) {
+            de.unkrig.lfr.core.Pattern p = de.unkrig.lfr.core.PatternFactory.INSTANCE.compile("^(a|aa){1,60}\\1x");
+            String                     s = StringUtil.repeat(60, "a");
+
+            de.unkrig.lfr.core.Matcher m = p.matcher(s).setMaxSteps(10000);
+            try {
+                m.find();
+                Assert.fail();
+            } catch (MatchLimitExceededException mlee) {
+                ;
+            }
+
+            m = p.matcher(s).setDeadline(System.nanoTime() + 50000000L);
+            try {
+                m.find();
+                Assert.fail();
+            } catch (MatchLimitExceededException mlee) {
+                ;
+            }
+
+            // A sufficient limit must not change the result.
+            m = p.matcher("aaaax").setMaxSteps(10000);
+            Assert.assertTrue(m.find());
+            Assert.assertEquals("a", m.group(1));
+        }
+    }
+
+    @Test public void
+    testMatchLimits2() {
+
+        // The limits must also be enforced by the linear-time and the bytecode evaluation.
+        if (this.isLfr()) {
+            int[] flagss = { de.unkrig.lfr.core.Pattern.LINEAR_TIME, de.unkrig.lfr.core.Pattern.BYTECODE };
+            for (int flags : flagss) {
+                de.unkrig.lfr.core.Pattern p = de.unkrig.lfr.core.PatternFactory.INSTANCE.compile("(?:a|b)*c", flags);
+                String                     s = StringUtil.repeat(1000, "ab") + "xc";
+
+                de.unkrig.lfr.core.Matcher m = p.matcher(s).setMaxSteps(100);
+                try {
+                    m.find();
+                    Assert.fail();
+                } catch (MatchLimitExceededException mlee) {
+                    ;
+                }
+
+                m = p.matcher(s).setDeadline(System.nanoTime());
+                try {
+                    m.find();
+                    Assert.fail();
+                } catch (MatchLimitExceededException mlee) {
+                    ;
+                }
+
+                // A sufficient limit must not change the result.
+                m = p.matcher(s).setMaxSteps(100000000L);
+                Assert.assertTrue(m.find());
+                Assert.assertEquals(2001, m.start());
+            }
+        }
+    }
+
+    @Test public void
+    testPatternSet() {
+
+        // Class "PatternSet" is only available for LFR.
+        if (this.isLfr()) {
+            PatternSet ps = PatternSet.compile("abc", "x?y", "(?i)def", "\\d+", "^b", "c$", ".z", "(?<=a)b");
+
+            Assert.assertArrayEquals(new int[0],            ps.find(""));
+            Assert.assertArrayEquals(new int[] { 1 },       ps.find("y"));
+            Assert.assertArrayEquals(new int[] { 0, 5, 7 }, ps.find("xabc"));
+            Assert.assertArrayEquals(new int[] { 2, 3, 6 }, ps.find("DeF 7z"));
+            Assert.assertArrayEquals(new int[] { 4 },       ps.find("bb"));
+        }
+    }
+
     @Test public void
     testCapturingQuantifiers() {
 
@@ -886,6 +1248,32 @@ class PatternTest extends ParameterizedWithPatternFactory {
         }
     }
 
+    /**
+     * Verifies that the pattern finds the same matches and groups as with {@code java.util.regex}, both with and
+     * without the {@link de.unkrig.lfr.core.Pattern#LINEAR_TIME} flag.
+     */
+    private void
+    assertFindLikeJur(String regex, int flags, String subject) {
+
+        java.util.regex.Matcher m = java.util.regex.Pattern.compile(regex, flags).matcher(subject);
+        StringBuilder           expected = new StringBuilder();
+        while (m.find()) expected.append(PatternTest.groups(m));
+
+        for (int flags2 : new int[] { flags, flags | de.unkrig.lfr.core.Pattern.LINEAR_TIME }) {
+            Matcher       m2     = this.patternFactory.compile(regex, flags2).matcher(subject);
+            StringBuilder actual = new StringBuilder();
+            while (m2.find()) actual.append(PatternTest.groups(m2));
+            Assert.assertEquals(regex, expected.toString(), actual.toString());
+        }
+    }
+
+    private static String
+    groups(java.util.regex.MatchResult mr) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i <= mr.groupCount(); i++) sb.append(' ').append(mr.start(i)).append(':').append(mr.end(i));
+        return sb.append(" ]").toString();
+    }
+
     public void
     assertPatternSyntaxException(String regex) {
         this.assertPatternSyntaxException(regex, 0);
@@ -4695,6 +4695,8 @@ if (cp == 127280) {
             case Pattern.LITERAL:
             case Pattern.UNICODE_CHARACTER_CLASS:
             case Pattern.COMMENTS:
+            case de.unkrig.lfr.core.Pattern.LINEAR_TIME: // LFR extension
+            case de.unkrig.lfr.core.Pattern.BYTECODE:    // LFR extension
                 // valid flag, continue
                 break;
             default:
@@ -4763,41 +4765,33 @@ if (cp == 127280) {
                     buf = new StringBuilder();
                 }
             }
-            try {
-                Pattern p = PF.compile("\\X");
-                // (1) test \X directly
-                Matcher m = p.matcher(src.toString());
-                for (String g : graphemes) {
-                    // System.out.printf("     grapheme:=[%s]%n", g);
-                    String group = null;
-                    Assert.assertTrue("Not found \\X [" + ln + "] (line " + lineNumber[0] + ")", m.find());
-
-                    // Fails with JUR 17 /* AU */:
-//                    Assert.assertEquals("Group 0 \\X [" + ln + "] (line " + lineNumber[0] + ")", g, m.group());
-                }
+            Pattern p = PF.compile("\\X");
+            // (1) test \X directly
+            Matcher m = p.matcher(src.toString());
+            for (String g : graphemes) {
+                // System.out.printf("     grapheme:=[%s]%n", g);
+                String group = null;
+                Assert.assertTrue("Not found \\X [" + ln + "] (line " + lineNumber[0] + ")", m.find());
+                Assert.assertEquals("Group 0 \\X [" + ln + "] (line " + lineNumber[0] + ")", g, m.group());
+            }
+            Assert.assertFalse(m.find());
+
+            // test \b{g} without \X via Pattern
+            Pattern pbg = PF.compile("\\b{g}");
+            m = pbg.matcher(src.toString());
+            m.find();
+            int prev = m.end();
+            for (String g : graphemes) {
+                String group = null;
+                Assert.assertTrue("Not found \\b{g} [" + ln + "] (line " + lineNumber[0] + ")", m.find());
                 // Fails with JUR 17 /* AU */:
-//                Assert.assertFalse(m.find());
-
-                // test \b{g} without \X via Pattern
-                Pattern pbg = PF.compile("\\b{g}");
-                m = pbg.matcher(src.toString());
-                m.find();
-                int prev = m.end();
-                for (String g : graphemes) {
-                    String group = null;
-                    Assert.assertTrue("Not found \\b{g} [" + ln + "] (line " + lineNumber[0] + ")", m.find());
-                    // Fails with JUR 17 /* AU */:
-//                    Assert.assertEquals("Group 0 \\b{g} [" + ln + "] (line " + lineNumber[0] + ")", g, group);
-                    if (!"".equals(m.group())) {
-                        Assert.fail();
-                    }
-                    prev = m.end();
+//                Assert.assertEquals("Group 0 \\b{g} [" + ln + "] (line " + lineNumber[0] + ")", g, group);
+                if (!"".equals(m.group())) {
+                    Assert.fail();
                 }
-                // Fails with JUR 17 /* AU */:
-//                Assert.assertFalse(m.find());
-            } catch (UnsupportedOperationException uoe) {
-                Assert.assertEquals("Graphemes only available in Java 9+", uoe.getMessage());
+                prev = m.end();
             }
+            Assert.assertFalse(m.find());
 
 // Cannot adapt to j.u.Scanner.hasNext(Pattern)
 //            // (2) test \b{g} + \X  via Scanner
@@ -4828,15 +4822,10 @@ if (cp == 127280) {
         });
 
         // some sanity checks
-        try {
-            if (!PF.compile("\\X{10}").matcher("abcdefghij").matches() ||
-                !PF.compile("\\b{g}(?:\\X\\b{g}){5}\\b{g}").matcher("abcde").matches() ||
-                !PF.compile("(?:\\X\\b{g}){2}").matcher("\ud800\udc00\ud801\udc02").matches())
-                Assert.fail();
-        } catch (UnsupportedOperationException uoe) {
-            // Graphemes are only supported in JRE 9+. /* AU */
-            Assert.assertEquals("Graphemes only available in Java 9+", uoe.getMessage());
-        }
+        if (!PF.compile("\\X{10}").matcher("abcdefghij").matches() ||
+            !PF.compile("\\b{g}(?:\\X\\b{g}){5}\\b{g}").matcher("abcde").matches() ||
+            !PF.compile("(?:\\X\\b{g}){2}").matcher("\ud800\udc00\ud801\udc02").matches())
+            Assert.fail();
         // make sure "\b{n}" still works
         if (!PF.compile("\\b{1}hello\\b{1} \\b{1}world\\b{1}").matcher("hello world").matches())
             Assert.fail();